@@ -0,0 +1,273 @@
+/*************************************************************************\
+* Copyright (C) 2009-2015 Mennē Software Solutions, LLC
+*
+* This code is released as open source under the Apache 2.0 License:<br/>
+* <a href="http://www.apache.org/licenses/LICENSE-2.0">
+* http://www.apache.org/licenses/LICENSE-2.0</a><br />
+\*************************************************************************/
+
+package com.moneydance.modules.features.findandreplace;
+
+import com.infinitekind.moneydance.model.AbstractTxn;
+import com.infinitekind.moneydance.model.Account;
+import com.infinitekind.moneydance.model.AccountBook;
+import com.infinitekind.moneydance.model.CurrencyType;
+import com.infinitekind.moneydance.model.CurrencyUtil;
+import com.infinitekind.moneydance.model.ParentTxn;
+import com.infinitekind.moneydance.model.SplitTxn;
+import com.moneydance.apps.md.controller.AccountFilter;
+import com.moneydance.apps.md.view.gui.TagLogic;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * <p>Measures the find and replace hot path on synthetic account books, using {@link FarEngine}
+ * so no user interface is involved. For each book size it reports the find throughput of every
+ * filter type on its own and of a combined search, the cost of Replace All (creating the result
+ * entries, marking them and computing the previews the results table shows) and the cost of a
+ * commit. Each number is the best of several rounds. It lives outside <code>src</code> so it is
+ * not packaged into the extension. Run from the command line with Moneydance, the extension
+ * classes and this class on the class path:</p>
+ *
+ * <pre>java com.moneydance.modules.features.findandreplace.FarBenchmark [transactions ...]</pre>
+ *
+ * <p>The default book sizes are 10,000, 100,000 and 1,000,000 transactions.</p>
+ *
+ * @author Kevin Menningen
+ * @version Build 94
+ * @since 1.0
+ */
+final class FarBenchmark
+{
+    private static final String[] WORDS =
+    {
+        "Grocery", "Store", "Payroll", "Deposit", "Electric", "Company", "Coffee", "Shop",
+        "Transfer", "Savings", "Mortgage", "Payment", "Café", "Straße", "Restaurant", "Fuel",
+        "Insurance", "Premium", "Pharmacy", "Interest", "Dividend", "Rent", "Water", "Books"
+    };
+    private static final String[] TAGS = { "business", "travel", "medical", "gift", "tax" };
+    private static final int[] DEFAULT_SIZES = { 10000, 100000, 1000000 };
+    private static final int BANK_COUNT = 4;
+    private static final int CATEGORY_COUNT = 24;
+    /** Transactions are spread over this many days, starting at {@link #FIRST_DATE}. */
+    private static final int DAY_COUNT = 10 * 365;
+    private static final int FIRST_DATE = 20060101;
+    private static final int ROUNDS = 5;
+
+    private final AccountBook _book;
+    private final FarEngine _engine;
+    private final List<Account> _banks = new ArrayList<Account>();
+    private final List<Account> _categories = new ArrayList<Account>();
+    private final int[] _dates = new int[DAY_COUNT];
+    private final int _txnCount;
+
+    private FarBenchmark(final int txnCount)
+    {
+        _txnCount = txnCount;
+        _book = AccountBook.fakeAccountBook();
+        CurrencyUtil.createDefaultTable(_book, "USD");
+        for (final CurrencyType currency : _book.getCurrencies())
+        {
+            currency.setCurrencyType(CurrencyType.Type.CURRENCY);
+            currency.setDecimalPlaces(2);
+            currency.setTickerSymbol("");
+        }
+        _book.performPostLoadVerification();
+        _engine = new FarEngine(_book);
+
+        final Calendar calendar = Calendar.getInstance();
+        calendar.clear();
+        calendar.set(FIRST_DATE / 10000, (FIRST_DATE / 100) % 100 - 1, FIRST_DATE % 100);
+        for (int day = 0; day < DAY_COUNT; day++)
+        {
+            _dates[day] = calendar.get(Calendar.YEAR) * 10000 + (calendar.get(Calendar.MONTH) + 1) * 100
+                          + calendar.get(Calendar.DAY_OF_MONTH);
+            calendar.add(Calendar.DAY_OF_MONTH, 1);
+        }
+    }
+
+    public static void main(final String[] args)
+    {
+        int[] sizes = DEFAULT_SIZES;
+        if (args.length > 0)
+        {
+            sizes = new int[args.length];
+            for (int index = 0; index < args.length; index++)
+            {
+                sizes[index] = Integer.parseInt(args[index]);
+            }
+        }
+        for (final int size : sizes)
+        {
+            final FarBenchmark benchmark = new FarBenchmark(size);
+            benchmark.createBook();
+            benchmark.run();
+        }
+    }
+
+    private void createBook()
+    {
+        final long start = System.nanoTime();
+        final Account root = _book.getRootAccount();
+        for (int index = 0; index < BANK_COUNT; index++)
+        {
+            _banks.add(createAccount(root, Account.AccountType.BANK, "Bank " + index));
+        }
+        for (int index = 0; index < CATEGORY_COUNT; index++)
+        {
+            final Account.AccountType type = (index % 6 == 0) ? Account.AccountType.INCOME
+                                                              : Account.AccountType.EXPENSE;
+            _categories.add(createAccount(root, type, WORDS[index % WORDS.length]));
+        }
+
+        final Random random = new Random(42);
+        final byte[] statuses = { AbstractTxn.STATUS_UNRECONCILED, AbstractTxn.STATUS_RECONCILING,
+                                  AbstractTxn.STATUS_CLEARED };
+        for (int index = 0; index < _txnCount; index++)
+        {
+            final int date = _dates[random.nextInt(DAY_COUNT)];
+            final byte status = statuses[random.nextInt(statuses.length)];
+            final String description = createText(random, 1 + random.nextInt(3));
+            final ParentTxn parent = ParentTxn.makeParentTxn(_book, date, date, System.currentTimeMillis(),
+                    Integer.toString(1000 + random.nextInt(9000)), _banks.get(random.nextInt(BANK_COUNT)),
+                    description, createText(random, random.nextInt(4)), -1, status);
+            // about one in five transactions is split in two
+            final int splitCount = (random.nextInt(5) == 0) ? 2 : 1;
+            for (int ii = 0; ii < splitCount; ii++)
+            {
+                final SplitTxn split = SplitTxn.makeSplitTxn(parent, -(100 + random.nextInt(100000)), 1.0,
+                        _categories.get(random.nextInt(CATEGORY_COUNT)), description, -1, status);
+                if (random.nextInt(5) == 0)
+                {
+                    split.setKeywords(Collections.singletonList(TAGS[random.nextInt(TAGS.length)]));
+                }
+                parent.addSplit(split);
+            }
+            parent.syncItem();
+        }
+        _engine.setDateIndex(new DateIndex(_book));
+        System.out.println(String.format("%d transactions created in %.0f ms", Integer.valueOf(_txnCount),
+                                         Double.valueOf((System.nanoTime() - start) / 1000000.0)));
+    }
+
+    private void run()
+    {
+        final AccountFilter accounts = new AccountFilter(L10NFindAndReplace.ACCOUNTFILTER_ALL_ACCOUNTS);
+        accounts.include(_banks.get(0));
+        final AccountFilter categories = new AccountFilter(L10NFindAndReplace.ACCOUNTFILTER_ALL_ACCOUNTS);
+        categories.include(_categories.get(1));
+        final CurrencyType baseCurrency = _book.getCurrencies().getBaseType();
+        final int yearStart = _dates[365];
+        final int yearEnd = _dates[2 * 365 - 1];
+
+        time("account", filterOf(new AccountTxnFilter(accounts, null, true)));
+        time("category", filterOf(new AccountTxnFilter(null, categories, true)));
+        time("date (1 year)", filterOf(new DateRangeTxnFilter(yearStart, yearEnd, false, true)));
+        time("amount", filterOf(new AmountTxnFilter(-5000, -1000, baseCurrency, false, true)));
+        time("text (plain)", filterOf(new FreeTextTxnFilter("coffee", true, true, true, true, true)));
+        time("text (regex)", filterOf(new FreeTextTxnFilter("=pay(roll|ment)", true, true, true, true, true)));
+        time("tags", filterOf(new TagsTxnFilter(Arrays.asList("travel", "tax"), Collections.<String>emptyList(),
+                                                TagLogic.OR, true)));
+        time("cleared", filterOf(new ClearedTxnFilter(true, false, false, true)));
+        time("account+date+text", filterOf(new AccountTxnFilter(accounts, null, true),
+                                           new DateRangeTxnFilter(yearStart, yearEnd, false, true),
+                                           new FreeTextTxnFilter("shop", true, true, true, true, true)));
+
+        // replace the memo of every transaction in the date range, alternating the new memo so
+        // each round changes every result
+        long replaceAll = Long.MAX_VALUE;
+        long commit = Long.MAX_VALUE;
+        int results = 0;
+        int parents = 0;
+        for (int round = 0; round < ROUNDS; round++)
+        {
+            final List<SplitTxn> found = _engine.find(filterOf(new DateRangeTxnFilter(yearStart, yearEnd,
+                                                                                      false, true)));
+            final ReplaceCommand command = new ReplaceCommand(null, null, null, false, null, false,
+                    "Memo " + round, false, null, false, null, null, null, null);
+
+            long start = System.nanoTime();
+            final List<FindResultsTableEntry> entries = _engine.createEntries(found);
+            FarEngine.replaceAll(entries);
+            for (final FindResultsTableEntry entry : entries)
+            {
+                command.setTransactionEntry(entry);
+                command.getPreviewCategory();
+                command.getPreviewAmount();
+                command.getPreviewDescription(false);
+                command.getPreviewMemo();
+                command.getPreviewCheckNumber();
+                command.getPreviewTags();
+            }
+            replaceAll = Math.min(replaceAll, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            final CommitBatch batch = _engine.commit(entries, Collections.singletonList(command), null);
+            commit = Math.min(commit, System.nanoTime() - start);
+            results = entries.size();
+            parents = batch.getModifiedTransactions().size();
+        }
+        System.out.println(String.format("%-20s %9.1f ms %8.0f ns/result, %d results",
+                                         "replace all", Double.valueOf(replaceAll / 1000000.0),
+                                         Double.valueOf((double) replaceAll / Math.max(1, results)),
+                                         Integer.valueOf(results)));
+        System.out.println(String.format("%-20s %9.1f ms %8.0f ns/transaction, %d transactions",
+                                         "commit", Double.valueOf(commit / 1000000.0),
+                                         Double.valueOf((double) commit / Math.max(1, parents)),
+                                         Integer.valueOf(parents)));
+    }
+
+    private void time(final String name, final FilterGroup filter)
+    {
+        long best = Long.MAX_VALUE;
+        int matches = 0;
+        for (int round = 0; round < ROUNDS; round++)
+        {
+            final long start = System.nanoTime();
+            matches = _engine.find(filter).size();
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        System.out.println(String.format("%-20s %9.1f ms %8.0f ns/txn %12.0f txns/s, %d matches",
+                                         name, Double.valueOf(best / 1000000.0),
+                                         Double.valueOf((double) best / _txnCount),
+                                         Double.valueOf(_txnCount * 1000000000.0 / best),
+                                         Integer.valueOf(matches)));
+    }
+
+    private static FilterGroup filterOf(final ITransactionFilter... filters)
+    {
+        final FilterGroup result = new FilterGroup();
+        for (final ITransactionFilter filter : filters)
+        {
+            result.addFilter(filter);
+        }
+        return result;
+    }
+
+    private Account createAccount(final Account parent, final Account.AccountType type, final String name)
+    {
+        final Account account = Account.makeAccount(_book, type, parent);
+        account.setAccountName(name);
+        account.syncItem();
+        return account;
+    }
+
+    private static String createText(final Random random, final int words)
+    {
+        final StringBuilder buffer = new StringBuilder();
+        for (int index = 0; index < words; index++)
+        {
+            if (index > 0)
+            {
+                buffer.append(' ');
+            }
+            buffer.append(WORDS[random.nextInt(WORDS.length)]);
+        }
+        return buffer.toString();
+    }
+}
@@ -0,0 +1,114 @@
+/*************************************************************************\
+* Copyright (C) 2009-2015 Mennē Software Solutions, LLC
+*
+* This code is released as open source under the Apache 2.0 License:<br/>
+* <a href="http://www.apache.org/licenses/LICENSE-2.0">
+* http://www.apache.org/licenses/LICENSE-2.0</a><br />
+\*************************************************************************/
+
+package com.moneydance.modules.features.findandreplace;
+
+import java.util.Random;
+import java.util.regex.Pattern;
+
+/**
+ * <p>Measures the cost of matching free text against transaction fields, the old way (a new
+ * <code>Matcher</code> for every string) against {@link TextMatcher}. The fields are synthetic
+ * descriptions, memos and check numbers, three per transaction like a free text search over all
+ * fields. It lives outside <code>src</code> so it is not packaged into the extension. Run from
+ * the command line with the extension classes and this class on the class path:</p>
+ *
+ * <pre>java com.moneydance.modules.features.findandreplace.TextMatchBenchmark [transactions]</pre>
+ *
+ * @author Kevin Menningen
+ * @version Build 94
+ * @since 1.0
+ */
+final class TextMatchBenchmark
+{
+    private static final String[] WORDS =
+    {
+        "Grocery", "Store", "Payroll", "Deposit", "Electric", "Company", "Coffee", "Shop",
+        "Transfer", "Savings", "Mortgage", "Payment", "Café", "Straße", "Restaurant", "Fuel",
+        "Insurance", "Premium", "Pharmacy", "Interest", "Dividend", "Rent", "Water", "Books"
+    };
+    private static final String[] SEARCHES = { "coffee", "STRASSE", "rent", "=(?i)pay(roll|ment)" };
+    private static final int ROUNDS = 5;
+
+    private TextMatchBenchmark()
+    {
+    }
+
+    public static void main(final String[] args)
+    {
+        final int count = (args.length > 0) ? Integer.parseInt(args[0]) : 100000;
+        final String[] fields = createFields(count);
+        System.out.println(String.format("%d transactions, %d fields", Integer.valueOf(count),
+                                         Integer.valueOf(fields.length)));
+        for (final String search : SEARCHES)
+        {
+            final Pattern pattern = FarUtil.buildFindPattern(search);
+            final TextMatcher matcher = new TextMatcher(search);
+            long before = Long.MAX_VALUE;
+            long after = Long.MAX_VALUE;
+            int beforeHits = 0;
+            int afterHits = 0;
+            for (int round = 0; round < ROUNDS; round++)
+            {
+                long start = System.nanoTime();
+                beforeHits = 0;
+                for (final String field : fields)
+                {
+                    if (pattern.matcher(field).find())
+                    {
+                        ++beforeHits;
+                    }
+                }
+                before = Math.min(before, System.nanoTime() - start);
+
+                start = System.nanoTime();
+                afterHits = 0;
+                for (final String field : fields)
+                {
+                    if (matcher.find(field))
+                    {
+                        ++afterHits;
+                    }
+                }
+                after = Math.min(after, System.nanoTime() - start);
+            }
+            System.out.println(String.format(
+                    "%-18s %-10s before %6.0f ns/txn, after %6.0f ns/txn, %d / %d matches",
+                    search, matcher.isPlainText() ? "plain" : "regex",
+                    Double.valueOf((double) before / count), Double.valueOf((double) after / count),
+                    Integer.valueOf(beforeHits), Integer.valueOf(afterHits)));
+        }
+    }
+
+    private static String[] createFields(final int count)
+    {
+        final Random random = new Random(42);
+        final String[] fields = new String[count * 3];
+        for (int index = 0; index < count; index++)
+        {
+            fields[index * 3] = createText(random, 2 + random.nextInt(4));
+            fields[index * 3 + 1] = createText(random, random.nextInt(8));
+            fields[index * 3 + 2] = Integer.toString(1000 + random.nextInt(9000));
+        }
+        return fields;
+    }
+
+    private static String createText(final Random random, final int words)
+    {
+        final StringBuilder buffer = new StringBuilder();
+        for (int index = 0; index < words; index++)
+        {
+            if (index > 0)
+            {
+                buffer.append(' ');
+            }
+            buffer.append(WORDS[random.nextInt(WORDS.length)]);
+        }
+        return buffer.toString();
+    }
+}
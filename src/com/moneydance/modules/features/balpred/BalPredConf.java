@@ -9,6 +9,8 @@ import com.moneydance.awt.graph.*;
 
 import java.awt.event.*;
 import javax.swing.*;
+import java.util.*;
+import java.util.List;
 
 public class BalPredConf 
   implements ActionListener
@@ -28,6 +30,10 @@ public class BalPredConf
   public JComboBox cbAccounts = new JComboBox();
   public JRadioButton rbReminders = new JRadioButton();
   public JRadioButton rbTransactions = new JRadioButton();
+  public JCheckBox chkConsolidated = new JCheckBox();
+  public JCheckBox chkSimulation = new JCheckBox();
+  private List<Account> allAccounts = new ArrayList<Account>();
+  private List<Account> consolidatedAccounts = null;
   public ReminderSet rs = null;
   public String dateFormatStr = "MM/dd/yyyy";
   
@@ -43,6 +49,11 @@ public class BalPredConf
     rbReminders.setSelected(true);
     rbTransactions.setLabel(rr.getString("transactions"));
     rbTransactions.setSelected(false);
+    chkSimulation.setText(rr.getString("simulation"));
+    chkSimulation.setSelected(false);
+    chkConsolidated.setText(rr.getString("consolidated"));
+    chkConsolidated.setSelected(false);
+    consolidatedAccounts = new ArrayList<Account>(allAccounts);
   }
   
   public AccountBook getRootAccount() { return book; }
@@ -57,11 +68,22 @@ public class BalPredConf
         case ASSET:
         case LIABILITY:
           cbAccounts.addItem(subAcct);
+          allAccounts.add(subAcct);
         default:
       }
       loadAccount(subAcct);
     }
   }
+  /** All of the accounts that can be forecast, in the order of cbAccounts. */
+  public List<Account> getAllAccounts() { return allAccounts; }
+  /** The accounts that are forecast together when chkConsolidated is selected. */
+  public List<Account> getConsolidatedAccounts() { return consolidatedAccounts; }
+  public void setConsolidatedAccounts(List<Account> accounts) {
+    consolidatedAccounts = new ArrayList<Account>(accounts);
+  }
+  public boolean isConsolidated() { return chkConsolidated.isSelected(); }
+  /** True to simulate the transaction based forecast instead of following the trend. */
+  public boolean isSimulation() { return chkSimulation.isSelected(); }
   public TxnSet returnTxnSet() {
     return txns;
   }
@@ -23,6 +23,8 @@ public class BalPredRGraph
   protected double minY = 0;
   protected double maxX = 0;
   protected double maxY = 0;
+  protected String legendLabels[] = null;
+  protected Color legendColors[] = null;
   
   public BalPredRGraph(LineGraphModel model, Resources rr) {
     super(model,rr);
@@ -32,6 +34,12 @@ public class BalPredRGraph
     super.setNewModel(model);
   }
 
+  /** Sets the legend entries, in place of the average and future balance lines. */
+  public void setLegend(String labels[], Color colors[]) {
+    this.legendLabels = labels;
+    this.legendColors = colors;
+  }
+
   public int getLeftMargin() {
     return leftMargin;
   }
@@ -90,6 +98,10 @@ public class BalPredRGraph
     rightMargin = 20;
     bottomMargin = 20;
     topMargin = 40;
+    if(legendLabels!=null) {
+      int legendRows = drawLegend(null, fm, w);
+      topMargin = Math.max(topMargin, legendRows*(fm.getMaxAscent()+fm.getMaxDescent())+10);
+    }
 
     double yTicks[] = model.getYTickValues(fm.getMaxAscent()+fm.getMaxDescent()+3,
                                            h-bottomMargin-topMargin);
@@ -202,19 +214,23 @@ public class BalPredRGraph
     g.drawLine(leftMargin,topMargin,leftMargin,h-bottomMargin);
     g.drawLine(leftMargin,h-bottomMargin,
                w-rightMargin,h-bottomMargin);
-    g.drawLine(leftMargin+20,
-               fm.getMaxAscent(),
-               leftMargin+60,
-               fm.getMaxAscent());
-    g.drawString(getResources().getString("two_weeks"),
-      leftMargin+70,fm.getMaxDescent()+fm.getMaxAscent());
-    g.setColor(Color.blue);
-    g.drawLine(leftMargin+20,
-               fm.getMaxAscent()+fm.getMaxAscent()+fm.getMaxDescent(),
-               leftMargin+60,
-               fm.getMaxAscent()+fm.getMaxAscent()+fm.getMaxDescent());
-    g.drawString(getResources().getString("future_balance"),
-      leftMargin+70,2*(fm.getMaxDescent()+fm.getMaxAscent()));
+    if(legendLabels!=null) {
+      drawLegend(g, fm, w);
+    } else {
+      g.drawLine(leftMargin+20,
+                 fm.getMaxAscent(),
+                 leftMargin+60,
+                 fm.getMaxAscent());
+      g.drawString(getResources().getString("two_weeks"),
+        leftMargin+70,fm.getMaxDescent()+fm.getMaxAscent());
+      g.setColor(Color.blue);
+      g.drawLine(leftMargin+20,
+                 fm.getMaxAscent()+fm.getMaxAscent()+fm.getMaxDescent(),
+                 leftMargin+60,
+                 fm.getMaxAscent()+fm.getMaxAscent()+fm.getMaxDescent());
+      g.drawString(getResources().getString("future_balance"),
+        leftMargin+70,2*(fm.getMaxDescent()+fm.getMaxAscent()));
+    }
     
     XYGraphDataSet currentSet = null;
     for(int i=0;i<numSets;i++) {
@@ -242,6 +258,30 @@ public class BalPredRGraph
     }
     
   }
+
+  /** Lays out the legend entries in rows across the top, drawing them if
+    * g is not null.  Returns the number of rows.
+    */
+  private int drawLegend(Graphics g, FontMetrics fm, int w) {
+    int lineHeight = fm.getMaxAscent()+fm.getMaxDescent();
+    int x = 20;
+    int row = 1;
+    for(int i=0; i<legendLabels.length; i++) {
+      int entryWidth = 50 + fm.stringWidth(legendLabels[i]) + 20;
+      if(x > 20 && x+entryWidth > w-rightMargin) {
+        x = 20;
+        row++;
+      }
+      if(g!=null) {
+        int lineY = row*lineHeight - fm.getMaxDescent();
+        g.setColor(legendColors[i]);
+        g.drawLine(x, lineY, x+40, lineY);
+        g.drawString(legendLabels[i], x+50, row*lineHeight);
+      }
+      x += entryWidth;
+    }
+    return row;
+  }
   
 }
 
@@ -23,11 +23,17 @@ public class BalPredTGraph
   protected double minY = 0;
   protected double maxX = 0;
   protected double maxY = 0;
+  protected String title = null;
 
   public BalPredTGraph(LineGraphModel model, Resources rr) {
     super(model,rr);
   }
 
+  /** Sets the text above the graph, in place of the starting balance note. */
+  public void setTitle(String title) {
+    this.title = title;
+  }
+
   public void setModel(LineGraphModel model) {
     super.setNewModel(model);
   }
@@ -217,7 +223,7 @@ public class BalPredTGraph
     g.drawLine(leftMargin,topMargin,leftMargin,h-bottomMargin);
     g.drawLine(leftMargin, h - bottomMargin,
                w - rightMargin, h - bottomMargin);
-    String startBalStr = getResources().getString("starting_balance_is");
+    String startBalStr = title!=null ? title : getResources().getString("starting_balance_is");
     int balStrWidth = fm.stringWidth(startBalStr);
     
     g.drawString(startBalStr, w/2 - balStrWidth/2, fm.getMaxAscent());
@@ -24,18 +24,40 @@ public class BalancePredicter
 {
   private JPanel gp;
   private JButton btReminders;
+  private JButton btAccounts;
   private JComboBox<String> cbFutuIntervals = new JComboBox<String>();
   private JComboBox<String> cbFutuNum = new JComboBox<String>();
   private JComboBox<String> cbPastIntervals = new JComboBox<String>();
   private JComboBox<String> cbPastNum = new JComboBox<String>();
+  // several smoothers can be shown at once, each as its own line
+  private JCheckBox chkSmoothing[] = new JCheckBox[BalanceSmoother.NAME_KEYS.length];
+  private JPanel smoothingPanel = new JPanel(new GridLayout(0, 2));
   private JLabel lbBalance = new JLabel("");
   private JLabel lbPast;
+  private JLabel lbSmoothing;
   private Resources rr = null;
   private BalPredConf balpredConf = null;
   private int forecastFutureDate = DateUtil.getStrippedDateInt();
   private GridBagLayout gbl = new GridBagLayout();
   private HashMap<Reminder,Boolean> remindersStatus = new HashMap<Reminder, Boolean>();
   private DateLabeler dateLabeler;
+  private DailyBalanceSeries balanceSeries = null;
+  private ReminderForecast reminderForecast = null;
+  private ReminderForecast consolidatedReminders = null;
+  private ReminderForecast simulationReminders = null;
+  // the expanded reminders above are dropped whenever a reminder is added, changed or removed
+  private ReminderListener reminderListener = new ReminderListener() {
+    public void reminderAdded(Reminder r) { remindersChanged(r, true); }
+    public void reminderRemoved(Reminder r) { remindersChanged(r, false); }
+    public void reminderModified(Reminder r) { remindersChanged(r, false); }
+  };
+  private static final Color ACCOUNT_COLORS[] = {
+    Color.blue, Color.red, new Color(0, 128, 0), Color.orange, Color.magenta,
+    new Color(0, 128, 128), Color.pink, Color.gray, new Color(128, 0, 128), new Color(128, 96, 0)
+  };
+  private static final Color SMOOTHER_COLORS[] = {
+    Color.black, new Color(0, 128, 0), Color.orange, Color.magenta
+  };
   
   public BalancePredicter(Resources rr, BalPredConf balpredConf) {
     this.rr = rr;
@@ -50,6 +72,7 @@ public class BalancePredicter
     for(Reminder r : getTxnRemindersVect()) {
       remindersStatus.put(r, true);
     }
+    balpredConf.rs.addReminderListener(reminderListener);
     JPanel mainPanel = new JPanel(gbl);
     mainPanel.setBorder(new EmptyBorder(0, 0, 10, 0));
     gp = new JPanel(gbl);
@@ -79,18 +102,34 @@ public class BalancePredicter
     btReminders = new JButton(rr.getString("manage_reminders"));
     btReminders.addActionListener(this);
 
+    for (int i=0; i<chkSmoothing.length; i++) {
+      chkSmoothing[i] = new JCheckBox(rr.getString(BalanceSmoother.NAME_KEYS[i]), i==BalanceSmoother.MOVING_AVERAGE);
+      smoothingPanel.add(chkSmoothing[i]);
+    }
+    lbSmoothing = new JLabel(rr.getString("smoothing"), JLabel.RIGHT);
+
+    btAccounts = new JButton(rr.getString("choose_accounts"));
+    btAccounts.addActionListener(this);
+
     JLabel lbFutu = new JLabel(rr.getString("future_period"), JLabel.RIGHT);
     lbPast = new JLabel(rr.getString("past_period"), JLabel.RIGHT);
 
     balpredConf.cbAccounts.addActionListener(this);
     balpredConf.rbReminders.addActionListener(this);
     balpredConf.rbTransactions.addActionListener(this);
+    balpredConf.chkConsolidated.addActionListener(this);
+    balpredConf.chkSimulation.addActionListener(this);
+    btAccounts.setVisible(balpredConf.isConsolidated());
+    balpredConf.cbAccounts.setEnabled(!balpredConf.isConsolidated());
 
     boolean boRem = balpredConf.getBasedOn()==balpredConf.basedonReminders;
     cbPastIntervals.setVisible(!boRem);
     cbPastNum.setVisible(!boRem);
     lbPast.setVisible(!boRem);
-    btReminders.setVisible(boRem);
+    btReminders.setVisible(boRem || balpredConf.isSimulation());
+    balpredConf.chkSimulation.setVisible(!boRem);
+    lbSmoothing.setVisible(boRem);
+    smoothingPanel.setVisible(boRem);
     
     lbBalance.setText(" ");
 
@@ -100,6 +139,9 @@ public class BalancePredicter
     bpl.add(balpredConf.cbAccounts, AwtUtil.getConstraints(1, yy++, 1, 0, 1, 1, true, false));
     bpl.add(balpredConf.rbReminders, AwtUtil.getConstraints(0, yy++, 1, 0, 2, 1, true, false));
     bpl.add(balpredConf.rbTransactions, AwtUtil.getConstraints(0, yy++, 1, 0, 2, 1, true, false));
+    bpl.add(balpredConf.chkSimulation, AwtUtil.getConstraints(0, yy++, 1, 0, 2, 1, true, false));
+    bpl.add(balpredConf.chkConsolidated, AwtUtil.getConstraints(0, yy, 0, 0, 1, 1, true, false));
+    bpl.add(btAccounts, AwtUtil.getConstraints(1, yy++, 1, 0, 1, 1, true, false));
     
     yy = 0;
     bpr.add(lbFutu, AwtUtil.getConstraints(0, yy, 1, 0, 1, 1, true, false));
@@ -109,6 +151,8 @@ public class BalancePredicter
     bpr.add(cbPastNum, AwtUtil.getConstraints(1, yy, 0, 0, 1, 1, true, false));
     bpr.add(cbPastIntervals, AwtUtil.getConstraints(2, yy++, 1, 0, 1, 1, true, false));
     bpr.add(btReminders, AwtUtil.getConstraints(0, yy++, 1, 0, 3, 1, true, false));
+    bpr.add(lbSmoothing, AwtUtil.getConstraints(0, yy, 1, 0, 1, 1, true, false));
+    bpr.add(smoothingPanel, AwtUtil.getConstraints(1, yy++, 1, 0, 2, 1, true, false));
     bpr.add(new JLabel(" "), AwtUtil.getConstraints(0, yy, 1, 1, 3, 1, true, true));
 
     Calendar tmp = Calendar.getInstance();
@@ -143,6 +187,7 @@ public class BalancePredicter
     cbFutuIntervals.addActionListener(graphUpdater);
     cbPastNum.addActionListener(graphUpdater);
     cbPastIntervals.addActionListener(graphUpdater);
+    for (JCheckBox chk : chkSmoothing) chk.addActionListener(graphUpdater);
 
     
     AwtUtil.centerWindow(this);
@@ -151,9 +196,31 @@ public class BalancePredicter
     validate();
   }
   
+  private void remindersChanged(final Reminder r, final boolean added) {
+    SwingUtilities.invokeLater(new Runnable() {
+      public void run() {
+        // new reminders are included, like the ones there when the window opened
+        if (added && r.getReminderType()==Reminder.Type.TRANSACTION) remindersStatus.put(r, true);
+        reminderForecast = null;
+        consolidatedReminders = null;
+        simulationReminders = null;
+        if (isVisible()) updateGraph();
+      }
+    });
+  }
+
+  public void dispose() {
+    balpredConf.rs.removeReminderListener(reminderListener);
+    super.dispose();
+  }
+
   private void updateGraph() {
-    if (balpredConf.getBasedOn()==balpredConf.basedonReminders) {
+    if (balpredConf.isConsolidated()) {
+      calcConsolidatedBalance();
+    } else if (balpredConf.getBasedOn()==balpredConf.basedonReminders) {
       calcPredictedRBalance();
+    } else if (balpredConf.isSimulation()) {
+      calcSimulatedBalance();
     } else {
       calcPredictedTBalance();
     }
@@ -192,8 +259,6 @@ public class BalancePredicter
     
     long currentBalance = getAccountBalance(balpredConf.getAccount());
     long changes = 0;
-    Vector<DataPoint> dataPoints = new Vector<DataPoint>();
-    Vector<DataPoint> averagePoints = new Vector<DataPoint>();
     Account cacct = balpredConf.getAccount();
     
     setWaitCursor();
@@ -203,124 +268,60 @@ public class BalancePredicter
     Calendar todayCal = Calendar.getInstance();
     DateUtil.setCalendarDate(todayCal, today);
     
-    
-    Calendar pastCal = Calendar.getInstance();
+    ReminderForecast forecast = getReminderForecast(cacct, today);
 
     // adjust the starting balance to take into account the un-applied reminders
-    for(Reminder tr : balpredConf.rs.getAllReminders()) {
-      if(tr.getReminderType() != Reminder.Type.TRANSACTION) continue;
-      if( ! remindersStatus.get(tr)) continue;
-      if(Math.max(tr.getDateAcknowledgedInt(), tr.getInitialDateInt())>=today) continue;
-      ParentTxn txn = tr.getTransaction();
-      if(txn==null) continue;
-      long txnValue = 0;
-      if(txn.getAccount()==cacct) {
-        txnValue += txn.getValue();
-      }
-      for(int splitNum=txn.getSplitCount()-1; splitNum>=0; splitNum--) {
-        SplitTxn split = txn.getSplit(splitNum);
-        if(split.getAccount().equals(cacct)) {
-          txnValue += split.getValue();
-        }
-      }
-      if(txnValue==0) continue;
-      
-      // this transaction is overdue, and affects this account with a non-zero value.
-      // adjust the starting balance by amount 'txnValue' for every overdue occurance
-      DateUtil.setCalendarDate(todayCal, today);
-      currentBalance += (txnValue * tr.getPastDueDates(todayCal).size());
-      
-      // TODO: Make this handle loan reminders (and their variable values) better
-    }
+    // TODO: Make this handle loan reminders (and their variable values) better
+    currentBalance += forecast.getOverdueChange(0, remindersStatus);
 
     curr = today;
     
     int stop = forecastFutureDate;
     if (stop < curr) return;
-    ParentTxn ptxn = null;
-    SplitTxn  stxn = null;
-    Calendar tmp = Calendar.getInstance();
-    TxnSet txns = balpredConf.getTxnSet();
-    DataPoint lastPoint = null;
-    while(curr <= stop) {
-      Calendar cal = Calendar.getInstance();
-      DateUtil.setCalendarDate(cal, curr);
-      for(Reminder r : balpredConf.rs.getRemindersOnDay(cal)) {
-        if ((r.getReminderType() == Reminder.Type.TRANSACTION) && remindersStatus.get(r)) {
-          ptxn = r.getTransaction();
-          if(ptxn==null) continue;
-          if (ptxn.getAccount().equals(cacct)) {
-            changes += ptxn.getValue();
-          }
-          for(int i=0; i<ptxn.getSplitCount(); i++) {
-            stxn = ptxn.getSplit(i);
-            if (stxn.getAccount().equals(cacct)) {
-              changes +=
-                CurrencyTable.convertValue(-stxn.getAmount(),
-                                           stxn.getParentTxn().getAccount().getCurrencyType(),
-                                           cacct.getCurrencyType(),
-                                           DateUtil.convertIntDateToLong(ptxn.getDateInt()).getTime());
-            }
-          }
-        }
-      }
-      
-      long currentTime = DateUtil.convertIntDateToLong(curr).getTime();
-
-      // found all txns for this day, except today
-      /*
-      if (!curr.equals(today)) {
-        for (int i=0; i<txns.getSize(); i++) {
-          if (Math.abs(txns.getTxnAt(i).getDate() - currentTime)<=43200000) {
-            changes += txns.getTxnAt(i).getValue();
-          }
-        }
-      }
-      */
-      
-      if(lastPoint!=null) {  // re-add the last point... with the new date
-        dataPoints.addElement(new DataPoint(currentTime, lastPoint.balance));
-      }
-      lastPoint = new DataPoint(currentTime, currentBalance + changes);
-      dataPoints.addElement(lastPoint);
-      
+    long dailyChanges[] = forecast.getDailyChanges(stop, remindersStatus);
+    int numDays = dailyChanges.length;
+    double dayDates[] = new double[numDays];
+    double dayBalances[] = new double[numDays];
+    for (int day=0; day<numDays; day++) {
+      changes += dailyChanges[day];
+      dayDates[day] = (double)DateUtil.convertIntDateToLong(curr).getTime();
+      dayBalances[day] = (double)(currentBalance + changes);
       curr = DateUtil.incrementDate(curr, 0, 0, 1);
     }
     
-    long avg;
-    int width = 14;
-    int numDataPoints = dataPoints.size();
-    for (int i=0; i<numDataPoints; i++) {
-      int count = 0;
-      avg = 0;
-      DataPoint dataPoint = (DataPoint)dataPoints.elementAt(i);
-      for (int j=(i-width); j<=(i+width); j++) {
-        count++;
-        if (j<0 || j>=dataPoints.size()) {
-          avg += dataPoint.balance;
-        } else {
-          avg += ((DataPoint)dataPoints.elementAt(j)).balance;
-        }
+    // the balance steps on each day: the last balance is repeated at the new date
+    int numDataPoints = 2*numDays - 1;
+    double xvalues[] = new double[numDataPoints];
+    double yvalues[] = new double[numDataPoints];
+    int k = 0;
+    for (int day=0; day<numDays; day++) {
+      if (day > 0) {
+        xvalues[k] = dayDates[day];
+        yvalues[k++] = dayBalances[day-1];
       }
-      averagePoints.addElement(new DataPoint(dataPoint.date, Math.round((1.0*avg)/count)));
+      xvalues[k] = dayDates[day];
+      yvalues[k++] = dayBalances[day];
     }
     
-    double xvalues[] = new double[numDataPoints];
-    double yvalues[] = new double[numDataPoints];
-    double xvaluesA[] = new double[numDataPoints];
-    double yvaluesA[] = new double[numDataPoints];
-    for (int i=0; i<numDataPoints; i++) {
-      DataPoint dataPoint = (DataPoint)dataPoints.elementAt(i);
-      DataPoint avgPoint = (DataPoint)averagePoints.elementAt(i);
-      xvalues[i] = (double)dataPoint.date;
-      yvalues[i] = (double)dataPoint.balance;
-      xvaluesA[i] = (double)avgPoint.date;
-      yvaluesA[i] = (double)avgPoint.balance;
+    DateUtil.setCalendarDate(todayCal, today);
+    int firstWeekday = todayCal.get(Calendar.DAY_OF_WEEK);
+    Vector<XYGraphDataSet> sets = new Vector<XYGraphDataSet>();
+    Vector<String> legendLabels = new Vector<String>();
+    Vector<Color> legendColors = new Vector<Color>();
+    sets.addElement(new XYGraphDataSet(null, null, cacct, xvalues, yvalues, Color.blue));
+    for (int smoother=0; smoother<chkSmoothing.length; smoother++) {
+      if (!chkSmoothing[smoother].isSelected()) continue;
+      double yvaluesA[] = BalanceSmoother.smooth(smoother, dayBalances, firstWeekday);
+      sets.addElement(new XYGraphDataSet(null, null, cacct, dayDates, yvaluesA, SMOOTHER_COLORS[smoother]));
+      legendLabels.addElement(rr.getString(BalanceSmoother.NAME_KEYS[smoother]));
+      legendColors.addElement(SMOOTHER_COLORS[smoother]);
     }
+    legendLabels.addElement(rr.getString("future_balance"));
+    legendColors.addElement(Color.blue);
+    balRGraph.setLegend(legendLabels.toArray(new String[legendLabels.size()]),
+                        legendColors.toArray(new Color[legendColors.size()]));
     
-    XYGraphDataSet gDataSet[] = new XYGraphDataSet[2];
-    gDataSet[0] = new XYGraphDataSet(null, null, cacct, xvalues, yvalues, Color.blue);
-    gDataSet[1] = new XYGraphDataSet(null, null, cacct, xvaluesA, yvaluesA, Color.black);
+    XYGraphDataSet gDataSet[] = sets.toArray(new XYGraphDataSet[sets.size()]);
     balpredConf.setGraphModel(new LineGraphModel(gDataSet));
     LineGraphModel lgm = (LineGraphModel)balpredConf.getGraphModel();
     lgm.setXAxisLabeler(dateLabeler);
@@ -350,85 +351,30 @@ public class BalancePredicter
     
     int curr = DateUtil.getStrippedDateInt();
     int today = DateUtil.getStrippedDateInt();
-    int mind = today;
-    // finding first transaction date
+    // daily balances for all of the period queries below, rebuilt on every
+    // update so that changes to the account since the last one are picked up
     TxnSet txns = balpredConf.getTxnSet();
-    for (int i=0;i<txns.getSize();i++) {
-      mind = Math.min(txns.getTxnAt(i).getDateInt(), mind);
-    }
+    balanceSeries = new DailyBalanceSeries(cacct, txns);
+    // finding first transaction date
+    int mind = balanceSeries.getFirstTxnDate();
     
     if (DateUtil.incrementDate(mind, 0, 3, 0) > today) {
-      gp.add(new JLabel(" "), AwtUtil.getConstraints(0,0,1,1,1,1,true,false));
-      gp.add(new JLabel(rr.getString("too_short")), AwtUtil.getConstraints(0,1,0,0,1,1,false,false));
-      gp.add(new JLabel(" "), AwtUtil.getConstraints(0,2,1,1,1,1,true,false));
-      gp.repaint();
+      showTooShort();
       return;
     }
 
     setWaitCursor();
 
-    int num = cbPastNum.getSelectedIndex()+1;
-    int pastMonths = num;
-    switch(cbPastIntervals.getSelectedIndex()) {
-      case 0:
-        // we accept shorter period to be 3 months
-        num = num<3 ? 3 : num;
-        pastMonths = num;
-        //cbPastNum.setSelectedIndex(num-1);
-        curr = DateUtil.incrementDate(curr, 0, -num, 0);
-        break;
-      case 1:
-        curr = DateUtil.incrementDate(curr, -num, 0, 0);
-        pastMonths = num*12;
-        break;
-    }
-    int tmpCal = mind;
-    
-    // moving starting date to be after first transaction
-    while(tmpCal > curr) {
-      curr = DateUtil.incrementDate(curr, 0, 1, 0);
-      pastMonths--;
-      if (pastMonths <= BalPredConf.INTERVALS) {
-        //cbPastIntervals.setSelectedIndex(0);
-        //cbPastNum.setSelectedIndex(pastMonths-1);
-      }
-    }
-    // curr is now date we can use as starting date for predictions
-    
-    int days = DateUtil.calculateDaysBetween (today, curr);
+    int pastMonths = getPastMonths();
+    curr = getPastStart(curr);
+    // curr is the starting date, the trend moves it after the first transaction
+    TrendForecast trend = new TrendForecast(balanceSeries, curr, today, pastMonths);
+    pastMonths = trend.getPastMonths();
     
     int stop = DateUtil.incrementDate(forecastFutureDate, 0, 0, 1);
     
-    // calculate average balance for first month in past period (AF)
-    tmpCal = DateUtil.incrementDate(curr, 0, 1, 0);
-    long f1 = getAvgPeriodBalance(curr, tmpCal);
-
-    // calculate average balance for last month in past period (AP)
-    tmpCal = DateUtil.incrementDate(today, 0, -1, 0);
-
-    long f2 = getAvgPeriodBalance(tmpCal, today);
-
-    // calculate average monthly changes (AMCH)
-    long amch = Math.round((f2-f1)/(float)pastMonths);
-    
-    // calculate average diff between real balances and averages
-    long realBal[] = new long[(int)pastMonths];
-    long diffBalU = 0, diffBalD = 0;
-    long minb, maxb;
-    tmpCal = DateUtil.incrementDate(today, 0, -pastMonths, 0);
-    int tmpCal1 = DateUtil.incrementDate(tmpCal, 0, 1, 0);
-
-    for(int i=0; i<pastMonths; i++) {
-      realBal[i] = getAvgPeriodBalance(tmpCal, tmpCal1);
-      minb = getMinPeriodBalance(tmpCal, tmpCal1);
-      maxb = getMaxPeriodBalance(tmpCal, tmpCal1);
-      diffBalU = Math.max(diffBalU, Math.abs(realBal[i]-maxb));
-      diffBalD = Math.max(diffBalD, Math.abs(realBal[i]-minb));
-      tmpCal = DateUtil.incrementDate(tmpCal, 0, 1, 0);
-      tmpCal1 = DateUtil.incrementDate(tmpCal1, 0, 1, 0);
-    }
-    //diffBal = Math.round(2.0*diffBal/pastMonths);
-    long currentBalance = realBal[(int)pastMonths-1];
+    long diffBalU = trend.getDiffUp(), diffBalD = trend.getDiffDown();
+    long currentBalance = trend.getStartBalance();
     long currentBalanceTop = currentBalance + diffBalU;
     long currentBalanceBot = currentBalance - diffBalD;
     
@@ -445,7 +391,7 @@ public class BalancePredicter
       vBalancesTop.addElement(currentBalanceTop);
       vBalancesMid.addElement(currentBalance);
       vBalancesBot.addElement(currentBalanceBot);
-      currentBalance += Math.round(1.0*amch/30.44);
+      currentBalance += trend.getDailyChange();
       currentBalanceTop = currentBalance + diffBalU;
       currentBalanceBot = currentBalance - diffBalD;
       curr = DateUtil.incrementDate(curr, 0, 0, 1);
@@ -453,7 +399,7 @@ public class BalancePredicter
     }
 
     // calculate data for past period graph
-    tmpCal = DateUtil.incrementDate(today, 0, -pastMonths, 0);
+    int tmpCal = DateUtil.incrementDate(today, 0, -pastMonths, 0);
     int pastDays = DateUtil.calculateDaysBetween(DateUtil.incrementDate(today, 0, -pastMonths, 0), today); //((today.getTime().getTime()-tmpCal.getTime().getTime())/86400000);
     double xvaluesMid[] = new double[pastDays+vDates.size()];
     double yvaluesMid[] = new double[xvaluesMid.length];
@@ -468,15 +414,13 @@ public class BalancePredicter
     yvaluesTop[k] = yvaluesMid[k];
     xvaluesBot[k] = xvaluesMid[k];
     yvaluesBot[k] = yvaluesMid[k];
+    CurrencyType acctCurr = cacct.getCurrencyType();
     while(tmpCal < today) {
+      long prevBal = balanceSeries.getBalance(tmpCal);
       tmpCal = DateUtil.incrementDate(tmpCal, 0, 0, 1);
       k++;
       xvaluesMid[k] = (double)DateUtil.convertIntDateToLong(tmpCal).getTime();
-      yvaluesMid[k] = yvaluesMid[k-1];
-      for (AbstractTxn txn : txns) {
-        if (txn.getDateInt()==tmpCal)
-          yvaluesMid[k] += txn.getAccount().getCurrencyType().getDoubleValue(txn.getValue());
-      }
+      yvaluesMid[k] = yvaluesMid[k-1] + acctCurr.getDoubleValue(balanceSeries.getBalance(tmpCal) - prevBal);
       xvaluesTop[k] = xvaluesMid[k];
       yvaluesTop[k] = yvaluesMid[k];
       xvaluesBot[k] = xvaluesMid[k];
@@ -513,6 +457,203 @@ public class BalancePredicter
     setDefaultCursor();
   }
 
+  /**
+   * The reminders of an account from today on, only expanded again for
+   * another account or day, or after a reminder changed.
+   */
+  private ReminderForecast getReminderForecast(Account cacct, int today) {
+    if (reminderForecast==null || reminderForecast.getAccount()!=cacct ||
+        reminderForecast.getStartDate()!=today) {
+      reminderForecast = new ReminderForecast(balpredConf.rs, cacct, today);
+    }
+    return reminderForecast;
+  }
+
+  private void showTooShort() {
+    showMessage("too_short");
+  }
+
+  /** Shows a message in place of the graph. */
+  private void showMessage(String key) {
+    gp.add(new JLabel(" "), AwtUtil.getConstraints(0,0,1,1,1,1,true,false));
+    gp.add(new JLabel(rr.getString(key)), AwtUtil.getConstraints(0,1,0,0,1,1,false,false));
+    gp.add(new JLabel(" "), AwtUtil.getConstraints(0,2,1,1,1,1,true,false));
+    gp.repaint();
+  }
+
+  public void calcSimulatedBalance() {
+    calcPrDate();
+    gp.removeAll();
+    BalPredTGraph balTGraph = new BalPredTGraph(null, rr);
+    balTGraph.setBackground(Color.white);
+    balTGraph.addMouseMotionListener(this);
+
+    Account cacct = balpredConf.getAccount();
+    int today = DateUtil.getStrippedDateInt();
+    balanceSeries = new DailyBalanceSeries(cacct, balpredConf.getTxnSet());
+    int mind = balanceSeries.getFirstTxnDate();
+    if (DateUtil.incrementDate(mind, 0, 3, 0) > today) {
+      showTooShort();
+      return;
+    }
+
+    setWaitCursor();
+
+    // moving starting date to be after first transaction
+    int pastStart = getPastStart(today);
+    while(mind > pastStart) {
+      pastStart = DateUtil.incrementDate(pastStart, 0, 1, 0);
+    }
+    int stop = forecastFutureDate;
+
+    // the reminders of the past period are taken out of the flows that are
+    // resampled, and those of the future are added to every path
+    if (simulationReminders==null || simulationReminders.getAccount()!=cacct ||
+        simulationReminders.getStartDate()!=pastStart) {
+      simulationReminders = new ReminderForecast(balpredConf.rs, cacct, pastStart);
+    }
+    long scheduled[] = simulationReminders.getDailyChanges(stop, remindersStatus);
+    // the paths start from the same balance as the reminder forecast, with the
+    // reminders that are overdue today applied
+    long overdue = getReminderForecast(cacct, today).getOverdueChange(0, remindersStatus);
+    MonteCarloForecast simulation =
+      new MonteCarloForecast(balanceSeries, pastStart, today, scheduled, overdue, stop,
+                             MonteCarloForecast.DEFAULT_PATHS);
+
+    // the real balances up to today, then the percentiles of the simulation
+    int dates[] = DailyBalanceSeries.getDates(pastStart, stop);
+    int todayIndex = DateUtil.calculateDaysBetween(pastStart, today);
+    double xvalues[] = new double[dates.length];
+    double yvaluesTop[] = new double[dates.length];
+    double yvaluesMid[] = new double[dates.length];
+    double yvaluesBot[] = new double[dates.length];
+    for (int i=0; i<dates.length; i++) {
+      xvalues[i] = (double)DateUtil.convertIntDateToLong(dates[i]).getTime();
+      if (i <= todayIndex) {
+        yvaluesMid[i] = (double)balanceSeries.getBalance(dates[i]) / 100;
+        yvaluesTop[i] = yvaluesMid[i];
+        yvaluesBot[i] = yvaluesMid[i];
+      } else {
+        int day = i - todayIndex - 1;
+        yvaluesTop[i] = (double)simulation.getHighBalance(day) / 100;
+        yvaluesMid[i] = (double)simulation.getMedianBalance(day) / 100;
+        yvaluesBot[i] = (double)simulation.getLowBalance(day) / 100;
+      }
+    }
+
+    Account.AccountType accType = cacct.getAccountType();
+    boolean kindofloan = 
+      (accType==Account.AccountType.LOAN) ||
+      (accType==Account.AccountType.CREDIT_CARD) ||
+      (accType==Account.AccountType.LIABILITY);
+    int numDays = simulation.getDayCount();
+    if (kindofloan || numDays==0) {
+      balTGraph.setTitle(MessageFormat.format(rr.getString("sim_bands"),
+                                              String.valueOf(simulation.getPathCount())));
+    } else {
+      NumberFormat pctFormat = NumberFormat.getPercentInstance();
+      SimpleDateFormat dateFormat = new SimpleDateFormat(balpredConf.dateFormatStr);
+      balTGraph.setTitle(MessageFormat.format(rr.getString("sim_below_zero"),
+        pctFormat.format(simulation.getBelowZeroChance(Math.min(30, numDays)-1)),
+        pctFormat.format(simulation.getBelowZeroChance(Math.min(90, numDays)-1)),
+        pctFormat.format(simulation.getBelowZeroChance(numDays-1)),
+        dateFormat.format(DateUtil.convertIntDateToLong(stop))));
+    }
+
+    XYGraphDataSet gDataSet[] = new XYGraphDataSet[3];
+    gDataSet[0] = new XYGraphDataSet(null, null, cacct, xvalues, yvaluesTop, Color.blue);
+    gDataSet[1] = new XYGraphDataSet(null, null, cacct, xvalues, yvaluesBot, Color.red);
+    gDataSet[2] = new XYGraphDataSet(null, null, cacct, xvalues, yvaluesMid, Color.black);
+    balpredConf.setGraphModel(new LineGraphModel(gDataSet));
+    LineGraphModel lgm = (LineGraphModel)balpredConf.getGraphModel();
+    lgm.setXAxisLabeler(dateLabeler);
+    lgm.setShowZero(false);
+    lgm.setXAxisType(DataSetUtilities.TYPE_DATE);
+    lgm.setThreeD(false);
+    balTGraph.setModel(lgm);
+    gp.add(balTGraph, AwtUtil.getConstraints(0,0,1,1,1,1,true,true));
+    gp.add(lbBalance, AwtUtil.getConstraints(0,1,1,0,1,1,false,false));
+    setDefaultCursor();
+  }
+
+  public void calcConsolidatedBalance() {
+    calcPrDate();
+    gp.removeAll();
+    BalPredRGraph balRGraph = new BalPredRGraph(null, rr);
+    balRGraph.setBackground(Color.white);
+    balRGraph.addMouseMotionListener(this);
+
+    List<Account> accounts = balpredConf.getConsolidatedAccounts();
+    int today = DateUtil.getStrippedDateInt();
+    int stop = forecastFutureDate;
+    if (accounts.isEmpty()) {
+      showMessage("no_accounts");
+      return;
+    }
+    if (stop < today) return;
+
+    setWaitCursor();
+
+    // the trend forecast builds the daily balances with one pass over the transactions
+    ConsolidatedForecast forecast =
+      new ConsolidatedForecast(balpredConf.getRootAccount(), accounts, today);
+    int firstDate;
+    long balances[][];
+    if (balpredConf.getBasedOn()==balpredConf.basedonReminders) {
+      // the reminders are only expanded again for other accounts, another day or a changed reminder
+      if (consolidatedReminders==null || !consolidatedReminders.getAccounts().equals(accounts) ||
+          consolidatedReminders.getStartDate()!=today) {
+        consolidatedReminders = new ReminderForecast(balpredConf.rs, accounts, today);
+      }
+      firstDate = today;
+      balances = forecast.getReminderBalances(consolidatedReminders, remindersStatus, stop);
+    } else {
+      firstDate = getPastStart(today);
+      balances = forecast.getTrendBalances(firstDate, getPastMonths(), stop);
+    }
+    int dates[] = DailyBalanceSeries.getDates(firstDate, stop);
+    CurrencyType baseCurr = balpredConf.getRootAccount().getCurrencies().getBaseType();
+    long baseBalances[][] = forecast.convertBalances(balances, dates, baseCurr);
+
+    int numAccounts = accounts.size();
+    double xvalues[] = new double[dates.length];
+    double yvaluesC[] = new double[dates.length];
+    for (int day=0; day<dates.length; day++) {
+      xvalues[day] = (double)DateUtil.convertIntDateToLong(dates[day]).getTime();
+    }
+    XYGraphDataSet gDataSet[] = new XYGraphDataSet[numAccounts+1];
+    String labels[] = new String[numAccounts+1];
+    Color colors[] = new Color[numAccounts+1];
+    for (int a=0; a<numAccounts; a++) {
+      double yvalues[] = new double[dates.length];
+      for (int day=0; day<dates.length; day++) {
+        yvalues[day] = (double)baseBalances[a][day];
+        yvaluesC[day] += yvalues[day];
+      }
+      Account acct = accounts.get(a);
+      labels[a] = acct.getAccountName();
+      colors[a] = ACCOUNT_COLORS[a % ACCOUNT_COLORS.length];
+      gDataSet[a] = new XYGraphDataSet(null, null, acct, xvalues, yvalues, colors[a]);
+    }
+    // the combined balance goes last, to be drawn on top
+    labels[numAccounts] = rr.getString("combined_balance");
+    colors[numAccounts] = Color.black;
+    gDataSet[numAccounts] = new XYGraphDataSet(null, null, balpredConf.getRootAccount().getRootAccount(),
+                                                xvalues, yvaluesC, Color.black);
+
+    balpredConf.setGraphModel(new LineGraphModel(gDataSet));
+    LineGraphModel lgm = (LineGraphModel)balpredConf.getGraphModel();
+    lgm.setXAxisLabeler(dateLabeler);
+    lgm.setValueLabeler(new CurrencyLabeler(baseCurr));
+    lgm.setShowZero(false);
+    lgm.setThreeD(false);
+    balRGraph.setLegend(labels, colors);
+    balRGraph.setModel(lgm);
+    gp.add(balRGraph, AwtUtil.getConstraints(0,0,1,1,1,1,true,true));
+    gp.add(lbBalance, AwtUtil.getConstraints(0,1,1,0,1,1,false,false));
+    setDefaultCursor();
+  }
+
   public void mouseMoved(MouseEvent e) {
     /*
     int x,y;
@@ -615,6 +756,59 @@ public class BalancePredicter
     manageDlg.setVisible(true);
   }
 
+  private void manageAccounts() {
+    final List<Account> allAccounts = balpredConf.getAllAccounts();
+    final Set<Account> included = new HashSet<Account>(balpredConf.getConsolidatedAccounts());
+    class AccountsTableModel extends AbstractTableModel {
+      private String[] headNames = new String[] {rr.getString("account"), rr.getString("include")};
+      public int getColumnCount() { return 2; }
+      public int getRowCount() { return allAccounts.size(); }
+      public String getColumnName(int col) {
+        return headNames[col];
+      }
+      public boolean isCellEditable(int row, int col) {
+        return (col==1);
+      }
+      public Object getValueAt(int row, int col) {
+        Account acct = allAccounts.get(row);
+        return col==0 ? (Object)acct : Boolean.valueOf(included.contains(acct));
+      }
+      public void setValueAt(Object value, int row, int col) {
+        if (col==1 && value instanceof Boolean) {
+          if (((Boolean)value).booleanValue()) {
+            included.add(allAccounts.get(row));
+          } else {
+            included.remove(allAccounts.get(row));
+          }
+        }
+        fireTableCellUpdated(row, col);
+      }
+      public Class getColumnClass(int col) {
+        return col==1 ? Boolean.class : Object.class;
+      }
+    };
+    
+    JTable accountsTable = new JTable(new AccountsTableModel());
+    accountsTable.getColumnModel().getColumn(0).setPreferredWidth(200);
+    accountsTable.getColumnModel().getColumn(1).setPreferredWidth(50);
+    accountsTable.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+    accountsTable.setCellSelectionEnabled(true);
+    JScrollPane scrollpane = new JScrollPane(accountsTable);
+    JDialog accountsDlg = new JDialog((Frame) null, rr.getString("choose_accounts"), true);
+    JPanel tp = new JPanel(gbl);
+    tp.add(scrollpane, GridC.getc(0,0).wxy(1,1).fillboth());
+    accountsDlg.getContentPane().add(tp);
+    AwtUtil.setupWindow(accountsDlg, 320, 300, this);
+    accountsDlg.setVisible(true);
+
+    // keep the order of the account list
+    List<Account> accounts = new ArrayList<Account>();
+    for (Account acct : allAccounts) {
+      if (included.contains(acct)) accounts.add(acct);
+    }
+    balpredConf.setConsolidatedAccounts(accounts);
+  }
+
   public void actionPerformed(ActionEvent e) {
     Object src = e.getSource();
     if (src==balpredConf.rbReminders) {
@@ -629,9 +823,16 @@ public class BalancePredicter
     cbPastIntervals.setVisible(!boRem);
     cbPastNum.setVisible(!boRem);
     lbPast.setVisible(!boRem);
-    btReminders.setVisible(boRem);
+    btReminders.setVisible(boRem || balpredConf.isSimulation());
+    balpredConf.chkSimulation.setVisible(!boRem);
+    lbSmoothing.setVisible(boRem);
+    smoothingPanel.setVisible(boRem);
+    btAccounts.setVisible(balpredConf.isConsolidated());
+    balpredConf.cbAccounts.setEnabled(!balpredConf.isConsolidated());
     if (src==btReminders) {
       manageReminders();
+    } else if (src==btAccounts) {
+      manageAccounts();
     } else if(src==balpredConf.cbAccounts) {
 //      Account.AccountType accType = balpredConf.getAccount().getAccountType();
 //      if (balpredConf.getAccount().getBalance()>=0 && (accType==Account.AccountType.CREDIT_CARD || accType==Account.AccountType.LIABILITY)) {
@@ -648,12 +849,41 @@ public class BalancePredicter
         cbPastNum.setVisible(true);
         lbPast.setVisible(true);
         btReminders.setVisible(false);
+        balpredConf.chkSimulation.setVisible(true);
+        lbSmoothing.setVisible(false);
+        smoothingPanel.setVisible(false);
       }
     }
     
     updateGraph();
   }
 
+  /** The number of months in the past period used for the trend. */
+  private int getPastMonths() {
+    int num = cbPastNum.getSelectedIndex()+1;
+    switch(cbPastIntervals.getSelectedIndex()) {
+      case 0:
+        // we accept shorter period to be 3 months
+        return num<3 ? 3 : num;
+      case 1:
+        return num*12;
+    }
+    return num;
+  }
+
+  /** The first day of the past period used for the trend. */
+  private int getPastStart(int today) {
+    int num = cbPastNum.getSelectedIndex()+1;
+    switch(cbPastIntervals.getSelectedIndex()) {
+      case 0:
+        num = num<3 ? 3 : num;
+        return DateUtil.incrementDate(today, 0, -num, 0);
+      case 1:
+        return DateUtil.incrementDate(today, -num, 0, 0);
+    }
+    return today;
+  }
+
   private void calcPrDate() {
     int tmp = DateUtil.getStrippedDateInt();
     int num = cbFutuNum.getSelectedIndex()+1;
@@ -674,88 +904,30 @@ public class BalancePredicter
     forecastFutureDate = tmp;
   }
 
-  public long getPastBalance(int d) {
-    long bal = balpredConf.getAccount().getBalance();
-    int td;
-    TxnSet txns = balpredConf.getTxnSet();
-    for (AbstractTxn txn : txns) {
-      td = txn.getDateInt();
-      if (td > d) {
-        bal -= txn.getValue();
-      }
+  private DailyBalanceSeries getBalanceSeries() {
+    Account acct = balpredConf.getAccount();
+    if (balanceSeries==null || balanceSeries.getAccount()!=acct) {
+      balanceSeries = new DailyBalanceSeries(acct, balpredConf.getTxnSet());
     }
-    return bal;
+    return balanceSeries;
+  }
+
+  public long getPastBalance(int d) {
+    return getBalanceSeries().getBalance(d);
   }
 
   public long getAvgPeriodBalance(int d1, int d2) {
-    long sum = 0, changes;
-    int days = DateUtil.calculateDaysBetween(d1, d2);
-    long bal = getPastBalance(d1);
-    TxnSet txns = balpredConf.returnTxnSet();
-    for (int j=0; j<days; j++) {
-      d1 = DateUtil.incrementDate(d1,0,0,1);
-      changes = 0;
-      for (AbstractTxn txn : txns) {
-        if (txn.getDateInt()==d1) {
-          changes += txn.getValue();
-        }
-      }
-      bal = bal + changes;
-      sum += bal;
-    }
-    return Math.round(1.0*sum/days);
+    return getBalanceSeries().getAverage(DateUtil.incrementDate(d1,0,0,1), d2);
   }
   
   public long getMaxPeriodBalance(int d1, int d2) {
-    long changes;
-    int days = DateUtil.calculateDaysBetween(d1, d2);
-    long bal = getPastBalance(d1);
-    long maxb = bal;
-    TxnSet txns = balpredConf.returnTxnSet();
-    for (int j=0; j<days; j++) {
-      d1 = DateUtil.incrementDate(d1,0,0,1);
-      changes = 0;
-      for (AbstractTxn txn : txns) {
-        if (txn.getDateInt()==d1) {
-          changes += txn.getValue();
-        }
-      }
-      bal = bal + changes;
-      maxb = Math.max(maxb, bal);
-    }
-    return maxb;
+    return getBalanceSeries().getMax(d1, d2);
   }
 
   public long getMinPeriodBalance(int d1, int d2) {
-    long changes;
-    int days = DateUtil.calculateDaysBetween(d1, d2);
-    long bal = getPastBalance(d1);
-    long minb = bal;
-    TxnSet txns = balpredConf.returnTxnSet();
-    for (int j=0;j<days;j++) {
-      d1 = DateUtil.incrementDate(d1,0,0,1);
-      changes = 0;
-      for (AbstractTxn txn : txns) {
-        if (txn.getDateInt()==d1) {
-          changes += txn.getValue();
-        }
-      }
-      bal = bal + changes;
-      minb = Math.min(minb, bal);
-    }
-    return minb;
+    return getBalanceSeries().getMin(d1, d2);
   }
 
-  class DataPoint {
-    long date;
-    long balance;
-
-    DataPoint(long date, long balance) {
-      this.date = date;
-      this.balance = balance;
-    }
-  }
-  
   class CurrencyLabeler
     implements ValueLabeler
   {
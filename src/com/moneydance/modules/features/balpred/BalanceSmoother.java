@@ -0,0 +1,115 @@
+/************************************************************\
+ *        Copyright 2017 The Infinite Kind, Limited         *
+\************************************************************/
+
+package com.moneydance.modules.features.balpred;
+
+import java.util.*;
+
+/**
+ * Smoothed curves of a series of daily balances, each computed in a single
+ * pass over the balances.
+ */
+class BalanceSmoother {
+  public static final int MOVING_AVERAGE = 0;
+  public static final int EXPONENTIAL = 1;
+  public static final int HOLT = 2;
+  public static final int WEEKDAY = 3;
+
+  /** Resource keys of the smoother names, in the order of the constants above. */
+  public static final String NAME_KEYS[] = {
+    "two_weeks", "exponential_avg", "holt_trend", "weekday_avg"
+  };
+
+  public static final int AVG_HALF_WIDTH = 7;
+  public static final double ALPHA = 0.1;
+  public static final double BETA = 0.05;
+  public static final double GAMMA = 0.3;
+
+  /**
+   * Smooth the balances with the given type of smoother.
+   * @param firstWeekday the Calendar.DAY_OF_WEEK of the first balance
+   */
+  public static double[] smooth(int type, double values[], int firstWeekday) {
+    switch(type) {
+      case EXPONENTIAL:
+        return exponential(values, ALPHA);
+      case HOLT:
+        return holt(values, ALPHA, BETA);
+      case WEEKDAY:
+        return weekdaySeasonal(values, firstWeekday, ALPHA, GAMMA);
+      default:
+        return movingAverage(values, AVG_HALF_WIDTH);
+    }
+  }
+
+  /**
+   * The average of each value with the halfWidth values on either side,
+   * using a running sum.  Places in the window past either end of the series
+   * count as the value itself.
+   */
+  public static double[] movingAverage(double values[], int halfWidth) {
+    int n = values.length;
+    int width = 2*halfWidth + 1;
+    double result[] = new double[n];
+    double sum = 0;
+    int lo = 0;
+    int hi = -1;  // the values in the window are lo..hi
+    for (int i=0; i<n; i++) {
+      while (hi < Math.min(n-1, i+halfWidth)) sum += values[++hi];
+      while (lo < i-halfWidth) sum -= values[lo++];
+      double avg = (sum + (width - (hi-lo+1)) * values[i]) / width;
+      result[i] = Math.round(avg);
+    }
+    return result;
+  }
+
+  /** Simple exponential smoothing. */
+  public static double[] exponential(double values[], double alpha) {
+    double result[] = new double[values.length];
+    if (values.length==0) return result;
+    double level = values[0];
+    for (int i=0; i<values.length; i++) {
+      level = alpha*values[i] + (1-alpha)*level;
+      result[i] = level;
+    }
+    return result;
+  }
+
+  /** Holt's linear trend smoothing, a level and a trend per day. */
+  public static double[] holt(double values[], double alpha, double beta) {
+    double result[] = new double[values.length];
+    if (values.length==0) return result;
+    double level = values[0];
+    double trend = 0;
+    for (int i=0; i<values.length; i++) {
+      double lastLevel = level;
+      level = alpha*values[i] + (1-alpha)*(level + trend);
+      trend = beta*(level - lastLevel) + (1-beta)*trend;
+      result[i] = level;
+    }
+    return result;
+  }
+
+  /**
+   * Exponential smoothing with an additive adjustment for each day of the
+   * week, for balances that move with a weekly pattern.
+   * @param firstWeekday the Calendar.DAY_OF_WEEK of the first value
+   */
+  public static double[] weekdaySeasonal(double values[], int firstWeekday,
+                                         double alpha, double gamma)
+  {
+    double result[] = new double[values.length];
+    if (values.length==0) return result;
+    double seasons[] = new double[7];
+    double level = values[0];
+    int weekday = (firstWeekday - Calendar.SUNDAY + 7) % 7;
+    for (int i=0; i<values.length; i++) {
+      level = alpha*(values[i] - seasons[weekday]) + (1-alpha)*level;
+      seasons[weekday] = gamma*(values[i] - level) + (1-gamma)*seasons[weekday];
+      result[i] = level + seasons[weekday];
+      weekday = (weekday + 1) % 7;
+    }
+    return result;
+  }
+}
@@ -0,0 +1,154 @@
+/************************************************************\
+ *        Copyright 2017 The Infinite Kind, Limited         *
+\************************************************************/
+
+package com.moneydance.modules.features.balpred;
+
+import com.infinitekind.moneydance.model.*;
+import com.infinitekind.util.*;
+
+import java.util.*;
+
+/**
+ * The forecast of a set of accounts together.  The daily balances of all of
+ * the accounts are built with one pass over the whole transaction set, the
+ * first time the trend forecast needs them, and the reminders of all of the
+ * accounts are expanded together by a shared ReminderForecast.  The balances of each account are forecast in its own
+ * currency and then converted to the base currency, where they add up to the
+ * combined balance.
+ */
+class ConsolidatedForecast {
+  private AccountBook book;
+  private List<Account> accounts;
+  private DailyBalanceSeries series[] = null;
+  private int today;
+
+  ConsolidatedForecast(AccountBook book, List<Account> accounts, int today) {
+    this.book = book;
+    this.accounts = new ArrayList<Account>(accounts);
+    this.today = today;
+  }
+
+  public int getAccountCount() { return accounts.size(); }
+  public Account getAccount(int acctIndex) { return accounts.get(acctIndex); }
+  public DailyBalanceSeries getSeries(int acctIndex) { return getAllSeries()[acctIndex]; }
+
+  /**
+   * The daily balances of each account, built with one pass over the
+   * transaction set the first time they are asked for.
+   */
+  private DailyBalanceSeries[] getAllSeries() {
+    if (series!=null) return series;
+    int numAccounts = accounts.size();
+    HashMap<Account,Integer> indexes = new HashMap<Account,Integer>();
+    for (int a=0; a<numAccounts; a++) {
+      indexes.put(accounts.get(a), a);
+    }
+
+    // collect the date and value of every transaction of the accounts
+    int first[] = new int[numAccounts];
+    int last[] = new int[numAccounts];
+    Arrays.fill(first, today);
+    Arrays.fill(last, today);
+    int counts[] = new int[numAccounts];
+    int txnDates[][] = new int[numAccounts][64];
+    long txnValues[][] = new long[numAccounts][64];
+    for (AbstractTxn txn : book.getTransactionSet().iterableTxns()) {
+      Integer index = indexes.get(txn.getAccount());
+      if (index==null) continue;
+      int a = index.intValue();
+      int td = txn.getDateInt();
+      if (counts[a]==txnDates[a].length) {
+        txnDates[a] = Arrays.copyOf(txnDates[a], counts[a]*2);
+        txnValues[a] = Arrays.copyOf(txnValues[a], counts[a]*2);
+      }
+      txnDates[a][counts[a]] = td;
+      txnValues[a][counts[a]++] = txn.getValue();
+      first[a] = Math.min(first[a], td);
+      last[a] = Math.max(last[a], td);
+    }
+
+    // bucket them by day for each account
+    series = new DailyBalanceSeries[numAccounts];
+    for (int a=0; a<numAccounts; a++) {
+      int start = DateUtil.incrementDate(first[a], 0, 0, -1);
+      long changes[] = new long[DateUtil.calculateDaysBetween(start, last[a]) + 1];
+      for (int i=0; i<counts[a]; i++) {
+        changes[DateUtil.calculateDaysBetween(start, txnDates[a][i])] += txnValues[a][i];
+      }
+      series[a] = new DailyBalanceSeries(accounts.get(a), start, first[a], changes);
+    }
+    return series;
+  }
+
+  /**
+   * The balances of each account forecast from the enabled reminders, for
+   * each day from today up to and including stop, in the account's currency.
+   * @param reminders the reminders of the same accounts, in the same order
+   */
+  public long[][] getReminderBalances(ReminderForecast reminders,
+                                      Map<Reminder,Boolean> remindersStatus, int stop)
+  {
+    long balances[][] = new long[accounts.size()][];
+    for (int a=0; a<balances.length; a++) {
+      long bal = accounts.get(a).getCurrentBalance() + reminders.getOverdueChange(a, remindersStatus);
+      balances[a] = reminders.getDailyChanges(a, stop, remindersStatus);
+      for (int day=0; day<balances[a].length; day++) {
+        bal += balances[a][day];
+        balances[a][day] = bal;
+      }
+    }
+    return balances;
+  }
+
+  /**
+   * The balances of each account for each day from the start of the past
+   * period up to and including stop, in the account's currency.  Past days
+   * have the real balance and the days from today on follow the trend of
+   * the past period.
+   */
+  public long[][] getTrendBalances(int pastStart, int pastMonths, int stop) {
+    int dates[] = DailyBalanceSeries.getDates(pastStart, stop);
+    DailyBalanceSeries series[] = getAllSeries();
+    long balances[][] = new long[accounts.size()][dates.length];
+    for (int a=0; a<balances.length; a++) {
+      Account.AccountType accType = accounts.get(a).getAccountType();
+      boolean kindofloan =
+        (accType==Account.AccountType.LOAN) ||
+        (accType==Account.AccountType.CREDIT_CARD) ||
+        (accType==Account.AccountType.LIABILITY);
+      TrendForecast trend = new TrendForecast(series[a], pastStart, today, pastMonths);
+      long bal = trend.getStartBalance();
+      for (int day=0; day<dates.length; day++) {
+        if (dates[day] < today) {
+          balances[a][day] = series[a].getBalance(dates[day]);
+        } else {
+          // a paid off loan stays paid off
+          balances[a][day] = (kindofloan && bal>0) ? 0 : bal;
+          bal += trend.getDailyChange();
+        }
+      }
+    }
+    return balances;
+  }
+
+  /**
+   * Converts the balances of each account to a currency.
+   * @param dates the date of each balance
+   */
+  public long[][] convertBalances(long balances[][], int dates[], CurrencyType toCurr) {
+    long result[][] = new long[balances.length][];
+    for (int a=0; a<balances.length; a++) {
+      CurrencyType fromCurr = accounts.get(a).getCurrencyType();
+      if (fromCurr==toCurr) {
+        result[a] = balances[a];
+        continue;
+      }
+      result[a] = new long[balances[a].length];
+      for (int day=0; day<balances[a].length; day++) {
+        result[a][day] = CurrencyUtil.convertValue(balances[a][day], fromCurr, toCurr, dates[day]);
+      }
+    }
+    return result;
+  }
+}
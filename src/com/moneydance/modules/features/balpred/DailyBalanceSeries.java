@@ -0,0 +1,163 @@
+/************************************************************\
+ *        Copyright 2017 The Infinite Kind, Limited         *
+\************************************************************/
+
+package com.moneydance.modules.features.balpred;
+
+import com.infinitekind.moneydance.model.*;
+import com.infinitekind.util.*;
+
+/**
+ * The balance of an account at the end of every day from the day before its
+ * first transaction up to today or its last transaction, built with one pass
+ * through the account's transactions.  Prefix sums give the sum and average
+ * of the balances over any range of days, and sparse tables give the minimum
+ * and maximum, all without looking at the transactions again.
+ *
+ * Dates before the series use the balance before the first transaction and
+ * dates after it use the account's balance.
+ */
+class DailyBalanceSeries {
+  private Account account;
+  private int startDate;
+  private int firstTxnDate;
+  private long balances[];
+  private long prefixSums[];  // prefixSums[i] is the sum of balances[0..i-1]
+  private long minTable[][];  // minTable[k][i] is the minimum of balances[i..i+2^k-1]
+  private long maxTable[][];
+
+  DailyBalanceSeries(Account account, TxnSet txns) {
+    int today = DateUtil.getStrippedDateInt();
+    int first = today;
+    int last = today;
+    for (AbstractTxn txn : txns) {
+      int td = txn.getDateInt();
+      first = Math.min(first, td);
+      last = Math.max(last, td);
+    }
+    int start = DateUtil.incrementDate(first, 0, 0, -1);
+
+    // bucket the transactions by day
+    long changes[] = new long[DateUtil.calculateDaysBetween(start, last) + 1];
+    for (AbstractTxn txn : txns) {
+      changes[DateUtil.calculateDaysBetween(start, txn.getDateInt())] += txn.getValue();
+    }
+    init(account, start, first, changes);
+  }
+
+  /**
+   * Builds the series from transactions already bucketed by day.
+   * @param startDate the day before the first transaction
+   * @param firstTxnDate the date of the first transaction
+   * @param changes the total of the transactions on each day from startDate
+   */
+  DailyBalanceSeries(Account account, int startDate, int firstTxnDate, long changes[]) {
+    init(account, startDate, firstTxnDate, changes);
+  }
+
+  private void init(Account account, int startDate, int firstTxnDate, long changes[]) {
+    this.account = account;
+    this.startDate = startDate;
+    this.firstTxnDate = firstTxnDate;
+    int numDays = changes.length;
+
+    // turn the daily changes into balances working back from the current balance
+    balances = new long[numDays];
+    long bal = account.getBalance();
+    for (int i=numDays-1; i>=0; i--) {
+      balances[i] = bal;
+      bal -= changes[i];
+    }
+
+    prefixSums = new long[numDays+1];
+    for (int i=0; i<numDays; i++) {
+      prefixSums[i+1] = prefixSums[i] + balances[i];
+    }
+
+    int levels = 32 - Integer.numberOfLeadingZeros(numDays);
+    minTable = new long[levels][];
+    maxTable = new long[levels][];
+    minTable[0] = balances;
+    maxTable[0] = balances;
+    for (int k=1; k<levels; k++) {
+      int half = 1 << (k-1);
+      int size = numDays - (1 << k) + 1;
+      minTable[k] = new long[size];
+      maxTable[k] = new long[size];
+      for (int i=0; i<size; i++) {
+        minTable[k][i] = Math.min(minTable[k-1][i], minTable[k-1][i+half]);
+        maxTable[k][i] = Math.max(maxTable[k-1][i], maxTable[k-1][i+half]);
+      }
+    }
+  }
+
+  public Account getAccount() { return account; }
+
+  /** The date of the earliest transaction, or today if there are none. */
+  public int getFirstTxnDate() { return firstTxnDate; }
+
+  /** The balance at the end of the given day. */
+  public long getBalance(int date) {
+    return balances[clamp(getIndex(date))];
+  }
+
+  /** The average of the balances at the end of each day from d1 to d2, inclusive. */
+  public long getAverage(int d1, int d2) {
+    int days = DateUtil.calculateDaysBetween(d1, d2) + 1;
+    if (days <= 0) return 0;
+    return Math.round(1.0*getSum(d1, d2)/days);
+  }
+
+  /** The sum of the balances at the end of each day from d1 to d2, inclusive. */
+  public long getSum(int d1, int d2) {
+    int from = getIndex(d1);
+    int to = getIndex(d2);
+    if (to < from) return 0;
+    int last = balances.length - 1;
+    long sum = 0;
+    // days outside the series keep the balance of the nearest end
+    if (from < 0) sum += (long)(Math.min(to, -1) - from + 1) * balances[0];
+    if (to > last) sum += (long)(to - Math.max(from, last+1) + 1) * balances[last];
+    int lo = Math.max(from, 0);
+    int hi = Math.min(to, last);
+    if (lo <= hi) sum += prefixSums[hi+1] - prefixSums[lo];
+    return sum;
+  }
+
+  /** The lowest balance at the end of a day from d1 to d2, inclusive. */
+  public long getMin(int d1, int d2) {
+    int lo = clamp(getIndex(d1));
+    int hi = clamp(getIndex(d2));
+    if (hi < lo) return balances[lo];
+    int k = 31 - Integer.numberOfLeadingZeros(hi - lo + 1);
+    return Math.min(minTable[k][lo], minTable[k][hi - (1 << k) + 1]);
+  }
+
+  /** The highest balance at the end of a day from d1 to d2, inclusive. */
+  public long getMax(int d1, int d2) {
+    int lo = clamp(getIndex(d1));
+    int hi = clamp(getIndex(d2));
+    if (hi < lo) return balances[lo];
+    int k = 31 - Integer.numberOfLeadingZeros(hi - lo + 1);
+    return Math.max(maxTable[k][lo], maxTable[k][hi - (1 << k) + 1]);
+  }
+
+  /** Every date from d1 up to and including d2. */
+  public static int[] getDates(int d1, int d2) {
+    int dates[] = new int[Math.max(DateUtil.calculateDaysBetween(d1, d2) + 1, 0)];
+    int curr = d1;
+    for (int day=0; day<dates.length; day++) {
+      dates[day] = curr;
+      curr = DateUtil.incrementDate(curr, 0, 0, 1);
+    }
+    return dates;
+  }
+
+  private int getIndex(int date) {
+    return DateUtil.calculateDaysBetween(startDate, date);
+  }
+
+  private int clamp(int index) {
+    return Math.max(0, Math.min(balances.length - 1, index));
+  }
+}
@@ -0,0 +1,232 @@
+/************************************************************\
+ *        Copyright 2017 The Infinite Kind, Limited         *
+\************************************************************/
+
+package com.moneydance.modules.features.balpred;
+
+import com.infinitekind.util.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * A stochastic forecast of an account's balance.  The daily net flows of the
+ * past period, less what the reminders scheduled on those days, are split
+ * into calendar months, leaving out the partial months at either end unless
+ * there is no whole month.  Each simulated path fills every future calendar
+ * month with the flows of a month of the past picked at random, day of the
+ * month by day of the month, adds the reminders scheduled for the future,
+ * and accumulates them from today's balance with the overdue reminders
+ * applied, as in the reminder forecast.  Days of the future month past the
+ * end of the sampled month, such as the 31st filled from a 30 day month,
+ * get no unscheduled flow rather than repeating the start of the month.
+ *
+ * The paths are run in parallel on all processors, each thread on its own
+ * range of paths, and give the 5th, 50th and 95th percentile of the balance
+ * on each day and the share of the paths that went below zero on or before
+ * each day.  A fixed seed keeps the forecast the same from one redraw to
+ * the next.
+ */
+class MonteCarloForecast {
+  public static final int DEFAULT_PATHS = 10000;
+  private static final long SEED = 0x5DEECE66DL;
+  /** Limit on the balances kept in memory, fewer paths are run for very long forecasts. */
+  private static final int MAX_BALANCES = 4000000;
+  /** Paths per task, each with its own seed so the result does not depend on the number of threads. */
+  private static final int PATHS_PER_TASK = 500;
+
+  private int numPaths;
+  private long p5[];
+  private long p50[];
+  private long p95[];
+  private double belowZero[];
+
+  /**
+   * @param series the daily balances of the account
+   * @param pastStart the first day of the past period to resample
+   * @param scheduled the change from the enabled reminders on each day from
+   *                  pastStart up to and including stop
+   * @param stop the last day of the forecast
+   * @param overdue the change from the enabled reminders overdue as of today
+   */
+  MonteCarloForecast(DailyBalanceSeries series, int pastStart, int today,
+                     long scheduled[], long overdue, int stop, int numPaths)
+  {
+    int todayIndex = DateUtil.calculateDaysBetween(pastStart, today);
+    int numDays = Math.max(DateUtil.calculateDaysBetween(today, stop), 0);
+    numPaths = Math.max(1, Math.min(numPaths, MAX_BALANCES/Math.max(numDays, 1)));
+    this.numPaths = numPaths;
+
+    // the unscheduled flow of each past day, and the months they fall in
+    int dates[] = DailyBalanceSeries.getDates(pastStart, today);
+    final long flows[] = new long[Math.max(todayIndex, 0)];
+    for (int i=0; i<flows.length; i++) {
+      flows[i] = series.getBalance(dates[i]) - series.getBalance(DateUtil.incrementDate(dates[i], 0, 0, -1))
+        - scheduled[i];
+    }
+    int monthStarts[] = getMonthStarts(pastStart, today);
+    int numMonths = flows.length==0 ? 0 : monthStarts.length;
+    List<Integer> wholeMonths = new ArrayList<Integer>();
+    for (int m=0; m<numMonths; m++) {
+      boolean wholeStart = m > 0 || getDayOfMonth(pastStart)==0;
+      boolean wholeEnd = m+1 < numMonths || getDayOfMonth(today)==0;
+      if (wholeStart && wholeEnd) wholeMonths.add(m);
+    }
+    if (wholeMonths.isEmpty()) {
+      for (int m=0; m<numMonths; m++) wholeMonths.add(m);
+    }
+    final int numBlocks = wholeMonths.size();
+    final int blockStart[] = new int[numBlocks];
+    final int blockLength[] = new int[numBlocks];
+    for (int b=0; b<numBlocks; b++) {
+      int m = wholeMonths.get(b);
+      blockStart[b] = monthStarts[m];
+      blockLength[b] = (m+1<numMonths ? monthStarts[m+1] : flows.length) - monthStarts[m];
+    }
+
+    // the calendar month of each future day and its day of the month
+    int tomorrow = DateUtil.incrementDate(today, 0, 0, 1);
+    int segmentStarts[] = getMonthStarts(tomorrow, DateUtil.incrementDate(stop, 0, 0, 1));
+    final int numSegments = segmentStarts.length;
+    final int daySegment[] = new int[numDays];
+    final int dayOffset[] = new int[numDays];
+    final long futureScheduled[] = new long[numDays];
+    for (int j=0, s=0, date=tomorrow; j<numDays; j++, date=DateUtil.incrementDate(date, 0, 0, 1)) {
+      while (s+1<numSegments && segmentStarts[s+1]<=j) s++;
+      daySegment[j] = s;
+      dayOffset[j] = getDayOfMonth(date);
+      futureScheduled[j] = scheduled[todayIndex+1+j];
+    }
+
+    // today's and the overdue reminders are added to today's balance, as in
+    // the reminder forecast
+    final long startBalance = series.getBalance(today) + overdue + scheduled[todayIndex];
+    final long paths[][] = new long[numDays][numPaths];
+    final int firstBelow[] = new int[numDays];
+
+    int numTasks = (numPaths + PATHS_PER_TASK - 1) / PATHS_PER_TASK;
+    int numThreads = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), numTasks));
+    List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+    for (int t=0; t<numTasks; t++) {
+      final int fromPath = t*PATHS_PER_TASK;
+      final int toPath = Math.min(numPaths, fromPath+PATHS_PER_TASK);
+      final long seed = SEED + t;
+      tasks.add(new Callable<Object>() {
+        public Object call() {
+          Random random = new Random(seed);
+          int blocks[] = new int[numSegments];
+          int below[] = new int[firstBelow.length];
+          for (int p=fromPath; p<toPath; p++) {
+            for (int s=0; s<numSegments; s++) {
+              blocks[s] = numBlocks==0 ? -1 : random.nextInt(numBlocks);
+            }
+            long bal = startBalance;
+            boolean wentBelow = bal < 0;
+            for (int j=0; j<daySegment.length; j++) {
+              int b = blocks[daySegment[j]];
+              if (b >= 0 && dayOffset[j] < blockLength[b]) bal += flows[blockStart[b] + dayOffset[j]];
+              bal += futureScheduled[j];
+              paths[j][p] = bal;
+              if (!wentBelow && bal < 0) {
+                wentBelow = true;
+                below[j]++;
+              }
+            }
+          }
+          synchronized(firstBelow) {
+            for (int j=0; j<below.length; j++) firstBelow[j] += below[j];
+          }
+          return null;
+        }
+      });
+    }
+    runAll(tasks, numThreads);
+
+    // the percentiles of each day, again split across the threads
+    p5 = new long[numDays];
+    p50 = new long[numDays];
+    p95 = new long[numDays];
+    tasks.clear();
+    for (int t=0; t<numThreads; t++) {
+      final int fromDay = (int)((long)numDays*t/numThreads);
+      final int toDay = (int)((long)numDays*(t+1)/numThreads);
+      tasks.add(new Callable<Object>() {
+        public Object call() {
+          for (int j=fromDay; j<toDay; j++) {
+            long balances[] = paths[j];
+            Arrays.sort(balances);
+            p5[j] = balances[getRank(0.05)];
+            p50[j] = balances[getRank(0.50)];
+            p95[j] = balances[getRank(0.95)];
+          }
+          return null;
+        }
+      });
+    }
+    runAll(tasks, numThreads);
+
+    belowZero = new double[numDays];
+    int count = startBalance < 0 ? numPaths : 0;
+    for (int j=0; j<numDays; j++) {
+      count += firstBelow[j];
+      belowZero[j] = numPaths==0 ? 0 : (double)count/numPaths;
+    }
+  }
+
+  public int getPathCount() { return numPaths; }
+  /** The number of days forecast, starting with tomorrow. */
+  public int getDayCount() { return p50.length; }
+  public long getLowBalance(int day) { return p5[day]; }
+  public long getMedianBalance(int day) { return p50[day]; }
+  public long getHighBalance(int day) { return p95[day]; }
+  /** The share of the paths whose balance went below zero on or before the day. */
+  public double getBelowZeroChance(int day) { return belowZero[day]; }
+
+  private int getRank(double percentile) {
+    return (int)Math.round(percentile*(numPaths-1));
+  }
+
+  /**
+   * The offsets from d1 of d1 and of the first day of each calendar month
+   * after it, up to d2, exclusive.
+   */
+  private static int[] getMonthStarts(int d1, int d2) {
+    List<Integer> starts = new ArrayList<Integer>();
+    int firstOfMonth = d1 - getDayOfMonth(d1);
+    for (int m=0, d=d1; d<d2; d=DateUtil.incrementDate(firstOfMonth, 0, ++m, 0)) {
+      starts.add(DateUtil.calculateDaysBetween(d1, d));
+    }
+    int result[] = new int[starts.size()];
+    for (int i=0; i<result.length; i++) result[i] = starts.get(i);
+    return result;
+  }
+
+  /** The day of the month of a yyyymmdd date, counted from 0. */
+  private static int getDayOfMonth(int date) {
+    return date % 100 - 1;
+  }
+
+  private static void runAll(List<Callable<Object>> tasks, int numThreads) {
+    if (numThreads <= 1) {
+      try {
+        for (Callable<Object> task : tasks) task.call();
+      } catch (Exception e) {
+        throw new RuntimeException(e);
+      }
+      return;
+    }
+    ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+    try {
+      for (Future<Object> result : executor.invokeAll(tasks)) {
+        result.get();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    } catch (ExecutionException e) {
+      throw new RuntimeException(e.getCause());
+    } finally {
+      executor.shutdown();
+    }
+  }
+}
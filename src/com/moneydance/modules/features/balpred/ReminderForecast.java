@@ -0,0 +1,192 @@
+/************************************************************\
+ *        Copyright 2017 The Infinite Kind, Limited         *
+\************************************************************/
+
+package com.moneydance.modules.features.balpred;
+
+import com.infinitekind.moneydance.model.*;
+import com.infinitekind.util.*;
+
+import java.util.*;
+
+/**
+ * The occurrences of the transaction reminders that affect a set of accounts,
+ * from a start date up to the end of the forecast.  Each reminder's effect on
+ * each account is worked out once, already converted to the account's
+ * currency, and its occurrence dates are found once, however many of the
+ * accounts it touches.  Reminders can then be switched on and off, and the
+ * forecast shortened, without expanding them again.  A longer forecast only
+ * expands the new days.
+ */
+class ReminderForecast {
+  private List<Account> accounts;
+  private int startDate;
+  private int endDate;
+  private int numDays = 0;
+  private List<Expansion> expansions = new ArrayList<Expansion>();
+
+  ReminderForecast(ReminderSet rs, Account account, int startDate) {
+    this(rs, Collections.singletonList(account), startDate);
+  }
+
+  ReminderForecast(ReminderSet rs, List<Account> accounts, int startDate) {
+    this.accounts = new ArrayList<Account>(accounts);
+    this.startDate = startDate;
+    this.endDate = DateUtil.incrementDate(startDate, 0, 0, -1);
+    int numAccounts = this.accounts.size();
+    for(Reminder r : rs.getAllReminders()) {
+      if(r.getReminderType() != Reminder.Type.TRANSACTION) continue;
+      ParentTxn ptxn = r.getTransaction();
+      if(ptxn==null) continue;
+      Expansion exp = new Expansion(r, numAccounts);
+      boolean affected = false;
+      for(int a=0; a<numAccounts; a++) {
+        Account account = this.accounts.get(a);
+        exp.changes[a] = getAccountChange(ptxn, account);
+        exp.overdueValues[a] = getOverdueValue(ptxn, account);
+        exp.hasChanges |= exp.changes[a]!=0;
+        affected |= exp.changes[a]!=0 || exp.overdueValues[a]!=0;
+      }
+      if(affected) expansions.add(exp);
+    }
+  }
+
+  /** The first account, the only one for a single account forecast. */
+  public Account getAccount() { return accounts.get(0); }
+  public List<Account> getAccounts() { return accounts; }
+  public int getStartDate() { return startDate; }
+
+  /**
+   * The total change to the first account from the enabled reminders on each
+   * day from the start date up to and including the given end date.
+   */
+  public long[] getDailyChanges(int stop, Map<Reminder,Boolean> remindersStatus) {
+    return getDailyChanges(0, stop, remindersStatus);
+  }
+
+  /**
+   * The total change to an account from the enabled reminders on each day
+   * from the start date up to and including the given end date.
+   * @param acctIndex the position of the account in getAccounts()
+   */
+  public long[] getDailyChanges(int acctIndex, int stop, Map<Reminder,Boolean> remindersStatus) {
+    expandTo(stop);
+    int days = DateUtil.calculateDaysBetween(startDate, stop) + 1;
+    long changes[] = new long[Math.max(days, 0)];
+    for(Expansion exp : expansions) {
+      long change = exp.changes[acctIndex];
+      if(change==0) continue;
+      if(!Boolean.TRUE.equals(remindersStatus.get(exp.reminder))) continue;
+      for(int i=0; i<exp.count; i++) {
+        int day = exp.days[i];
+        if(day >= changes.length) break;
+        changes[day] += change;
+      }
+    }
+    return changes;
+  }
+
+  /**
+   * The change to an account from the enabled reminders that are overdue as
+   * of the start date, for every overdue occurrence.
+   */
+  public long getOverdueChange(int acctIndex, Map<Reminder,Boolean> remindersStatus) {
+    long change = 0;
+    Calendar startCal = null;
+    for(Expansion exp : expansions) {
+      long txnValue = exp.overdueValues[acctIndex];
+      if(txnValue==0) continue;
+      Reminder tr = exp.reminder;
+      if(!Boolean.TRUE.equals(remindersStatus.get(tr))) continue;
+      if(Math.max(tr.getDateAcknowledgedInt(), tr.getInitialDateInt())>=startDate) continue;
+      if(exp.pastDueCount < 0) {
+        if(startCal==null) startCal = Calendar.getInstance();
+        DateUtil.setCalendarDate(startCal, startDate);
+        exp.pastDueCount = tr.getPastDueDates(startCal).size();
+      }
+      change += txnValue * exp.pastDueCount;
+    }
+    return change;
+  }
+
+  private void expandTo(int stop) {
+    if(stop <= endDate) return;
+    Calendar cal = Calendar.getInstance();
+    int firstNew = numDays;
+    int curr = DateUtil.incrementDate(endDate, 0, 0, 1);
+    List<Integer> newDates = new ArrayList<Integer>();
+    while(curr <= stop) {
+      newDates.add(curr);
+      curr = DateUtil.incrementDate(curr, 0, 0, 1);
+    }
+    for(Expansion exp : expansions) {
+      if(!exp.hasChanges) continue;
+      int initialDate = exp.reminder.getInitialDateInt();
+      for(int i=0; i<newDates.size(); i++) {
+        int date = newDates.get(i);
+        if(date < initialDate) continue;
+        DateUtil.setCalendarDate(cal, date);
+        if(exp.reminder.occursOnDate(cal)) {
+          exp.add(firstNew + i);
+        }
+      }
+    }
+    numDays += newDates.size();
+    endDate = stop;
+  }
+
+  /** The amount a reminder's transaction moves an account by. */
+  private static long getAccountChange(ParentTxn ptxn, Account account) {
+    long change = 0;
+    if (ptxn.getAccount().equals(account)) {
+      change += ptxn.getValue();
+    }
+    for(int i=0; i<ptxn.getSplitCount(); i++) {
+      SplitTxn stxn = ptxn.getSplit(i);
+      if (stxn.getAccount().equals(account)) {
+        change +=
+          CurrencyTable.convertValue(-stxn.getAmount(),
+                                     stxn.getParentTxn().getAccount().getCurrencyType(),
+                                     account.getCurrencyType(),
+                                     DateUtil.convertIntDateToLong(ptxn.getDateInt()).getTime());
+      }
+    }
+    return change;
+  }
+
+  /** The unconverted amount an overdue reminder moves an account by. */
+  private static long getOverdueValue(ParentTxn txn, Account account) {
+    long txnValue = 0;
+    if(txn.getAccount()==account) {
+      txnValue += txn.getValue();
+    }
+    for(int splitNum=txn.getSplitCount()-1; splitNum>=0; splitNum--) {
+      SplitTxn split = txn.getSplit(splitNum);
+      if(split.getAccount().equals(account)) {
+        txnValue += split.getValue();
+      }
+    }
+    return txnValue;
+  }
+
+  private class Expansion {
+    Reminder reminder;
+    long changes[];        // the change to each account per occurrence
+    long overdueValues[];
+    boolean hasChanges = false;
+    int pastDueCount = -1;
+    int days[] = new int[16];  // day offsets from the start date, in order
+    int count = 0;
+
+    Expansion(Reminder reminder, int numAccounts) {
+      this.reminder = reminder;
+      this.changes = new long[numAccounts];
+      this.overdueValues = new long[numAccounts];
+    }
+
+    void add(int day) {
+      if(count==days.length) days = Arrays.copyOf(days, count*2);
+      days[count++] = day;
+    }
+  }
+}
@@ -0,0 +1,78 @@
+/************************************************************\
+ *        Copyright 2017 The Infinite Kind, Limited         *
+\************************************************************/
+
+package com.moneydance.modules.features.balpred;
+
+import com.infinitekind.util.*;
+
+/**
+ * The trend of an account's balance over a past period: the average change
+ * per month, and how far the daily balances strayed above and below the
+ * average of their month.  The forecast starts at the average of the last
+ * month and moves by the monthly change, with the spread as its bounds.
+ */
+class TrendForecast {
+  private int pastMonths;
+  private long monthlyChange = 0;
+  private long diffUp = 0;
+  private long diffDown = 0;
+  private long startBalance;
+
+  /**
+   * @param curr the first day of the past period
+   * @param pastMonths the number of months in the past period
+   */
+  TrendForecast(DailyBalanceSeries series, int curr, int today, int pastMonths) {
+    int mind = series.getFirstTxnDate();
+    // moving starting date to be after first transaction
+    while(mind > curr) {
+      curr = DateUtil.incrementDate(curr, 0, 1, 0);
+      pastMonths--;
+    }
+    this.pastMonths = pastMonths;
+    if (pastMonths <= 0) {
+      // no history to go on, the balance stays where it is
+      startBalance = series.getBalance(today);
+      return;
+    }
+
+    // calculate average balance for first month in past period (AF)
+    int tmpCal = DateUtil.incrementDate(curr, 0, 1, 0);
+    long f1 = getAvgPeriodBalance(series, curr, tmpCal);
+
+    // calculate average balance for last month in past period (AP)
+    tmpCal = DateUtil.incrementDate(today, 0, -1, 0);
+    long f2 = getAvgPeriodBalance(series, tmpCal, today);
+
+    // calculate average monthly changes (AMCH)
+    monthlyChange = Math.round((f2-f1)/(float)pastMonths);
+
+    // calculate average diff between real balances and averages
+    long realBal = 0;
+    tmpCal = DateUtil.incrementDate(today, 0, -pastMonths, 0);
+    int tmpCal1 = DateUtil.incrementDate(tmpCal, 0, 1, 0);
+    for(int i=0; i<pastMonths; i++) {
+      realBal = getAvgPeriodBalance(series, tmpCal, tmpCal1);
+      diffUp = Math.max(diffUp, Math.abs(realBal-series.getMax(tmpCal, tmpCal1)));
+      diffDown = Math.max(diffDown, Math.abs(realBal-series.getMin(tmpCal, tmpCal1)));
+      tmpCal = DateUtil.incrementDate(tmpCal, 0, 1, 0);
+      tmpCal1 = DateUtil.incrementDate(tmpCal1, 0, 1, 0);
+    }
+    startBalance = realBal;
+  }
+
+  /** The number of months used, after moving the start past the first transaction. */
+  public int getPastMonths() { return pastMonths; }
+  public long getMonthlyChange() { return monthlyChange; }
+  public long getDailyChange() { return Math.round(1.0*monthlyChange/30.44); }
+  public long getDiffUp() { return diffUp; }
+  public long getDiffDown() { return diffDown; }
+  /** The forecast balance for today, the average of the last month. */
+  public long getStartBalance() { return startBalance; }
+
+  /** The average balance of the days after d1 up to and including d2. */
+  private static long getAvgPeriodBalance(DailyBalanceSeries series, int d1, int d2) {
+    return series.getAverage(DateUtil.incrementDate(d1,0,0,1), d2);
+  }
+}
@@ -11,9 +11,13 @@ package com.moneydance.modules.features.findandreplace;
 import com.moneydance.apps.md.controller.AccountFilter;
 import com.infinitekind.moneydance.model.AbstractTxn;
 import com.infinitekind.moneydance.model.Account;
+import com.infinitekind.moneydance.model.AccountBook;
 import com.infinitekind.moneydance.model.ParentTxn;
 import com.infinitekind.moneydance.model.SplitTxn;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * <p>Filters out transactions that are filtered by an account filter and/or category filter. An
  * {@link AccountFilter account filter} is capable of checking if the account is contained in a
@@ -88,6 +92,38 @@ class AccountTxnFilter extends TransactionFilterBase implements ITransactionFilt
         return matches;
     }
 
+    /**
+     * A transaction can only match if its own account, or for a split the account of its
+     * parent, passes the account filter or the category filter. This collects those accounts.
+     *
+     * @param book The data to search.
+     * @return Every account in the book that passes either filter, or <code>null</code> if
+     * there is no filter and every transaction matches.
+     */
+    List<Account> getMatchingAccounts(final AccountBook book)
+    {
+        if ((_accountFilter == null) && (_categoryFilter == null))
+        {
+            return null;
+        }
+        final List<Account> result = new ArrayList<Account>();
+        addMatchingAccounts(book.getRootAccount(), result);
+        return result;
+    }
+
+    private void addMatchingAccounts(final Account account, final List<Account> result)
+    {
+        if (((_accountFilter != null) && _accountFilter.filter(account))
+            || ((_categoryFilter != null) && _categoryFilter.filter(account)))
+        {
+            result.add(account);
+        }
+        for (int index = 0; index < account.getSubAccountCount(); index++)
+        {
+            addMatchingAccounts(account.getSubAccount(index), result);
+        }
+    }
+
     private boolean checkAccounts(Account from, Account to)
     {
         if ((_accountFilter == null) && (_categoryFilter == null))
@@ -0,0 +1,143 @@
+/*************************************************************************\
+* Copyright (C) 2009-2015 Mennē Software Solutions, LLC
+*
+* This code is released as open source under the Apache 2.0 License:<br/>
+* <a href="http://www.apache.org/licenses/LICENSE-2.0">
+* http://www.apache.org/licenses/LICENSE-2.0</a><br />
+\*************************************************************************/
+
+package com.moneydance.modules.features.findandreplace;
+
+import com.infinitekind.moneydance.model.AbstractTxn;
+import com.infinitekind.moneydance.model.TransactionSet;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * <p>Applies the replace commands to a set of find results in two passes. The first pass runs
+ * the commands and collects the parent transactions that changed, once each, even when several
+ * of their splits were in the results. The second pass notifies Moneydance of each modified
+ * parent in batches, reporting progress between batches.</p>
+ *
+ * <p>The old value of every field the commands write is recorded in a {@link ReplaceJournal},
+ * which a later batch can {@link #undo(ReplaceJournal) undo} with the same two passes.</p>
+ *
+ * @author Kevin Menningen
+ * @version Build 94
+ * @since 1.0
+ */
+class CommitBatch
+{
+    /** Number of parent transactions to notify between progress reports. */
+    static final int NOTIFY_BATCH_SIZE = 250;
+
+    /** Receives progress updates while the modified transactions are saved. */
+    interface IProgressListener
+    {
+        void commitProgress(int done, int total);
+    }
+
+    private final TransactionSet _txnSet;
+    private final List<ReplaceCommand> _commands;
+    /** Modified parents in the order they were first changed. */
+    private final List<AbstractTxn> _modified = new ArrayList<AbstractTxn>();
+    private final Set<AbstractTxn> _modifiedSet =
+            Collections.newSetFromMap(new IdentityHashMap<AbstractTxn, Boolean>());
+    private final ReplaceJournal _journal = new ReplaceJournal();
+
+    CommitBatch(final TransactionSet txnSet, final List<ReplaceCommand> commands)
+    {
+        _txnSet = txnSet;
+        _commands = commands;
+    }
+
+    /**
+     * Run every command on one find result, remembering the parent if anything changed.
+     * @param entry The find result to apply the commands to.
+     */
+    void execute(final FindResultsTableEntry entry)
+    {
+        for (final ReplaceCommand command : _commands)
+        {
+            command.setTransactionEntry(entry);
+            command.setJournal(_journal);
+            try
+            {
+                if (command.execute())
+                {
+                    addModified(command.getParentTransaction());
+                }
+            }
+            finally
+            {
+                command.setJournal(null);
+            }
+        }
+    }
+
+    /**
+     * Restore the fields changed by an earlier commit, remembering each parent that changed.
+     * Transactions that were edited or deleted since the commit are left as they are.
+     * @param journal The journal recorded by the earlier commit.
+     * @return The number of parent transactions that were left alone.
+     */
+    int undo(final ReplaceJournal journal)
+    {
+        for (final AbstractTxn parent : journal.undo(_txnSet))
+        {
+            addModified(parent);
+        }
+        return journal.getSkippedCount();
+    }
+
+    /**
+     * Notify the transaction set once per modified parent transaction.
+     * @param listener Receives progress after each batch, may be <code>null</code>.
+     */
+    void notifyModified(final IProgressListener listener)
+    {
+        final int total = _modified.size();
+        for (int index = 0; index < total; index++)
+        {
+            _txnSet.txnModified(_modified.get(index));
+            if ((listener != null) && ((index + 1) % NOTIFY_BATCH_SIZE == 0))
+            {
+                listener.commitProgress(index + 1, total);
+            }
+        }
+        if (listener != null)
+        {
+            listener.commitProgress(total, total);
+        }
+    }
+
+    boolean hasChanges()
+    {
+        return !_modified.isEmpty();
+    }
+
+    List<AbstractTxn> getModifiedTransactions()
+    {
+        return _modified;
+    }
+
+    /**
+     * @return The old values of the fields changed by {@link #execute(FindResultsTableEntry)}.
+     */
+    ReplaceJournal getJournal()
+    {
+        return _journal;
+    }
+
+    private void addModified(final AbstractTxn parent)
+    {
+        if (_modifiedSet.add(parent))
+        {
+            _modified.add(parent);
+        }
+    }
+}
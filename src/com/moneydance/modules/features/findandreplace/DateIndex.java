@@ -0,0 +1,356 @@
+/*************************************************************************\
+* Copyright (C) 2009-2015 Mennē Software Solutions, LLC
+*
+* This code is released as open source under the Apache 2.0 License:<br/>
+* <a href="http://www.apache.org/licenses/LICENSE-2.0">
+* http://www.apache.org/licenses/LICENSE-2.0</a><br />
+\*************************************************************************/
+
+package com.moneydance.modules.features.findandreplace;
+
+import com.infinitekind.moneydance.model.AbstractTxn;
+import com.infinitekind.moneydance.model.AccountBook;
+import com.infinitekind.moneydance.model.ParentTxn;
+import com.infinitekind.moneydance.model.TransactionListener;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>Transactions of an account book sorted by date and by tax date, so a search with a date
+ * range only has to visit the transactions inside the range.</p>
+ *
+ * <p>The sort orders are kept as parallel arrays of primitive dates and transactions. Changes
+ * reported by the transaction listener are collected and applied the next time the index is
+ * used: the changed transactions are dropped from the arrays and the ones still present are
+ * sorted on their own and merged back in one pass. A lot of changes (such as a bulk replace)
+ * cause the arrays to be sorted again.</p>
+ *
+ * <p>The splits of each parent transaction are remembered, so the splits that a changed parent
+ * no longer has, and all the splits of a removed parent, are dropped from the index.</p>
+ *
+ * @author Kevin Menningen
+ * @version Build 94
+ * @since 1.0
+ */
+class DateIndex implements TransactionListener
+{
+    /** Merge changes into the sort orders when there are fewer than size / this many of them. */
+    private static final int REBUILD_RATIO = 4;
+
+    private final AccountBook _book;
+    private final SortedTxns _byDate = new SortedTxns(false);
+    private final SortedTxns _byTaxDate = new SortedTxns(true);
+    /** Transactions changed since the index was last brought up to date. */
+    private final Map<AbstractTxn, Boolean> _changed = new IdentityHashMap<AbstractTxn, Boolean>();
+    /** The splits of each parent transaction as of its last change. */
+    private final Map<AbstractTxn, AbstractTxn[]> _splits = new IdentityHashMap<AbstractTxn, AbstractTxn[]>();
+    private boolean _built = false;
+
+    DateIndex(final AccountBook book)
+    {
+        _book = book;
+        _book.getTransactionSet().addTransactionListener(this);
+    }
+
+    AccountBook getBook()
+    {
+        return _book;
+    }
+
+    void close()
+    {
+        _book.getTransactionSet().removeTransactionListener(this);
+    }
+
+    /**
+     * Obtain all transactions with a date in a range. Must be called on the event dispatch thread.
+     *
+     * @param minimum    The first date in the range, inclusive.
+     * @param maximum    The last date in the range, inclusive.
+     * @param useTaxDate True to use the tax date of each transaction instead of the date.
+     * @return The transactions in the range, sorted by the chosen date.
+     */
+    synchronized List<AbstractTxn> getTransactions(final int minimum, final int maximum,
+                                                   final boolean useTaxDate)
+    {
+        update();
+        return (useTaxDate ? _byTaxDate : _byDate).getRange(minimum, maximum);
+    }
+
+    /**
+     * Count the transactions with a date in a range without copying them. Must be called on the
+     * event dispatch thread.
+     *
+     * @param minimum    The first date in the range, inclusive.
+     * @param maximum    The last date in the range, inclusive.
+     * @param useTaxDate True to use the tax date of each transaction instead of the date.
+     * @return The number of transactions in the range.
+     */
+    synchronized int countTransactions(final int minimum, final int maximum,
+                                       final boolean useTaxDate)
+    {
+        update();
+        return (useTaxDate ? _byTaxDate : _byDate).countRange(minimum, maximum);
+    }
+
+    //////////////////////////////////////////////////////////////////////////////////////////////
+    //  TransactionListener
+    //////////////////////////////////////////////////////////////////////////////////////////////
+
+    public synchronized void transactionAdded(final AbstractTxn txn)
+    {
+        markChanged(txn, Boolean.TRUE);
+    }
+
+    public synchronized void transactionModified(final AbstractTxn txn)
+    {
+        markChanged(txn, Boolean.TRUE);
+    }
+
+    public synchronized void transactionRemoved(final AbstractTxn txn)
+    {
+        markChanged(txn, Boolean.FALSE);
+    }
+
+    //////////////////////////////////////////////////////////////////////////////////////////////
+    //  Private Methods
+    //////////////////////////////////////////////////////////////////////////////////////////////
+
+    private void markChanged(final AbstractTxn txn, final Boolean present)
+    {
+        if (!_built)
+        {
+            // the first build will pick up everything
+            return;
+        }
+        _changed.put(txn, present);
+        if (!(txn instanceof ParentTxn))
+        {
+            return;
+        }
+        // splits take their dates from the parent, and go away with it
+        final AbstractTxn[] oldSplits = _splits.remove(txn);
+        if (oldSplits != null)
+        {
+            for (final AbstractTxn split : oldSplits)
+            {
+                _changed.put(split, Boolean.FALSE);
+            }
+        }
+        final AbstractTxn[] splits = getSplits(txn);
+        for (final AbstractTxn split : splits)
+        {
+            _changed.put(split, present);
+        }
+        if (present.booleanValue())
+        {
+            _splits.put(txn, splits);
+        }
+    }
+
+    private void update()
+    {
+        if (_built && (_changed.size() < _byDate.size() / REBUILD_RATIO))
+        {
+            if (!_changed.isEmpty())
+            {
+                _byDate.merge(_changed);
+                _byTaxDate.merge(_changed);
+                _changed.clear();
+            }
+            return;
+        }
+
+        final List<AbstractTxn> txns = new ArrayList<AbstractTxn>();
+        _splits.clear();
+        for (AbstractTxn txn : _book.getTransactionSet().iterableTxns())
+        {
+            txns.add(txn);
+            if (txn instanceof ParentTxn)
+            {
+                _splits.put(txn, getSplits(txn));
+            }
+        }
+        _byDate.build(txns);
+        _byTaxDate.build(txns);
+        _changed.clear();
+        _built = true;
+    }
+
+    private static AbstractTxn[] getSplits(final AbstractTxn parent)
+    {
+        final AbstractTxn[] splits = new AbstractTxn[parent.getOtherTxnCount()];
+        for (int ii = 0; ii < splits.length; ii++)
+        {
+            splits[ii] = parent.getOtherTxn(ii);
+        }
+        return splits;
+    }
+
+    /**
+     * One sort order: dates in ascending order with the matching transactions at the same
+     * positions.
+     */
+    private static class SortedTxns
+    {
+        private final boolean _useTaxDate;
+        private int[] _dates = new int[0];
+        private AbstractTxn[] _txns = new AbstractTxn[0];
+        private int _size = 0;
+
+        SortedTxns(final boolean useTaxDate)
+        {
+            _useTaxDate = useTaxDate;
+        }
+
+        int size()
+        {
+            return _size;
+        }
+
+        void build(final List<AbstractTxn> txns)
+        {
+            _size = txns.size();
+            final long[] keys = sortByDate(txns);
+            _dates = new int[Math.max(_size, 16)];
+            _txns = new AbstractTxn[_dates.length];
+            for (int index = 0; index < _size; index++)
+            {
+                _dates[index] = (int) (keys[index] >> 32);
+                _txns[index] = txns.get((int) (keys[index] & 0xFFFFFFFFL));
+            }
+        }
+
+        /**
+         * Apply a batch of changes: every changed transaction is dropped in one pass, then the
+         * ones still present are sorted and merged back in from the end of the arrays.
+         * @param changes The changed transactions, mapped to true if they are still present.
+         */
+        void merge(final Map<AbstractTxn, Boolean> changes)
+        {
+            int kept = 0;
+            for (int index = 0; index < _size; index++)
+            {
+                if (!changes.containsKey(_txns[index]))
+                {
+                    _dates[kept] = _dates[index];
+                    _txns[kept++] = _txns[index];
+                }
+            }
+            final List<AbstractTxn> added = new ArrayList<AbstractTxn>();
+            for (final Map.Entry<AbstractTxn, Boolean> entry : changes.entrySet())
+            {
+                if (entry.getValue().booleanValue())
+                {
+                    added.add(entry.getKey());
+                }
+            }
+            final long[] keys = sortByDate(added);
+            final int total = kept + keys.length;
+            if (total > _dates.length)
+            {
+                _dates = Arrays.copyOf(_dates, Math.max(total, _dates.length * 2));
+                _txns = Arrays.copyOf(_txns, _dates.length);
+            }
+            Arrays.fill(_txns, total, Math.max(total, _size), null);
+            // existing transactions stay ahead of added ones with the same date
+            int existing = kept - 1;
+            for (int next = keys.length - 1, position = total - 1; next >= 0; position--)
+            {
+                final int date = (int) (keys[next] >> 32);
+                if ((existing >= 0) && (_dates[existing] > date))
+                {
+                    _dates[position] = _dates[existing];
+                    _txns[position] = _txns[existing--];
+                }
+                else
+                {
+                    _dates[position] = date;
+                    _txns[position] = added.get((int) (keys[next--] & 0xFFFFFFFFL));
+                }
+            }
+            _size = total;
+        }
+
+        int countRange(final int minimum, final int maximum)
+        {
+            return Math.max(0, upperBound(Math.max(minimum, maximum)) - lowerBound(Math.min(minimum, maximum)));
+        }
+
+        List<AbstractTxn> getRange(final int minimum, final int maximum)
+        {
+            final int start = lowerBound(Math.min(minimum, maximum));
+            final int end = upperBound(Math.max(minimum, maximum));
+            if (start >= end)
+            {
+                return Collections.emptyList();
+            }
+            return new ArrayList<AbstractTxn>(Arrays.asList(_txns).subList(start, end));
+        }
+
+        /**
+         * Sort transactions by date with a primitive sort on (date, position) pairs.
+         * @return The sorted pairs, the date in the high half and the position in the low half.
+         */
+        private long[] sortByDate(final List<AbstractTxn> txns)
+        {
+            final long[] keys = new long[txns.size()];
+            for (int index = 0; index < keys.length; index++)
+            {
+                keys[index] = ((long) getDate(txns.get(index)) << 32) | index;
+            }
+            Arrays.sort(keys);
+            return keys;
+        }
+
+        private int getDate(final AbstractTxn txn)
+        {
+            return _useTaxDate ? txn.getTaxDateInt() : txn.getDateInt();
+        }
+
+        /** @return The first position with a date on or after <code>date</code>. */
+        private int lowerBound(final int date)
+        {
+            int low = 0;
+            int high = _size;
+            while (low < high)
+            {
+                final int middle = (low + high) >>> 1;
+                if (_dates[middle] < date)
+                {
+                    low = middle + 1;
+                }
+                else
+                {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+
+        /** @return The first position with a date after <code>date</code>. */
+        private int upperBound(final int date)
+        {
+            int low = 0;
+            int high = _size;
+            while (low < high)
+            {
+                final int middle = (low + high) >>> 1;
+                if (_dates[middle] <= date)
+                {
+                    low = middle + 1;
+                }
+                else
+                {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+    }
+}
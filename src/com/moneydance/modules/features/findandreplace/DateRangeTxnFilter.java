@@ -21,6 +21,8 @@ import com.infinitekind.moneydance.model.DateRange;
 class DateRangeTxnFilter extends TransactionFilterBase implements ITransactionFilter
 {
     private final DateRange _dateRange;
+    private final int _minimum;
+    private final int _maximum;
     private final boolean _useTaxDate;
 
     DateRangeTxnFilter(final int minimum, final int maximum, final boolean useTaxDate,
@@ -30,9 +32,26 @@ class DateRangeTxnFilter extends TransactionFilterBase implements ITransactionFi
         int min = Math.min(minimum, maximum);
         int max = Math.max(minimum, maximum);
         _dateRange = new DateRange(min, max);
+        _minimum = min;
+        _maximum = max;
         _useTaxDate = useTaxDate;
     }
 
+    int getMinimum()
+    {
+        return _minimum;
+    }
+
+    int getMaximum()
+    {
+        return _maximum;
+    }
+
+    boolean getUseTaxDate()
+    {
+        return _useTaxDate;
+    }
+
     /**
      * Decide if a transaction matches this filter's criterion or not.
      *
@@ -53,4 +72,4 @@ class DateRangeTxnFilter extends TransactionFilterBase implements ITransactionFi
         return false;
     }
 
-}
\ No newline at end of file
+}
\ No newline at end of file
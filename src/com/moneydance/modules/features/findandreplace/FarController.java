@@ -18,13 +18,14 @@ import com.moneydance.apps.md.view.gui.select.AddRemoveAccountDialog;
 import javax.swing.JOptionPane;
 import javax.swing.JTable;
 import java.awt.Cursor;
-import java.util.HashSet;
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
 import java.util.List;
 import java.util.ArrayList;
 import java.text.DecimalFormatSymbols;
+import java.text.MessageFormat;
 import java.awt.Image;
 import java.awt.Point;
-import java.util.Set;
 
 /**
  * <p>Controller for the plugin component for Find and Replace. This class brokers method calls
@@ -45,6 +46,14 @@ public class FarController implements IFindAndReplaceController
 
     private String _initialFreeText = null;
     private String _dateRangeKey = null;
+    private FindTask _findTask = null;
+    /**
+     * Old and new values of the fields changed by the last commit, null if there is nothing to
+     * undo. Kept until the next commit, an undo or a change of book; transactions edited since
+     * the commit are skipped when it is undone.
+     */
+    private ReplaceJournal _lastCommit = null;
+    private SearchCache _searchCache = null;
 
     //////////////////////////////////////////////////////////////////////////////////////////////
     //  Construction
@@ -67,12 +76,20 @@ public class FarController implements IFindAndReplaceController
      */
     public void loadData(final AccountBook data)
     {
+        _lastCommit = null;
         _model.setData( data );
+        _model.setTextIndex((data == null) ? null : _host.getTextIndex(data));
+        _model.setDateIndex((data == null) ? null : _host.getDateIndex(data));
+        _searchCache = (data == null) ? null : _host.getSearchCache(data);
     }
 
     public void cleanUp()
     {
         cleanupView();
+        _model.setTextIndex(null);
+        _model.setDateIndex(null);
+        _searchCache = null;
+        _lastCommit = null;
         _model.setData(null);
     }
 
@@ -133,74 +150,128 @@ public class FarController implements IFindAndReplaceController
             return;
         }
 
-        FilterGroup filter = _model.buildTransactionFilter();
+        // a new search replaces any search still in progress
+        if (_findTask != null)
+        {
+            _findTask.cancel(false);
+            _findTask = null;
+        }
 
         // start with nothing
         _model.getFindResults().reset();
+        _model.tableUpdated();
 
-        // run the filter
-        final int matched = filterTransactions(book, filter);
-        if (matched > 0)
+        // the same search run before only needs to check the transactions changed since then
+        final String searchKey = (_searchCache == null) ? null : _model.getFindCriteriaKey();
+        final SearchCache.Update update = (searchKey == null) ? null : _searchCache.getUpdate(searchKey);
+        final long changeCount = (_searchCache == null) ? 0 : _searchCache.getChangeCount();
+        if (update != null)
         {
-            _model.getFindResults().refresh();
+            Logger.log(String.format("Updating cached search: %d unchanged splits, %d changed transactions",
+                                     Integer.valueOf(update.getUnchangedResults().size()),
+                                     Integer.valueOf(update.getChangedTransactions().size())));
+            _findTask = new FindTask(this, update.getFilter(), update.getChangedTransactions());
+            _findTask.setUnchangedResults(update.getUnchangedResults());
         }
         else
         {
-            _model.getFindResults().addBlankTransaction();
+            // take a snapshot of the transaction list here on the EDT, the filtering runs in the
+            // background and streams the matching splits back to the results table
+            final FilterGroup filter = _model.buildTransactionFilter();
+            final List<AbstractTxn> txns = filter.selectTransactions(book);
+            _findTask = new FindTask(this, filter, txns);
         }
-        _model.tableUpdated();
+        if (searchKey != null)
+        {
+            _findTask.setSearchKey(searchKey, changeCount);
+        }
+        _findTask.addPropertyChangeListener(new PropertyChangeListener()
+        {
+            public void propertyChange(final PropertyChangeEvent event)
+            {
+                if (N12EFindAndReplace.FIND_PROGRESS.equals(event.getPropertyName()) &&
+                    (_view != null) && isCurrentFind((FindTask) event.getSource()))
+                {
+                    _view.setFindProgress(((Integer) event.getNewValue()).intValue());
+                }
+            }
+        });
+        if (_view != null)
+        {
+            _view.findStarted();
+        }
+        _findTask.execute();
 
-        // reset for the replace operation
-        setReplaceViewIndex(0);
-        _commands.clear(); // currently only support one command at a time
-        _view.getFindResultsTable().clearSelection();
-        _model.resetApply();
-        
     } // find()
 
     /**
-     * Add all of the matching splits to the report set. When displayed, either the list of splits
-     * will be shown or the parents will be shown. Both lists are derived from the splits list, so
-     * we simply create the split list here.
+     * Stop the search in progress, if any. The splits found so far are kept in the results.
+     */
+    void cancelFind()
+    {
+        if (_findTask != null)
+        {
+            _findTask.cancel(false);
+        }
+    }
+
+    boolean isFindRunning()
+    {
+        return (_findTask != null);
+    }
+
+    boolean isCurrentFind(final FindTask task)
+    {
+        return (task == _findTask);
+    }
+
+    /**
+     * Add a batch of matching splits to the report set. When displayed, either the list of splits
+     * will be shown or the parents will be shown. Both lists are derived from the splits list.
+     *
+     * @param splits The splits that matched since the last batch.
+     */
+    void findResultsFound(final List<SplitTxn> splits)
+    {
+        _model.getFindResults().addBatch(splits);
+        _model.tableUpdated();
+    }
+
+    /**
+     * Called on the EDT when a search completes or is cancelled.
      *
-     * @param book The main data account
-     * @param filter      The search filter.
-     * @return The number of splits that matched
+     * @param task The search that finished.
      */
-    private int filterTransactions(AccountBook book, FilterGroup filter)
+    void findFinished(final FindTask task)
     {
-        // build the list of transactions that match the criteria
-        Set<String> uniqueTxnIDs = new HashSet<String>();
-        final TransactionSet txnSet = book.getTransactionSet();
-        for(AbstractTxn txn : txnSet.iterableTxns())
+        if (!isCurrentFind(task))
         {
-            // both parents and splits will be run through here
-            if (filter.containsTxn(txn))
-            {
-                // the report set should contain splits only, find any parents and add all of their splits
-                if (txn instanceof ParentTxn)
-                {
-                    for (int ii = txn.getOtherTxnCount() - 1; ii >= 0; ii--)
-                    {
-                        final SplitTxn split = (SplitTxn) txn.getOtherTxn(ii);
-                        final String key = split.getUUID();
-                        if (uniqueTxnIDs.contains(key)) continue;
-                        _model.getFindResults().add(split, false);
-                        uniqueTxnIDs.add(key);
-                    } // for ii
-                }
-                else
-                {
-                    // must be a split transaction, just add it
-                    final SplitTxn split = (SplitTxn) txn;
-                    final String key = split.getUUID();
-                    if (uniqueTxnIDs.contains(key)) continue;
-                    _model.getFindResults().add(split, false);
-                    uniqueTxnIDs.add(key);
-                }
-            }
+            // superseded by a newer search
+            return;
+        }
+        _findTask = null;
+
+        if (!task.isCancelled() && (task.getSearchKey() != null) && (_searchCache != null))
+        {
+            _searchCache.store(task.getSearchKey(), task.getFilter(), task.getFoundSplits(),
+                               task.getChangeCount());
         }
-        return uniqueTxnIDs.size();
+
+        if (_model.getFindResults().getRowCount() == 0)
+        {
+            _model.getFindResults().addBlankTransaction();
+        }
+        _model.tableUpdated();
+
+        // reset for the replace operation
+        setReplaceViewIndex(0);
+        _commands.clear(); // currently only support one command at a time
+        if (_view != null)
+        {
+            _view.getFindResultsTable().clearSelection();
+            _view.findFinished();
+        }
+        _model.resetApply();
     }
 
     public void replace()
@@ -288,29 +359,21 @@ public class FarController implements IFindAndReplaceController
                 root.setRecalcBalances(false);
             }
 
-            boolean changed = false;
+            final CommitBatch batch = new CommitBatch(root.getTransactionSet(), _commands);
             try
             {
                 final FindResultsTableModel results = _model.getFindResults();
                 final int count = results.getRowCount();
                 _view.setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
+                final List<FindResultsTableEntry> entries = new ArrayList<FindResultsTableEntry>(count);
                 for (int rowIndex = 0; rowIndex < count; rowIndex++)
                 {
-                    final FindResultsTableEntry entry = results.getEntry(rowIndex);
-                    if (entry.isApplied() && entry.isUseInReplace())
-                    {
-                        for (final ReplaceCommand command : _commands)
-                        {
-                            command.setTransactionEntry(entry);
-                            if (command.execute())
-                            {
-                                changed = true;
-                                // this will notify the system of the modification
-                                root.getTransactionSet().txnModified( command.getParentTransaction() );
-                            }
-                        }
-                    } // if use this entry
+                    entries.add(results.getEntry(rowIndex));
                 } // for rowIndex
+                FarEngine.execute(batch, entries);
+
+                // this will notify the system of the modifications, once per parent transaction
+                notifyModified(batch);
 
                 _view.setCursor(Cursor.getDefaultCursor());
             } // try
@@ -320,20 +383,71 @@ public class FarController implements IFindAndReplaceController
             }
             finally
             {
-                if (changed)
+                endBatch(root, mdGui, batch);
+                if (!batch.getJournal().isEmpty())
                 {
-                    // flag to MoneyDance that the file has been modified
-                    if (mdGui != null)
-                    {
-                        mdGui.setSuspendRefresh(false);
-                    }
-                    root.setRecalcBalances(true);
-                    root.refreshAccountBalances();
+                    // even a partial commit can be undone
+                    batch.getJournal().recordAfterValues();
+                    _lastCommit = batch.getJournal();
                 }
             } // finally
         } // if dirty
     } // commit()
 
+    public boolean canUndoCommit()
+    {
+        return (_lastCommit != null);
+    }
+
+    /**
+     * Put back the values changed by the last commit. All fields are restored first, then
+     * Moneydance is notified once per parent transaction, the same way a commit is saved.
+     * Transactions that were edited or deleted since the commit are left alone, and the user is
+     * told how many there were.
+     */
+    public void undoCommit()
+    {
+        final ReplaceJournal journal = _lastCommit;
+        if (journal == null)
+        {
+            return;
+        }
+        // a journal can only be replayed once
+        _lastCommit = null;
+        final AccountBook root = _model.getData();
+        final MoneydanceGUI mdGui = getMDGUI();
+        if (mdGui != null)
+        {
+            mdGui.setSuspendRefresh(true);
+            root.setRecalcBalances(false);
+        }
+
+        final CommitBatch batch = new CommitBatch(root.getTransactionSet(), _commands);
+        int skipped = 0;
+        try
+        {
+            _view.setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
+            skipped = batch.undo(journal);
+            notifyModified(batch);
+            _view.setCursor(Cursor.getDefaultCursor());
+        }
+        catch (Exception error)
+        {
+            Logger.logError("Error undoing the last Find and Replace commit", error);
+        }
+        finally
+        {
+            endBatch(root, mdGui, batch);
+        }
+        if (skipped > 0)
+        {
+            final String format = getString(L10NFindAndReplace.ERROR_UNDO_SKIPPED_FMT);
+            JOptionPane.showMessageDialog(_view, MessageFormat.format(format, Integer.valueOf(skipped)),
+                                          getString(L10NFindAndReplace.NOTICE_TITLE),
+                                          JOptionPane.WARNING_MESSAGE);
+        }
+    }
+
     public void reset()
     {
         _model.setDefaults();
@@ -1043,8 +1157,37 @@ public class FarController implements IFindAndReplaceController
         }
     }
 
+    private void notifyModified(final CommitBatch batch)
+    {
+        batch.notifyModified(new CommitBatch.IProgressListener()
+        {
+            public void commitProgress(final int done, final int total)
+            {
+                if (_view != null)
+                {
+                    _view.setCommitProgress(done, total);
+                }
+            }
+        });
+    }
+
+    private void endBatch(final AccountBook root, final MoneydanceGUI mdGui, final CommitBatch batch)
+    {
+        if (mdGui != null)
+        {
+            mdGui.setSuspendRefresh(false);
+            root.setRecalcBalances(true);
+        }
+        if (batch.hasChanges())
+        {
+            // flag to MoneyDance that the file has been modified
+            root.refreshAccountBalances();
+        }
+    }
+
     private void cleanupView()
     {
+        cancelFind();
         if (_view != null)
         {
             _view.setVisible(false);
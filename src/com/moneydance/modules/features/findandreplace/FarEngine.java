@@ -0,0 +1,232 @@
+/*************************************************************************\
+* Copyright (C) 2009-2015 Mennē Software Solutions, LLC
+*
+* This code is released as open source under the Apache 2.0 License:<br/>
+* <a href="http://www.apache.org/licenses/LICENSE-2.0">
+* http://www.apache.org/licenses/LICENSE-2.0</a><br />
+\*************************************************************************/
+
+package com.moneydance.modules.features.findandreplace;
+
+import com.infinitekind.moneydance.model.AbstractTxn;
+import com.infinitekind.moneydance.model.AccountBook;
+import com.infinitekind.moneydance.model.CurrencyType;
+import com.infinitekind.moneydance.model.ParentTxn;
+import com.infinitekind.moneydance.model.SplitTxn;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>Find and replace on an account book without any user interface. The filter spec is a
+ * {@link FilterGroup}, built from the transaction filters the same way
+ * {@link FarModel#buildTransactionFilter()} does, and the replacements are
+ * {@link ReplaceCommand}s. The controller and {@link FindTask} use the same steps, so the
+ * results are the same as in the Find and Replace window.</p>
+ *
+ * <p>A search is done in three steps: take a snapshot of the transactions on the cheapest access
+ * path ({@link #selectTransactions(FilterGroup)}), narrow them down with the indexes and plan the
+ * filter order ({@link #prepare(FilterGroup, List)}), and run each transaction through the filter
+ * ({@link #addMatches(FilterGroup, AbstractTxn, List, Map)}). {@link #find(FilterGroup)} does all
+ * three on the calling thread.</p>
+ *
+ * @author Kevin Menningen
+ * @version Build 94
+ * @since 1.0
+ */
+class FarEngine
+{
+    private final AccountBook _book;
+    private FreeTextIndex _textIndex = null;
+    private DateIndex _dateIndex = null;
+
+    FarEngine(final AccountBook book)
+    {
+        _book = book;
+    }
+
+    AccountBook getBook()
+    {
+        return _book;
+    }
+
+    void setTextIndex(final FreeTextIndex textIndex)
+    {
+        _textIndex = textIndex;
+    }
+
+    void setDateIndex(final DateIndex dateIndex)
+    {
+        _dateIndex = dateIndex;
+    }
+
+    /**
+     * Take a snapshot of the transactions a search has to look at, using the indexes of this
+     * engine.
+     * @param filter The filter spec.
+     * @return A new list of parent and split transactions.
+     */
+    List<AbstractTxn> selectTransactions(final FilterGroup filter)
+    {
+        filter.setTextIndex(_textIndex);
+        filter.setDateIndex(_dateIndex);
+        return filter.selectTransactions(_book);
+    }
+
+    /**
+     * Find every split that matches the filter spec.
+     * @param filter The filter spec.
+     * @return The matching splits, each one once.
+     */
+    List<SplitTxn> find(final FilterGroup filter)
+    {
+        final List<AbstractTxn> txns = prepare(filter, selectTransactions(filter));
+        final List<SplitTxn> found = new ArrayList<SplitTxn>();
+        final Map<AbstractTxn, Boolean> parentMatches = new IdentityHashMap<AbstractTxn, Boolean>();
+        for (final AbstractTxn txn : txns)
+        {
+            addMatches(filter, txn, found, parentMatches);
+        }
+        return found;
+    }
+
+    /**
+     * Wrap the found splits in entries that replace commands can be applied to.
+     * @param found The splits returned by {@link #find(FilterGroup)}.
+     * @return One entry per split, all of them to be used in a replace.
+     */
+    List<FindResultsTableEntry> createEntries(final List<SplitTxn> found)
+    {
+        final CurrencyType baseCurrency = _book.getCurrencies().getBaseType();
+        final List<FindResultsTableEntry> entries = new ArrayList<FindResultsTableEntry>(found.size());
+        for (final SplitTxn split : found)
+        {
+            entries.add(new FindResultsTableEntry(split, baseCurrency));
+        }
+        return entries;
+    }
+
+    /**
+     * Mark every entry to be replaced, like the Replace All button. Nothing is changed until
+     * {@link #commit} is called.
+     * @param entries The find results.
+     * @return The number of entries marked.
+     */
+    static int replaceAll(final List<FindResultsTableEntry> entries)
+    {
+        int count = 0;
+        for (final FindResultsTableEntry entry : entries)
+        {
+            if (entry.isUseInReplace() && !entry.isApplied())
+            {
+                entry.applyCommand();
+                ++count;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Run the replace commands on the marked entries and notify Moneydance of the changes.
+     * @param entries  The find results, only the entries marked by a replace are changed.
+     * @param commands The replacements to make.
+     * @param listener Receives progress while the changes are saved, may be <code>null</code>.
+     * @return The batch, with the journal needed to undo it.
+     */
+    CommitBatch commit(final List<FindResultsTableEntry> entries, final List<ReplaceCommand> commands,
+                       final CommitBatch.IProgressListener listener)
+    {
+        final CommitBatch batch = new CommitBatch(_book.getTransactionSet(), commands);
+        execute(batch, entries);
+        batch.notifyModified(listener);
+        return batch;
+    }
+
+    /**
+     * Run the replace commands of a batch on the entries marked by a replace.
+     * @param batch   The commit in progress.
+     * @param entries The find results.
+     */
+    static void execute(final CommitBatch batch, final List<FindResultsTableEntry> entries)
+    {
+        for (final FindResultsTableEntry entry : entries)
+        {
+            if (entry.isApplied() && entry.isUseInReplace())
+            {
+                batch.execute(entry);
+            }
+        }
+    }
+
+    /**
+     * Narrow down a transaction snapshot with the text index and, unless the filter has one
+     * already, plan the order the filters are checked in.
+     * @param filter The filter spec.
+     * @param txns   The snapshot from {@link #selectTransactions(FilterGroup)}.
+     * @return The transactions to run through the filter.
+     */
+    static List<AbstractTxn> prepare(final FilterGroup filter, final List<AbstractTxn> txns)
+    {
+        final List<AbstractTxn> candidates = filter.selectCandidates(txns);
+        if (!filter.hasPlan())
+        {
+            filter.buildPlan(candidates);
+        }
+        return candidates;
+    }
+
+    /**
+     * Run one transaction through the filter. The results contain splits only: a matching parent
+     * contributes all of its splits, and a matching split is only added on its own when its
+     * parent does not match. That way each split is found exactly once, no matter in which order
+     * or on which thread the transactions are checked.
+     *
+     * <p>Telling whether the parent of a matching split matches takes another run through the
+     * filter, so the result for each parent is remembered and a parent is only checked once per
+     * run or chunk, whether it comes before or after its splits.</p>
+     *
+     * @param filter        The filter spec.
+     * @param txn           A parent or split transaction.
+     * @param found         Receives the matching splits.
+     * @param parentMatches Whether each parent checked so far matches, shared by the calls for
+     *                      one run or chunk on one thread.
+     */
+    static void addMatches(final FilterGroup filter, final AbstractTxn txn, final List<SplitTxn> found,
+                           final Map<AbstractTxn, Boolean> parentMatches)
+    {
+        if (txn instanceof ParentTxn)
+        {
+            if (!parentMatches(filter, txn, parentMatches))
+            {
+                return;
+            }
+            for (int ii = txn.getOtherTxnCount() - 1; ii >= 0; ii--)
+            {
+                found.add((SplitTxn) txn.getOtherTxn(ii));
+            } // for ii
+        }
+        else if (filter.containsTxn(txn))
+        {
+            // must be a split transaction, skip it if the parent adds it already
+            final SplitTxn split = (SplitTxn) txn;
+            if (!parentMatches(filter, split.getParentTxn(), parentMatches))
+            {
+                found.add(split);
+            }
+        }
+    }
+
+    private static boolean parentMatches(final FilterGroup filter, final AbstractTxn parent,
+                                         final Map<AbstractTxn, Boolean> parentMatches)
+    {
+        Boolean matches = parentMatches.get(parent);
+        if (matches == null)
+        {
+            matches = Boolean.valueOf(filter.containsTxn(parent));
+            parentMatches.put(parent, matches);
+        }
+        return matches.booleanValue();
+    }
+}
@@ -12,6 +12,7 @@ import com.infinitekind.moneydance.model.*;
 import com.moneydance.apps.md.controller.*;
 import com.moneydance.apps.md.controller.Util;
 import com.moneydance.apps.md.view.gui.TagLogic;
+import com.moneydance.apps.md.view.gui.reporttool.GraphReportUtil;
 import com.moneydance.util.BasePropertyChangeReporter;
 
 import java.util.Collection;
@@ -31,6 +32,8 @@ import java.util.*;
 class FarModel extends BasePropertyChangeReporter
 {
     private AccountBook _data;
+    private FreeTextIndex _textIndex;
+    private DateIndex _dateIndex;
     private FindResultsTableModel _findResultsModel;
     private boolean _allowEvents = true;
     
@@ -128,6 +131,24 @@ class FarModel extends BasePropertyChangeReporter
         _findResultsModel = resultsModel;
     }
 
+    /**
+     * @param textIndex The free text index for the current data, or <code>null</code> to always
+     * scan every transaction.
+     */
+    void setTextIndex(final FreeTextIndex textIndex)
+    {
+        _textIndex = textIndex;
+    }
+
+    /**
+     * @param dateIndex The date index for the current data, or <code>null</code> to always
+     * scan every transaction.
+     */
+    void setDateIndex(final DateIndex dateIndex)
+    {
+        _dateIndex = dateIndex;
+    }
+
     void setData( final AccountBook data )
     {
         _data = data;
@@ -547,9 +568,70 @@ class FarModel extends BasePropertyChangeReporter
         if (_allowEvents) _eventNotify.firePropertyChange(N12EFindAndReplace.CLEARED_UNCLEARED, old, allow);
     }
 
+    /**
+     * Describe everything that decides which transactions {@link #buildTransactionFilter()}
+     * matches, so a search can be recognized when it is run again.
+     * @return The find criteria as a string, or <code>null</code> if the results of the search
+     * can change without any transaction changing, so they should not be cached.
+     */
+    String getFindCriteriaKey()
+    {
+        if (_useAmountFilter && !_isSharesCurrency)
+        {
+            // amounts are compared after currency conversion, and exchange rates can change
+            return null;
+        }
+        final char separator = '\u0001';
+        final StringBuilder key = new StringBuilder();
+        key.append(_combineOr).append(separator);
+        if (_useAccountFilter)
+        {
+            key.append(GraphReportUtil.encodeAcctList(_accountFilter));
+        }
+        key.append(separator);
+        if (_useCategoryFilter)
+        {
+            key.append(GraphReportUtil.encodeAcctList(_categoryFilter));
+        }
+        key.append(separator);
+        if (_useDateFilter)
+        {
+            key.append(_dateMinimum).append('-').append(_dateMaximum).append(_useTaxDate);
+        }
+        key.append(separator);
+        if (_useAmountFilter)
+        {
+            key.append(_amountMinimum).append('-').append(_amountMaximum);
+            if (_findAmountCurrency != null)
+            {
+                key.append(_findAmountCurrency.getIDString());
+            }
+        }
+        key.append(separator);
+        if (_useFreeTextFilter)
+        {
+            key.append(_freeTextSearchDescription).append(_freeTextSearchMemo);
+            key.append(_freeTextSearchCheck).append(_freeTextIncludeSplits).append(_freeTextMatch);
+        }
+        key.append(separator);
+        if (_useTagsFilter)
+        {
+            key.append(_combineTagsLogic).append(_includeTagPickerModel.getSelectedTags());
+            key.append(_excludeTagPickerModel.getSelectedTags());
+        }
+        key.append(separator);
+        if (_useClearedFilter)
+        {
+            key.append(_allowCleared).append(_allowReconciling).append(_allowUncleared);
+        }
+        return key.toString();
+    }
+
     FilterGroup buildTransactionFilter()
     {
         final FilterGroup result = new FilterGroup();
+        result.setTextIndex(_textIndex);
+        result.setDateIndex(_dateIndex);
         AccountFilter accountFilter = null;
         if (_useAccountFilter && !_accountFilter.isAllAccounts())
         {
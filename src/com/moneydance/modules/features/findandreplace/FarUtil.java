@@ -439,14 +439,14 @@ final class FarUtil
         }
     }
 
-    static boolean isStringMatch(final Pattern pattern, final String text)
+    static boolean isStringMatch(final TextMatcher matcher, final String text)
     {
         if (isBlank(text))
         {
             // check to see if the user is trying to find things that are blank
-            return (pattern == null);
+            return (matcher == null);
         }
-        return (pattern != null) && pattern.matcher(text).find();
+        return (matcher != null) && matcher.find(text);
     }
 
     /**
@@ -142,6 +142,7 @@ class FarView extends SecondaryFrame implements PropertyChangeListener
     private JButton _replaceButton;
     private JButton _replaceAllButton;
     private JButton _recordButton;
+    private JButton _undoCommitButton;
     private JButton _closeButton;
     private JButton _resetButton;
     private JButton _markAllButton;
@@ -605,6 +606,7 @@ class FarView extends SecondaryFrame implements PropertyChangeListener
         {
             _recordButton.setEnabled(false);
         }
+        _undoCommitButton.setEnabled(_controller.canUndoCommit());
 
     } // propertyChange()
 
@@ -623,6 +625,30 @@ class FarView extends SecondaryFrame implements PropertyChangeListener
         }
     }
 
+    /**
+     * Called when a background search starts. The find button becomes a cancel button and the
+     * status line shows the search progress until {@link #findFinished()} is called.
+     */
+    void findStarted()
+    {
+        _findButton.setText(_controller.getString(L10NFindAndReplace.CANCEL));
+        setFindProgress(0);
+    }
+
+    void setFindProgress(final int percent)
+    {
+        final String format = _controller.getString(L10NFindAndReplace.FINDING_PROGRESS_FMT);
+        _statusLabel.setText(MessageFormat.format(format, Integer.valueOf(percent)));
+        _statusLabel.setFont(_resetButton.getFont());
+        _statusLabel.setEnabled(true);
+    }
+
+    void findFinished()
+    {
+        _findButton.setText(_controller.getString(L10NFindAndReplace.FIND_BUTTON_TEXT));
+        clearProgressText();
+    }
+
     void fireFind()
     {
         SwingUtilities.invokeLater(new Runnable()
@@ -775,6 +801,12 @@ class FarView extends SecondaryFrame implements PropertyChangeListener
         {
             public void actionPerformed(final ActionEvent event)
             {
+                if (_controller.isFindRunning())
+                {
+                    // the find button doubles as the cancel button while a search runs
+                    _controller.cancelFind();
+                    return;
+                }
                 final Cursor current = getCursor();
                 setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
                 if (saveFindEdits())
@@ -828,9 +860,23 @@ class FarView extends SecondaryFrame implements PropertyChangeListener
             {
                 setProgressText();
                 _controller.commit();
+                clearProgressText();
                 // clear the results and run find again to revert colors
                 _controller.find();
+            }
+        });
+
+        _undoCommitButton = createButton(L10NFindAndReplace.UNDO_COMMIT_BUTTON_TEXT, null, false);
+        _undoCommitButton.setEnabled(false);
+        _undoCommitButton.addActionListener(new ActionListener()
+        {
+            public void actionPerformed(final ActionEvent event)
+            {
+                setProgressText();
+                _controller.undoCommit();
                 clearProgressText();
+                // show the restored values
+                _controller.find();
             }
         });
 
@@ -1994,8 +2040,9 @@ class FarView extends SecondaryFrame implements PropertyChangeListener
 
     private JPanel createLowerRightButtonPanel()
     {
-        final JPanel buttons = new JPanel( new GridLayout( 1, 3, UiUtil.HGAP, 0 ) );
+        final JPanel buttons = new JPanel( new GridLayout( 1, 4, UiUtil.HGAP, 0 ) );
 
+        buttons.add( _undoCommitButton );
         buttons.add( _resetButton );
         buttons.add( _recordButton );
         buttons.add( _closeButton );
@@ -2036,6 +2083,19 @@ class FarView extends SecondaryFrame implements PropertyChangeListener
         _statusLabel.paintImmediately(_statusLabel.getBounds());
     }
 
+    /**
+     * Show how many modified transactions have been saved so far. Called on the EDT during a
+     * commit, so the label is painted right away.
+     * @param done  Number of transactions saved.
+     * @param total Number of transactions to save.
+     */
+    void setCommitProgress(final int done, final int total)
+    {
+        final String format = _controller.getString(L10NFindAndReplace.COMMIT_PROGRESS_FMT);
+        _statusLabel.setText(MessageFormat.format(format, Integer.valueOf(done), Integer.valueOf(total)));
+        _statusLabel.paintImmediately(_statusLabel.getBounds());
+    }
+
     private void clearProgressText()
     {
         _statusLabel.setText(getVersionText());
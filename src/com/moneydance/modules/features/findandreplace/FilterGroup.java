@@ -6,13 +6,24 @@
 package com.moneydance.modules.features.findandreplace;
 
 import com.infinitekind.moneydance.model.AbstractTxn;
+import com.infinitekind.moneydance.model.Account;
+import com.infinitekind.moneydance.model.AccountBook;
+import com.infinitekind.moneydance.model.ParentTxn;
+import com.infinitekind.moneydance.model.TransactionSet;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
 import java.util.LinkedList;
-import java.util.ListIterator;
+import java.util.List;
+import java.util.Set;
 
 /**
  * <p>Runs transactions through a list of filters. This is where the boolean AND and OR criteria
- * are applied. The individual transaction filters do the filtering itself.</p>
+ * are applied. The individual transaction filters do the filtering itself. The filters are
+ * checked in the order chosen by {@link #buildPlan(List)}, or in the order they were added if
+ * no plan has been built.</p>
  *
  * <p>This code is released as open source under the Apache 2.0 License:<br/>
  * <a href="http://www.apache.org/licenses/LICENSE-2.0">
@@ -24,13 +35,37 @@ import java.util.ListIterator;
  */
 class FilterGroup implements ITransactionFilter
 {
+    /** Maximum number of transactions examined when estimating filter cost and selectivity. */
+    private static final int PLAN_SAMPLE_SIZE = 500;
+    /** Keeps the ranking finite for filters that always (or never) match in the sample. */
+    private static final double MIN_PROBABILITY = 0.001;
+    /**
+     * Reading transactions by account costs more per transaction than a plain scan (lookups,
+     * duplicates, expanding parents to their splits), so only do it when it visits at most this
+     * fraction of the book.
+     */
+    private static final double ACCOUNT_PATH_FRACTION = 0.4;
+
     private final LinkedList<ITransactionFilter> _filterList;
     private boolean _hasRequiredFilters;
 
+    /** Required (AND'ed) filters in the order they are checked. */
+    private ITransactionFilter[] _requiredPlan;
+    /** Optional (OR'ed) filters in the order they are checked. */
+    private ITransactionFilter[] _optionalPlan;
+    private String _planDescription;
+    private FreeTextIndex _textIndex;
+    private DateIndex _dateIndex;
+
     FilterGroup()
     {
         _filterList = new LinkedList<ITransactionFilter>();
         _hasRequiredFilters = false;
+        _requiredPlan = new ITransactionFilter[0];
+        _optionalPlan = new ITransactionFilter[0];
+        _planDescription = null;
+        _textIndex = null;
+        _dateIndex = null;
     }
 
     void addFilter(final ITransactionFilter filter)
@@ -40,6 +75,212 @@ class FilterGroup implements ITransactionFilter
         {
             _hasRequiredFilters = true;
         }
+
+        // until a plan is built, check the filters in the order they were added
+        final List<FilterEstimate> required = new ArrayList<FilterEstimate>();
+        final List<FilterEstimate> optional = new ArrayList<FilterEstimate>();
+        for (final ITransactionFilter item : _filterList)
+        {
+            (item.isRequired() ? required : optional).add(new FilterEstimate(item));
+        }
+        setPlan(required, optional);
+        _planDescription = null;
+    }
+
+    void setTextIndex(final FreeTextIndex textIndex)
+    {
+        _textIndex = textIndex;
+    }
+
+    void setDateIndex(final DateIndex dateIndex)
+    {
+        _dateIndex = dateIndex;
+    }
+
+    /**
+     * Take a snapshot of the transactions to search, choosing the cheapest access path. A filter
+     * that must match, either because it is AND'ed or because it is the only filter, can limit
+     * the transactions visited:
+     * <ul>
+     *     <li>a date range reads just that slice of the date index,</li>
+     *     <li>an account or category filter reads the transactions of the matching accounts,
+     *     if those are a small enough part of the book,</li>
+     * </ul>
+     * and the path with the fewest transactions wins. Otherwise every transaction is scanned.
+     * All filters still run on the transactions selected here.
+     *
+     * @param book The data to search.
+     * @return A new list of the transactions to run through the filters.
+     */
+    List<AbstractTxn> selectTransactions(final AccountBook book)
+    {
+        final TransactionSet txnSet = book.getTransactionSet();
+        DateRangeTxnFilter dateFilter = null;
+        AccountTxnFilter accountFilter = null;
+        for (final ITransactionFilter filter : _filterList)
+        {
+            if (filter.isRequired() || (_filterList.size() == 1))
+            {
+                if (filter instanceof DateRangeTxnFilter)
+                {
+                    dateFilter = (DateRangeTxnFilter) filter;
+                }
+                else if (filter instanceof AccountTxnFilter)
+                {
+                    accountFilter = (AccountTxnFilter) filter;
+                }
+            }
+        }
+
+        int dateCount = Integer.MAX_VALUE;
+        if ((dateFilter != null) && (_dateIndex != null))
+        {
+            // only a date filter brings the date index up to date, a full scan never needs it
+            dateCount = _dateIndex.countTransactions(dateFilter.getMinimum(),
+                    dateFilter.getMaximum(), dateFilter.getUseTaxDate());
+        }
+        List<Account> accounts = null;
+        int accountCount = Integer.MAX_VALUE;
+        if (accountFilter != null)
+        {
+            accounts = accountFilter.getMatchingAccounts(book);
+            if (accounts != null)
+            {
+                accountCount = 0;
+                for (final Account account : accounts)
+                {
+                    accountCount += txnSet.getTransactionsForAccount(account).getSize();
+                }
+                final int fullCount = txnSet.getAllTxns().getSize();
+                if (accountCount > fullCount * ACCOUNT_PATH_FRACTION)
+                {
+                    // not selective enough to be worth it
+                    accountCount = Integer.MAX_VALUE;
+                }
+            }
+        }
+
+        if ((accountCount < Integer.MAX_VALUE) && (accountCount <= dateCount))
+        {
+            return getAccountTransactions(txnSet, accounts);
+        }
+        if (dateCount < Integer.MAX_VALUE)
+        {
+            return _dateIndex.getTransactions(dateFilter.getMinimum(), dateFilter.getMaximum(),
+                                              dateFilter.getUseTaxDate());
+        }
+
+        final List<AbstractTxn> txns = new ArrayList<AbstractTxn>();
+        for (AbstractTxn txn : txnSet.iterableTxns())
+        {
+            txns.add(txn);
+        }
+        return txns;
+    }
+
+    /**
+     * Use the text index, if there is one, to skip transactions that cannot match. This is only
+     * possible when a plain-text free text filter must match, either because it is AND'ed or
+     * because it is the only filter.
+     *
+     * @param txns The transactions to search.
+     * @return The transactions that still have to be run through the filters, in the same order.
+     */
+    List<AbstractTxn> selectCandidates(final List<AbstractTxn> txns)
+    {
+        if (_textIndex == null)
+        {
+            return txns;
+        }
+        for (final ITransactionFilter filter : _filterList)
+        {
+            if ((filter instanceof FreeTextTxnFilter)
+                && (filter.isRequired() || (_filterList.size() == 1)))
+            {
+                final List<AbstractTxn> candidates =
+                        _textIndex.getCandidates(txns, ((FreeTextTxnFilter) filter).getPlainText());
+                if (candidates != null)
+                {
+                    return candidates;
+                }
+            }
+        }
+        return txns;
+    }
+
+    /**
+     * Decide the order in which the filters are checked. Each filter is run against an evenly
+     * spaced sample of the transactions to measure its average cost and how often it matches.
+     * Required (AND'ed) filters are ordered by cost divided by the chance of rejecting a
+     * transaction, so cheap filters that reject a lot run first. Optional (OR'ed) filters are
+     * ordered by cost divided by the chance of matching, so cheap filters that accept a lot run
+     * first. The result of {@link #containsTxn(AbstractTxn)} does not change, only the work done.
+     *
+     * @param txns The transactions that will be searched. Not modified.
+     */
+    void buildPlan(final List<AbstractTxn> txns)
+    {
+        final int step = Math.max(1, txns.size() / PLAN_SAMPLE_SIZE);
+        final List<AbstractTxn> sample = new ArrayList<AbstractTxn>(PLAN_SAMPLE_SIZE + 1);
+        for (int index = 0; index < txns.size(); index += step)
+        {
+            sample.add(txns.get(index));
+        }
+
+        final List<FilterEstimate> required = new ArrayList<FilterEstimate>();
+        final List<FilterEstimate> optional = new ArrayList<FilterEstimate>();
+        for (final ITransactionFilter filter : _filterList)
+        {
+            final FilterEstimate estimate = new FilterEstimate(filter);
+            estimate.measure(sample);
+            (filter.isRequired() ? required : optional).add(estimate);
+        }
+        // stable sorts, so equally ranked filters keep the order they were added in
+        Collections.sort(required, new Comparator<FilterEstimate>()
+        {
+            public int compare(final FilterEstimate left, final FilterEstimate right)
+            {
+                return Double.compare(left.getRequiredRank(), right.getRequiredRank());
+            }
+        });
+        Collections.sort(optional, new Comparator<FilterEstimate>()
+        {
+            public int compare(final FilterEstimate left, final FilterEstimate right)
+            {
+                return Double.compare(left.getOptionalRank(), right.getOptionalRank());
+            }
+        });
+        setPlan(required, optional);
+
+        final StringBuilder sb = new StringBuilder("Filter plan (");
+        sb.append(sample.size()).append(" samples):");
+        for (final FilterEstimate estimate : required)
+        {
+            sb.append(" AND ").append(estimate);
+        }
+        for (final FilterEstimate estimate : optional)
+        {
+            sb.append(" OR ").append(estimate);
+        }
+        _planDescription = sb.toString();
+    }
+
+    /**
+     * @return A description of the filter order chosen by {@link #buildPlan(List)} with the
+     * measured cost and match rate of each filter, or <code>null</code> if no plan was built.
+     */
+    String getPlanDescription()
+    {
+        return _planDescription;
+    }
+
+    /**
+     * @return True if {@link #buildPlan(List)} has already chosen the filter order, as for a
+     * filter kept by the {@link SearchCache}.
+     */
+    boolean hasPlan()
+    {
+        return (_planDescription != null);
     }
 
     /**
@@ -67,45 +308,26 @@ class FilterGroup implements ITransactionFilter
 
     private boolean checkRequiredFilters(AbstractTxn txn)
     {
-        boolean matches = true;
-
-        ListIterator<ITransactionFilter> iter = _filterList.listIterator();
-        while (iter.hasNext() && matches)
+        for (final ITransactionFilter filter : _requiredPlan)
         {
-            final ITransactionFilter filter = iter.next();
-            if (!filter.isRequired())
-            {
-                // only check those filters that are required (AND'ed)
-                continue;
-            }
-
-            matches = filter.containsTxn(txn);
-            if (!matches)
+            if (!filter.containsTxn(txn))
             {
                 // definitely not a match, the filter is AND'ed and didn't match which means this
                 // txn is definitely excluded
-                return matches;
+                return false;
             }
 
             // the transaction matched and is required, so we move on to the next filter in the list
         }
 
-        return matches;
+        return true;
     } // checkRequiredFilters()
 
 
     private boolean checkOptionalFilters(AbstractTxn txn)
     {
-        ListIterator<ITransactionFilter> iter = _filterList.listIterator();
-        while (iter.hasNext())
+        for (final ITransactionFilter filter : _optionalPlan)
         {
-            final ITransactionFilter filter = iter.next();
-            if (filter.isRequired())
-            {
-                // only check those filters that are not required (OR'ed)
-                continue;
-            }
-
             if (filter.containsTxn(txn))
             {
                 // definitely a match, the filter is OR'ed and matched which means this
@@ -129,4 +351,112 @@ class FilterGroup implements ITransactionFilter
         return false;
     }
 
+    /**
+     * Collect the transactions registered to each account, plus all splits of parents registered
+     * to those accounts, since a split can match on the account of its parent.
+     */
+    private static List<AbstractTxn> getAccountTransactions(final TransactionSet txnSet,
+                                                            final List<Account> accounts)
+    {
+        final Set<AbstractTxn> found =
+                Collections.newSetFromMap(new IdentityHashMap<AbstractTxn, Boolean>());
+        final List<AbstractTxn> txns = new ArrayList<AbstractTxn>();
+        for (final Account account : accounts)
+        {
+            for (final AbstractTxn txn : txnSet.getTransactionsForAccount(account))
+            {
+                if (found.add(txn))
+                {
+                    txns.add(txn);
+                }
+                if (txn instanceof ParentTxn)
+                {
+                    for (int ii = txn.getOtherTxnCount() - 1; ii >= 0; ii--)
+                    {
+                        final AbstractTxn split = txn.getOtherTxn(ii);
+                        if (found.add(split))
+                        {
+                            txns.add(split);
+                        }
+                    }
+                }
+            }
+        }
+        return txns;
+    }
+
+    private void setPlan(final List<FilterEstimate> required, final List<FilterEstimate> optional)
+    {
+        final ITransactionFilter[] requiredPlan = new ITransactionFilter[required.size()];
+        for (int index = 0; index < requiredPlan.length; index++)
+        {
+            requiredPlan[index] = required.get(index).getFilter();
+        }
+        final ITransactionFilter[] optionalPlan = new ITransactionFilter[optional.size()];
+        for (int index = 0; index < optionalPlan.length; index++)
+        {
+            optionalPlan[index] = optional.get(index).getFilter();
+        }
+        _requiredPlan = requiredPlan;
+        _optionalPlan = optionalPlan;
+    }
+
+    /**
+     * Measured cost and match rate of one filter over a sample of transactions.
+     */
+    private static class FilterEstimate
+    {
+        private final ITransactionFilter _filter;
+        private double _nanosPerTxn = 0;
+        private double _matchRate = 0.5;
+
+        FilterEstimate(final ITransactionFilter filter)
+        {
+            _filter = filter;
+        }
+
+        ITransactionFilter getFilter()
+        {
+            return _filter;
+        }
+
+        void measure(final List<AbstractTxn> sample)
+        {
+            if (sample.isEmpty())
+            {
+                return;
+            }
+            int matches = 0;
+            final long start = System.nanoTime();
+            for (final AbstractTxn txn : sample)
+            {
+                if (_filter.containsTxn(txn))
+                {
+                    ++matches;
+                }
+            }
+            _nanosPerTxn = (double) (System.nanoTime() - start) / sample.size();
+            _matchRate = (double) matches / sample.size();
+        }
+
+        /** @return Expected cost to reject a transaction, lower is checked first. */
+        double getRequiredRank()
+        {
+            return _nanosPerTxn / Math.max(1.0 - _matchRate, MIN_PROBABILITY);
+        }
+
+        /** @return Expected cost to accept a transaction, lower is checked first. */
+        double getOptionalRank()
+        {
+            return _nanosPerTxn / Math.max(_matchRate, MIN_PROBABILITY);
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format("%s[%.0fns, %.1f%%]", _filter.getClass().getSimpleName(),
+                                 Double.valueOf(_nanosPerTxn), Double.valueOf(100.0 * _matchRate));
+        }
+    }
+
 }
@@ -8,6 +8,8 @@
 
 package com.moneydance.modules.features.findandreplace;
 
+import com.infinitekind.moneydance.model.AccountBook;
+
 import java.awt.Image;
 
 /**
@@ -56,6 +58,21 @@ class FindAndReplace
         return (com.moneydance.apps.md.view.gui.MoneydanceGUI) getMDMain().getUI();
     }
 
+    FreeTextIndex getTextIndex(final AccountBook book)
+    {
+        return _extension.getTextIndex(book);
+    }
+
+    DateIndex getDateIndex(final AccountBook book)
+    {
+        return _extension.getDateIndex(book);
+    }
+
+    SearchCache getSearchCache(final AccountBook book)
+    {
+        return _extension.getSearchCache(book);
+    }
+
     String getString(final String resourceKey)
     {
         return _extension.getString( resourceKey );
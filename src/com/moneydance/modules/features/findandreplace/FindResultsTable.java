@@ -34,7 +34,7 @@ class FindResultsTable extends JTableBase
         setRowSorter(new FindResultsRowSorter(model));
     }
 
-    private class FindResultsRowSorter extends DefaultRowSorter<FindResultsTableModel, FindResultsTableEntry>
+    private class FindResultsRowSorter extends DefaultRowSorter<FindResultsTableModel, Integer>
     {
         FindResultsRowSorter(final FindResultsTableModel model)
         {
@@ -45,7 +45,7 @@ class FindResultsTable extends JTableBase
         }
         
         private class FindResultsModelWrapper extends
-                DefaultRowSorter.ModelWrapper<FindResultsTableModel, FindResultsTableEntry>
+                DefaultRowSorter.ModelWrapper<FindResultsTableModel, Integer>
         {
             final FindResultsTableModel _model;
             FindResultsModelWrapper(final FindResultsTableModel model)
@@ -72,7 +72,7 @@ class FindResultsTable extends JTableBase
                 // we don't want to compare with strings, we want to compare with the value
                 if (column == FindResultsTableModel.AMOUNT_INDEX)
                 {
-                    return Long.valueOf(_model.getAmountInBaseCurrency(row));
+                    return Long.valueOf(_model.getAmountSortKey(row));
                 }
                 if (column == FindResultsTableModel.DATE_INDEX)
                 {
@@ -85,9 +85,10 @@ class FindResultsTable extends JTableBase
                 return _model.getValueAt(row, column);
             }
 
-            public FindResultsTableEntry getIdentifier(int row)
+            public Integer getIdentifier(int row)
             {
-                return _model.getEntry(row);
+                // the model row, so sorting does not create the row state of every row
+                return Integer.valueOf(row);
             }
         }
     } // class FindResultsRowSorter
@@ -13,9 +13,6 @@ import com.infinitekind.moneydance.model.CurrencyType;
 import com.infinitekind.moneydance.model.SplitTxn;
 import com.infinitekind.moneydance.model.ParentTxn;
 
-import java.util.Set;
-import java.util.HashSet;
-
 /**
  * <p>Single row in the find results table.</p>
  *
@@ -30,7 +27,8 @@ class FindResultsTableEntry
     private final CurrencyType _currency;
     private boolean _useInReplace;
     private boolean _applied;
-    private final Set<Integer> _modifiedColumns = new HashSet<Integer>();
+    /** One bit per table column index, there are fewer than 32 columns. */
+    private int _modifiedColumns = 0;
 
     FindResultsTableEntry(final AbstractTxn txn, final CurrencyType baseCurrency)
     {
@@ -97,12 +95,12 @@ class FindResultsTableEntry
 
     void addModifiedColumn(final int columnIndex)
     {
-        _modifiedColumns.add(Integer.valueOf(columnIndex));
+        _modifiedColumns |= (1 << columnIndex);
     }
 
     boolean isColumnModified(final int columnIndex)
     {
-        return _modifiedColumns.contains(Integer.valueOf(columnIndex));
+        return (_modifiedColumns & (1 << columnIndex)) != 0;
     }
 
     SplitTxn getSplitTxn()
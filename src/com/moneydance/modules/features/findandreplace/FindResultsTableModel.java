@@ -13,12 +13,15 @@ import com.moneydance.apps.md.controller.UserPreferences;
 import com.moneydance.apps.md.view.gui.MDImages;
 import com.infinitekind.util.CustomDateFormat;
 
+import javax.swing.event.TableModelEvent;
 import javax.swing.table.AbstractTableModel;
 import javax.swing.Icon;
-import java.util.Collections;
-import java.util.Comparator;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Map;
 import java.util.Set;
 import java.util.HashSet;
 import java.awt.Color;
@@ -26,6 +29,13 @@ import java.awt.Color;
 /**
  * <p>Model for the results table.</p>
  *
+ * <p>The found splits are kept in a plain array, with the display rows as an array of indexes
+ * into it. The row state ({@link FindResultsTableEntry}) of a split is only created when the row
+ * is first used. Formatted cell values and tooltips are computed when a row is painted and kept
+ * in a small least-recently-used cache, which is cleared by any table change event. Rows are
+ * sorted on primitive keys: the parent date and date entered are read once when a split is
+ * added, and the base currency amount is computed once per row for sorting by amount.</p>
+ *
  * @author Kevin Menningen
  * @version Build 94
  * @since 1.0
@@ -50,13 +60,37 @@ public class FindResultsTableModel extends AbstractTableModel
     
     private static final String DEFAULT_DATE_FORMAT = "MM/dd/YYYY";
     private static final char DEFAULT_DECIMAL_CHAR = '.';
-    private static final Comparator<FindResultsTableEntry> InitialResultsSorter = new TableEntryComparator();
+    /** Initial number of slots in the split and row arrays. */
+    private static final int INITIAL_CAPACITY = 256;
+    /** Number of formatted cells (and tooltips) cached, enough for several screens of rows. */
+    private static final int CELL_CACHE_SIZE = 4096;
+    /** Cache column used for the tooltip of a row. */
+    private static final int TOOLTIP_COLUMN = -1;
+    /** Runs shorter than this are sorted by insertion. */
+    private static final int INSERTION_SORT_SIZE = 16;
 
     private List<String> _userTagSet;
-    /** The full set of data, including all splits. */
-    private final List<FindResultsTableEntry> _splitData;
-    /** Display data. Can be the full splits data or could be just one entry per parent. */
-    private final List<FindResultsTableEntry> _data;
+    /** The full set of data, including all splits. The blank entry has a null split. */
+    private SplitTxn[] _splits;
+    /** Row state for each split, created when the row is first used. */
+    private FindResultsTableEntry[] _entries;
+    /** Parent date of each split, the first initial sort key. */
+    private int[] _dateKeys;
+    /** Parent date entered of each split, the second initial sort key. */
+    private long[] _enteredKeys;
+    private int _splitCount;
+    /** Display data as indexes into the split arrays. Can be all splits or one per parent. */
+    private int[] _rows;
+    private int _rowCount;
+    /** Amount of each row in the base currency for sorting, valid where the bit is set. */
+    private long[] _amountKeys;
+    private final BitSet _amountKeyValid;
+    /** Formatted values by (row, column), in least recently used order. */
+    private final Map<Long, CachedCell> _cellCache;
+    /** The commands the cached values were computed with. */
+    private final List<ReplaceCommand> _cachedCommands;
+    /** Parent transactions already represented in the display data when consolidating splits. */
+    private final Set<String> _shownParentIDs;
     private final List<String> _columns;
 
     private final IFindAndReplaceController _controller;
@@ -76,8 +110,18 @@ public class FindResultsTableModel extends AbstractTableModel
     FindResultsTableModel(final IFindAndReplaceController controller)
     {
         super();
-        _splitData = new ArrayList<FindResultsTableEntry>();
-        _data = new ArrayList<FindResultsTableEntry>();
+        allocateArrays();
+        _amountKeyValid = new BitSet();
+        _cellCache = new LinkedHashMap<Long, CachedCell>(CELL_CACHE_SIZE, 0.75f, true)
+        {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<Long, CachedCell> eldest)
+            {
+                return size() > CELL_CACHE_SIZE;
+            }
+        };
+        _cachedCommands = new ArrayList<ReplaceCommand>();
+        _shownParentIDs = new HashSet<String>();
         _columns = new ArrayList<String>();
         _controller = controller;
 
@@ -118,33 +162,30 @@ public class FindResultsTableModel extends AbstractTableModel
 
     void refresh()
     {
-        _data.clear();
-        final Set<String> foundIDs = new HashSet<String>(_splitData.size());
-        if (_controller.getShowParents())
+        _rowCount = 0;
+        _shownParentIDs.clear();
+        ensureRowCapacity(_splitCount);
+        final boolean showParents = _controller.getShowParents();
+        for (int index = 0; index < _splitCount; index++)
         {
-            // build a smaller list of entries containing only one entry per parent transaction
-            for (FindResultsTableEntry entry : _splitData)
+            // when consolidating splits, add the first one found per parent, all others will be
+            // ignored. Otherwise the list of splits is exactly what we show
+            if (!showParents || _shownParentIDs.add(getParentTxn(index).getUUID()))
             {
-                final String parentId = entry.getParentTxn().getUUID();
-                if (!foundIDs.contains(parentId)) {
-                    // add the first one found in the splits list, all others will be ignored
-                    _data.add(entry);
-                    foundIDs.add(parentId);
-                }
+                _rows[_rowCount++] = index;
             }
         }
-        else
-        {
-            // the list of splits is exactly what we show
-            _data.addAll(_splitData);
-        }
-        Collections.sort(_data, InitialResultsSorter);
+        sortSplitIndexes(_rows, 0, _rowCount, new int[_rowCount]);
         fireTableDataChanged();
     }
 
     FindResultsTableEntry getEntry(final int index)
     {
-        return _data.get(index);
+        if ((index < 0) || (index >= _rowCount))
+        {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + _rowCount);
+        }
+        return getSplitEntry(_rows[index]);
     }
     
     void setUserTagSet(final List<String> userTags)
@@ -155,12 +196,15 @@ public class FindResultsTableModel extends AbstractTableModel
     void setCommandList(final List<ReplaceCommand> commands)
     {
         _commands = commands;
+        clearCaches();
     }
 
     void reset()
     {
-        _data.clear();
-        _splitData.clear();
+        // start over with small arrays so a large result set does not stay in memory
+        allocateArrays();
+        _shownParentIDs.clear();
+        clearCaches();
     }
     
     private ParentTxn blankTxn = null;
@@ -191,8 +235,9 @@ public class FindResultsTableModel extends AbstractTableModel
     {
         FindResultsTableEntry blankEntry = getBlankEntry(_controller.getBook());
         reset();
-        _splitData.add(blankEntry);
-        _data.add(blankEntry);
+        final int index = appendSplit(null);
+        _entries[index] = blankEntry;
+        _rows[_rowCount++] = index;
         fireTableDataChanged();
     }
     
@@ -208,17 +253,73 @@ public class FindResultsTableModel extends AbstractTableModel
 
     void add(final SplitTxn txn, final boolean notify)
     {
-        final int index = _splitData.size();
-        _splitData.add(new FindResultsTableEntry(txn, _controller.getCurrencyType()));
+        final int index = appendSplit(txn);
         if (notify)
         {
             fireTableRowsInserted(index, index);
         }
     }
 
+    /**
+     * Add a batch of found splits while a search is running. The batch is sorted on its own and
+     * then merged into the display list, so the rows stay in the initial sort order without
+     * sorting the whole list again for each batch.
+     * @param splits The splits to add.
+     */
+    void addBatch(final List<SplitTxn> splits)
+    {
+        final int[] batch = new int[splits.size()];
+        int batchSize = 0;
+        final boolean showParents = _controller.getShowParents();
+        for (final SplitTxn split : splits)
+        {
+            final int index = appendSplit(split);
+            if (!showParents || _shownParentIDs.add(split.getParentTxn().getUUID()))
+            {
+                batch[batchSize++] = index;
+            }
+        }
+        if (batchSize == 0)
+        {
+            return;
+        }
+        sortSplitIndexes(batch, 0, batchSize, new int[batchSize]);
+
+        // merge the two sorted lists, walking backwards so the display list can be filled in place
+        ensureRowCapacity(_rowCount + batchSize);
+        int dataIndex = _rowCount - 1;
+        int batchIndex = batchSize - 1;
+        int target = _rowCount + batchSize - 1;
+        _rowCount += batchSize;
+        while (batchIndex >= 0)
+        {
+            if ((dataIndex >= 0) && (compareSplits(_rows[dataIndex], batch[batchIndex]) > 0))
+            {
+                _rows[target--] = _rows[dataIndex--];
+            }
+            else
+            {
+                _rows[target--] = batch[batchIndex--];
+            }
+        }
+        fireTableDataChanged();
+    }
+
     String getToolTipText(final int rowIndex)
     {
-        final FindResultsTableEntry entry = _data.get(rowIndex);
+        final FindResultsTableEntry entry = getEntry(rowIndex);
+        final CachedCell cached = getCachedCell(rowIndex, TOOLTIP_COLUMN, entry);
+        if (cached != null)
+        {
+            return (String) cached._value;
+        }
+        final String result = buildToolTipText(entry);
+        putCachedCell(rowIndex, TOOLTIP_COLUMN, entry, result);
+        return result;
+    }
+
+    private String buildToolTipText(final FindResultsTableEntry entry)
+    {
         if (entry == null)
         {
             return null;
@@ -419,7 +520,7 @@ public class FindResultsTableModel extends AbstractTableModel
 
     boolean isNegative(final int index)
     {
-        final FindResultsTableEntry entry = _data.get(index);
+        final FindResultsTableEntry entry = getEntry(index);
         final ParentTxn parent = entry.getParentTxn();
         if ((parent == null) || parent.equals(getBlankEntry(_controller.getBook()).getParentTxn())) {
             return false;
@@ -435,9 +536,29 @@ public class FindResultsTableModel extends AbstractTableModel
         return flip ? (split.getValue() > 0) : (split.getValue() < 0);
     }
 
+    /**
+     * @param index The model row.
+     * @return The amount of the row in the base currency, computed once per row for sorting.
+     */
+    long getAmountSortKey(final int index)
+    {
+        validateCaches();
+        if (getEntry(index).isApplied())
+        {
+            // a replacement preview can change without a table event
+            return getAmountInBaseCurrency(index);
+        }
+        if (!_amountKeyValid.get(index))
+        {
+            _amountKeys[index] = getAmountInBaseCurrency(index);
+            _amountKeyValid.set(index);
+        }
+        return _amountKeys[index];
+    }
+
     private long getAmountInCurrency(int index, CurrencyType outputCurrency)
     {
-        final FindResultsTableEntry entry = _data.get(index);
+        final FindResultsTableEntry entry = getEntry(index);
         final ParentTxn parent = entry.getParentTxn();
         if ((parent == null) || parent.equals(getBlankEntry(_controller.getBook()).getParentTxn()))
         {
@@ -459,7 +580,7 @@ public class FindResultsTableModel extends AbstractTableModel
 
     CurrencyType getDisplayCurrency(final int index)
     {
-        final FindResultsTableEntry entry = _data.get(index);
+        final FindResultsTableEntry entry = getEntry(index);
         // if we've replaced the value, return the replacement currency
         CurrencyType displayCurrency = getCommandCurrency(entry);
         return (displayCurrency != null) ? displayCurrency : _controller.getCurrencyType();
@@ -467,18 +588,16 @@ public class FindResultsTableModel extends AbstractTableModel
 
     int getDateInt(final int index)
     {
-        final FindResultsTableEntry entry = _data.get(index);
-        final ParentTxn parent = entry.getParentTxn();
-        if (parent == null)
+        if ((index < 0) || (index >= _rowCount))
         {
-            return 0;
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + _rowCount);
         }
-        return FarUtil.getTransactionDate(parent); // YYYYMMDD
+        return _dateKeys[_rows[index]]; // YYYYMMDD
     }
 
     int getClearedInt(final int index)
     {
-        final FindResultsTableEntry entry = _data.get(index);
+        final FindResultsTableEntry entry = getEntry(index);
         final ParentTxn parent = entry.getParentTxn();
         if (parent == null)
         {
@@ -515,7 +634,7 @@ public class FindResultsTableModel extends AbstractTableModel
      */
     public int getRowCount()
     {
-        return _data.size();
+        return _rowCount;
     }
 
     /**
@@ -552,7 +671,52 @@ public class FindResultsTableModel extends AbstractTableModel
      */
     public Object getValueAt(int rowIndex, int columnIndex)
     {
-        final FindResultsTableEntry entry = _data.get(rowIndex);
+        if ((columnIndex == SEL_INDEX) || (columnIndex == USE_INDEX))
+        {
+            // cheap and changed by the user, not worth caching
+            return computeValueAt(rowIndex, columnIndex);
+        }
+        final FindResultsTableEntry entry = getEntry(rowIndex);
+        final CachedCell cached = getCachedCell(rowIndex, columnIndex, entry);
+        if (cached != null)
+        {
+            return cached._value;
+        }
+        final Object result = computeValueAt(rowIndex, columnIndex);
+        putCachedCell(rowIndex, columnIndex, entry, result);
+        return result;
+    }
+
+    /**
+     * Clear cached values for the rows that changed before the table is told about the change.
+     * @param event The table model change.
+     */
+    @Override
+    public void fireTableChanged(final TableModelEvent event)
+    {
+        if ((event.getType() != TableModelEvent.UPDATE)
+            || (event.getFirstRow() == TableModelEvent.HEADER_ROW)
+            || (event.getLastRow() == Integer.MAX_VALUE))
+        {
+            clearCaches();
+        }
+        else
+        {
+            for (int row = event.getFirstRow(); row <= event.getLastRow(); row++)
+            {
+                for (int column = TOOLTIP_COLUMN; column < OTHER_AMOUNT_INDEX + 1; column++)
+                {
+                    _cellCache.remove(Long.valueOf(getCellKey(row, column)));
+                }
+                _amountKeyValid.clear(row);
+            }
+        }
+        super.fireTableChanged(event);
+    }
+
+    private Object computeValueAt(int rowIndex, int columnIndex)
+    {
+        final FindResultsTableEntry entry = getEntry(rowIndex);
         final ParentTxn parent = entry.getParentTxn();
         if (parent == null)
         {
@@ -723,7 +887,7 @@ public class FindResultsTableModel extends AbstractTableModel
         super.setValueAt(aValue, rowIndex, columnIndex);
         if ((columnIndex == USE_INDEX) && (aValue instanceof Boolean))
         {
-            final FindResultsTableEntry entry = _data.get(rowIndex);
+            final FindResultsTableEntry entry = getEntry(rowIndex);
             entry.setUseInReplace(((Boolean)aValue).booleanValue());
             // do the default, which updates the row sorter
             fireTableRowsUpdated(rowIndex, rowIndex);
@@ -1036,6 +1200,189 @@ public class FindResultsTableModel extends AbstractTableModel
     // Private Methods
     //////////////////////////////////////////////////////////////////////////////////////////////
 
+    private void allocateArrays()
+    {
+        _splits = new SplitTxn[INITIAL_CAPACITY];
+        _entries = new FindResultsTableEntry[INITIAL_CAPACITY];
+        _dateKeys = new int[INITIAL_CAPACITY];
+        _enteredKeys = new long[INITIAL_CAPACITY];
+        _splitCount = 0;
+        _rows = new int[INITIAL_CAPACITY];
+        _amountKeys = new long[INITIAL_CAPACITY];
+        _rowCount = 0;
+    }
+
+    private void ensureRowCapacity(final int capacity)
+    {
+        if (capacity > _rows.length)
+        {
+            final int length = Math.max(capacity, _rows.length * 2);
+            _rows = Arrays.copyOf(_rows, length);
+            _amountKeys = Arrays.copyOf(_amountKeys, length);
+        }
+    }
+
+    /**
+     * Add a split to the end of the split arrays, without showing it.
+     * @param split The split to add, null for the blank entry.
+     * @return The index of the split.
+     */
+    private int appendSplit(final SplitTxn split)
+    {
+        if (_splitCount == _splits.length)
+        {
+            final int length = _splits.length * 2;
+            _splits = Arrays.copyOf(_splits, length);
+            _entries = Arrays.copyOf(_entries, length);
+            _dateKeys = Arrays.copyOf(_dateKeys, length);
+            _enteredKeys = Arrays.copyOf(_enteredKeys, length);
+        }
+        final int index = _splitCount++;
+        _splits[index] = split;
+        _entries[index] = null;
+        final ParentTxn parent = (split == null) ? null : split.getParentTxn();
+        _dateKeys[index] = (parent == null) ? 0 : parent.getDateInt();
+        _enteredKeys[index] = (parent == null) ? 0 : parent.getDateEntered();
+        return index;
+    }
+
+    private FindResultsTableEntry getSplitEntry(final int splitIndex)
+    {
+        FindResultsTableEntry entry = _entries[splitIndex];
+        if (entry == null)
+        {
+            entry = new FindResultsTableEntry(_splits[splitIndex], _controller.getCurrencyType());
+            _entries[splitIndex] = entry;
+        }
+        return entry;
+    }
+
+    private ParentTxn getParentTxn(final int splitIndex)
+    {
+        final SplitTxn split = _splits[splitIndex];
+        return (split == null) ? getSplitEntry(splitIndex).getParentTxn() : split.getParentTxn();
+    }
+
+    /**
+     * When results are returned from Moneydance, they are not initially sorted as they used to be.
+     * This provides an initial sort, which is the sort of the row order (row 1 is the first item,
+     * row 2 second, etc.) The sort is by date in descending order, so that initially the newest
+     * transaction is row 1, second newest row 2, etc. This can be overridden by the user by
+     * clicking on the table header.
+     */
+    private int compareSplits(final int left, final int right)
+    {
+        if (_dateKeys[left] != _dateKeys[right])
+        {
+            return _dateKeys[right] - _dateKeys[left];
+        }
+
+        // same transaction date, so pick by date entered
+        if (_enteredKeys[left] < _enteredKeys[right]) return 1;
+        if (_enteredKeys[left] > _enteredKeys[right]) return -1;
+        return 0;
+    }
+
+    /**
+     * Stable merge sort of split indexes in the initial sort order.
+     * @param indexes The indexes to sort.
+     * @param from    First position to sort, inclusive.
+     * @param to      Last position to sort, exclusive.
+     * @param buffer  Work space at least as long as <code>to</code>.
+     */
+    private void sortSplitIndexes(final int[] indexes, final int from, final int to, final int[] buffer)
+    {
+        if (to - from <= INSERTION_SORT_SIZE)
+        {
+            for (int ii = from + 1; ii < to; ii++)
+            {
+                final int value = indexes[ii];
+                int jj = ii - 1;
+                while ((jj >= from) && (compareSplits(indexes[jj], value) > 0))
+                {
+                    indexes[jj + 1] = indexes[jj];
+                    jj--;
+                }
+                indexes[jj + 1] = value;
+            }
+            return;
+        }
+        final int middle = (from + to) >>> 1;
+        sortSplitIndexes(indexes, from, middle, buffer);
+        sortSplitIndexes(indexes, middle, to, buffer);
+        if (compareSplits(indexes[middle - 1], indexes[middle]) <= 0)
+        {
+            // already in order
+            return;
+        }
+        System.arraycopy(indexes, from, buffer, from, to - from);
+        int left = from;
+        int right = middle;
+        for (int target = from; target < to; target++)
+        {
+            if ((right >= to) || ((left < middle) && (compareSplits(buffer[left], buffer[right]) <= 0)))
+            {
+                indexes[target] = buffer[left++];
+            }
+            else
+            {
+                indexes[target] = buffer[right++];
+            }
+        }
+    }
+
+    private static long getCellKey(final int row, final int column)
+    {
+        return ((long) row << 32) | (column & 0xFFFFFFFFL);
+    }
+
+    private CachedCell getCachedCell(final int row, final int column, final FindResultsTableEntry entry)
+    {
+        validateCaches();
+        final CachedCell cached = _cellCache.get(Long.valueOf(getCellKey(row, column)));
+        if ((cached == null) || (cached._applied != entry.isApplied()))
+        {
+            // applying or resetting a replacement does not always fire a table event
+            return null;
+        }
+        return cached;
+    }
+
+    private void putCachedCell(final int row, final int column, final FindResultsTableEntry entry,
+                               final Object value)
+    {
+        _cellCache.put(Long.valueOf(getCellKey(row, column)), new CachedCell(value, entry.isApplied()));
+    }
+
+    /**
+     * The command list is shared with the controller, which replaces the command without telling
+     * the table. Throw away cached values when it no longer holds the same commands.
+     */
+    private void validateCaches()
+    {
+        final int count = (_commands == null) ? 0 : _commands.size();
+        boolean same = (count == _cachedCommands.size());
+        for (int index = 0; same && (index < count); index++)
+        {
+            same = (_commands.get(index) == _cachedCommands.get(index));
+        }
+        if (!same)
+        {
+            clearCaches();
+        }
+    }
+
+    private void clearCaches()
+    {
+        _cellCache.clear();
+        _amountKeyValid.clear();
+        _cachedCommands.clear();
+        if (_commands != null)
+        {
+            _cachedCommands.addAll(_commands);
+        }
+    }
+
     private void buildColumns(final IResourceProvider resources)
     {
         // select
@@ -1053,28 +1400,16 @@ public class FindResultsTableModel extends AbstractTableModel
         _columns.add(N12EFindAndReplace.EMPTY);
     }
 
-    /**
-     * When results are returned from Moneydance, they are not initially sorted as they used to be. This comparator
-     * provides an initial sort, which is the sort of the row order (row 1 is the first item, row 2 second, etc.)
-     * The sort is by date in descending order, so that initially the newest transaction is row 1, second newest
-     * row 2, etc. This can be overridden by the user by clicking on the table header.
-     */
-    private static class TableEntryComparator implements Comparator<FindResultsTableEntry>
+    /** A formatted cell value and whether the replacement preview was shown in it. */
+    private static class CachedCell
     {
-        public int compare(FindResultsTableEntry left, FindResultsTableEntry right) {
-            int leftInt = left.getParentTxn().getDateInt();
-            int rightInt = right.getParentTxn().getDateInt();
-            if (leftInt != rightInt)
-            {
-                return rightInt - leftInt;
-            }
+        private final Object _value;
+        private final boolean _applied;
 
-            // same transaction date, so pick by date entered
-            long leftDate = left.getParentTxn().getDateEntered();
-            long rightDate = right.getParentTxn().getDateEntered();
-            if (leftDate < rightDate) return 1;
-            if (leftDate > rightDate) return -1;
-            return 0;
+        CachedCell(final Object value, final boolean applied)
+        {
+            _value = value;
+            _applied = applied;
         }
     }
 
@@ -0,0 +1,224 @@
+/*************************************************************************\
+* Copyright (C) 2009-2015 Mennē Software Solutions, LLC
+*
+* This code is released as open source under the Apache 2.0 License:<br/>
+* <a href="http://www.apache.org/licenses/LICENSE-2.0">
+* http://www.apache.org/licenses/LICENSE-2.0</a><br />
+\*************************************************************************/
+
+package com.moneydance.modules.features.findandreplace;
+
+import com.infinitekind.moneydance.model.AbstractTxn;
+import com.infinitekind.moneydance.model.SplitTxn;
+
+import javax.swing.SwingWorker;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>Runs the transaction filter on a worker thread so that a long search does not freeze the
+ * user interface. Matching splits are published in batches and merged into the results table
+ * on the event dispatch thread while the search is still running. The search checks for
+ * cancellation after every transaction.</p>
+ *
+ * <p>Large transaction sets are split into chunks that are filtered in parallel on the common
+ * fork-join pool. Every filter in the {@link FilterGroup} is stateless per call, so the chunks share
+ * nothing but the filter. Each chunk decides on its own which splits it reports (see
+ * {@link FarEngine#addMatches}), so no shared set of IDs is needed to remove duplicates. The
+ * price is that a split's parent is run through the filter too; each chunk remembers the
+ * result per parent, so a parent is only checked again when its splits fall in another
+ * chunk.</p>
+ *
+ * <p>When a cached search is brought up to date, the task reports the unchanged results first
+ * and then only filters the changed transactions (see {@link SearchCache}).</p>
+ *
+ * @author Kevin Menningen
+ * @version Build 94
+ * @since 1.0
+ */
+class FindTask extends SwingWorker<Integer, SplitTxn>
+{
+    /** Number of transactions filtered as one unit of work, and between progress updates. */
+    private static final int CHUNK_SIZE = 2000;
+
+    private final FarController _controller;
+    private final FilterGroup _filter;
+    /** Snapshot of the transactions to search, taken on the event dispatch thread. */
+    private List<AbstractTxn> _txns;
+    private final AtomicInteger _examined = new AtomicInteger(0);
+    /** Every split reported, for the search cache. */
+    private final List<SplitTxn> _found = Collections.synchronizedList(new ArrayList<SplitTxn>());
+    /** Results of an earlier run still valid, reported before filtering, may be null. */
+    private List<SplitTxn> _unchanged = null;
+    /** Find criteria to cache the results under, null to not cache them. */
+    private String _searchKey = null;
+    private long _changeCount = 0;
+
+    FindTask(final FarController controller, final FilterGroup filter,
+             final List<AbstractTxn> txns)
+    {
+        _controller = controller;
+        _filter = filter;
+        _txns = txns;
+    }
+
+    /**
+     * @param unchanged Splits found by an earlier run of the same search that are still valid.
+     * They are reported as found without being filtered again.
+     */
+    void setUnchangedResults(final List<SplitTxn> unchanged)
+    {
+        _unchanged = unchanged;
+    }
+
+    /**
+     * @param searchKey   The find criteria to cache the results under.
+     * @param changeCount The search cache change counter from before the transactions were read.
+     */
+    void setSearchKey(final String searchKey, final long changeCount)
+    {
+        _searchKey = searchKey;
+        _changeCount = changeCount;
+    }
+
+    String getSearchKey()
+    {
+        return _searchKey;
+    }
+
+    long getChangeCount()
+    {
+        return _changeCount;
+    }
+
+    FilterGroup getFilter()
+    {
+        return _filter;
+    }
+
+    /**
+     * @return Every split found, valid once the task is done and was not cancelled.
+     */
+    List<SplitTxn> getFoundSplits()
+    {
+        return _found;
+    }
+
+    @Override
+    protected Integer doInBackground() throws Exception
+    {
+        if ((_unchanged != null) && !_unchanged.isEmpty())
+        {
+            _found.addAll(_unchanged);
+            publish(_unchanged.toArray(new SplitTxn[_unchanged.size()]));
+        }
+
+        // let the text index rule out transactions, then order the filters by measured cost and
+        // selectivity before the real run, unless a cached filter has a plan already
+        _txns = FarEngine.prepare(_filter, _txns);
+
+        final int total = _txns.size();
+        final int processors = Runtime.getRuntime().availableProcessors();
+        if ((processors > 1) && (total > CHUNK_SIZE))
+        {
+            return ForkJoinPool.commonPool().invoke(new FilterChunk(0, total));
+        }
+
+        int matched = 0;
+        for (int start = 0; (start < total) && !isCancelled(); start += CHUNK_SIZE)
+        {
+            matched += filterRange(start, Math.min(start + CHUNK_SIZE, total));
+        }
+        return Integer.valueOf(matched);
+    }
+
+    /**
+     * Filter a range of the transaction snapshot and publish the matching splits. Each split is
+     * reported exactly once no matter which chunk its parent falls in.
+     *
+     * @param start Index of the first transaction to examine.
+     * @param end   Index one past the last transaction to examine.
+     * @return The number of splits published.
+     */
+    private int filterRange(final int start, final int end)
+    {
+        final List<SplitTxn> found = new ArrayList<SplitTxn>();
+        final Map<AbstractTxn, Boolean> parentMatches = new IdentityHashMap<AbstractTxn, Boolean>();
+        for (int index = start; index < end; index++)
+        {
+            if (isCancelled())
+            {
+                break;
+            }
+
+            // both parents and splits will be run through here
+            FarEngine.addMatches(_filter, _txns.get(index), found, parentMatches);
+        }
+
+        if (!found.isEmpty())
+        {
+            _found.addAll(found);
+            publish(found.toArray(new SplitTxn[found.size()]));
+        }
+        final int examined = _examined.addAndGet(end - start);
+        setProgress((int) ((100L * examined) / _txns.size()));
+        return found.size();
+    }
+
+    /**
+     * Called on the event dispatch thread with the splits published since the last call. The
+     * Swing worker coalesces publish calls, so the batch size adapts to how busy the EDT is.
+     * @param splits The newly found splits.
+     */
+    @Override
+    protected void process(final List<SplitTxn> splits)
+    {
+        if (isCancelled() || !_controller.isCurrentFind(this))
+        {
+            return;
+        }
+        _controller.findResultsFound(splits);
+    }
+
+    @Override
+    protected void done()
+    {
+        _controller.findFinished(this);
+    }
+
+    /**
+     * Splits a range of the transaction snapshot in half until it is small enough to filter
+     * directly.
+     */
+    private class FilterChunk extends RecursiveTask<Integer>
+    {
+        private final int _start;
+        private final int _end;
+
+        FilterChunk(final int start, final int end)
+        {
+            _start = start;
+            _end = end;
+        }
+
+        @Override
+        protected Integer compute()
+        {
+            if ((_end - _start <= CHUNK_SIZE) || FindTask.this.isCancelled())
+            {
+                return Integer.valueOf(filterRange(_start, _end));
+            }
+            final int middle = (_start + _end) >>> 1;
+            final FilterChunk left = new FilterChunk(_start, middle);
+            left.fork();
+            final int rightCount = new FilterChunk(middle, _end).compute().intValue();
+            return Integer.valueOf(left.join().intValue() + rightCount);
+        }
+    }
+}
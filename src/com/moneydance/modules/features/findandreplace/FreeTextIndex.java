@@ -0,0 +1,680 @@
+/*************************************************************************\
+* Copyright (C) 2009-2015 Mennē Software Solutions, LLC
+*
+* This code is released as open source under the Apache 2.0 License:<br/>
+* <a href="http://www.apache.org/licenses/LICENSE-2.0">
+* http://www.apache.org/licenses/LICENSE-2.0</a><br />
+\*************************************************************************/
+
+package com.moneydance.modules.features.findandreplace;
+
+import com.infinitekind.moneydance.model.AbstractTxn;
+import com.infinitekind.moneydance.model.AccountBook;
+import com.infinitekind.moneydance.model.ParentTxn;
+import com.infinitekind.moneydance.model.SplitTxn;
+import com.infinitekind.moneydance.model.TransactionListener;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * <p>Inverted index over the description, memo and check number of every transaction in an
+ * account book, used to narrow down a plain-text search before the free text filter runs.</p>
+ *
+ * <p>A plain-text search matches anywhere inside a field, not just whole words, so the index
+ * terms are the case-folded three character sequences (trigrams) of each field. Every trigram
+ * of the search text must appear in a field that matches, so intersecting the postings of the
+ * search trigrams gives a small superset of the matching transactions. The free text filter is
+ * still run on each candidate, so results are exactly the same as a full scan.</p>
+ *
+ * <p>The index is built on a background thread, kept current through a transaction listener,
+ * and saved to the book's local storage so the next session only has to re-index transactions
+ * that changed in the meantime. A changed transaction gets a new slot; the old slot is retired
+ * and the index compacted once the retired slots pass a quarter of the live ones, and before it
+ * is saved.</p>
+ *
+ * @author Kevin Menningen
+ * @version Build 94
+ * @since 1.0
+ */
+class FreeTextIndex implements TransactionListener
+{
+    private static final int FILE_VERSION = 1;
+    private static final int GRAM_LENGTH = 3;
+    /** Compact once the retired slots exceed the live ones divided by this. */
+    private static final int RETIRED_DIVISOR = 4;
+    /** Retired slots that are always allowed, so a small index is not compacted on every change. */
+    private static final int MIN_RETIRED = 1024;
+
+    private final AccountBook _book;
+
+    /** Slot number for each indexed transaction ID. */
+    private final Map<String, Integer> _slotByID = new HashMap<String, Integer>();
+    /** Transaction ID for each slot, <code>null</code> for slots that are no longer used. */
+    private final List<String> _idBySlot = new ArrayList<String>();
+    /** Hash of the indexed text for each slot, used to detect changes made between sessions. */
+    private int[] _fingerprints = new int[1024];
+    private final BitSet _liveSlots = new BitSet();
+    /** Slots retired since the index was last compacted. */
+    private int _retiredCount = 0;
+    /** Sorted slot numbers for each trigram. */
+    private final Map<Long, PostingList> _postings = new HashMap<Long, PostingList>();
+
+    /** Changes that arrived while the index was loading, by ID. <code>null</code> means removed. */
+    private final Map<String, AbstractTxn> _pendingChanges = new LinkedHashMap<String, AbstractTxn>();
+    private boolean _ready = false;
+    private boolean _closed = false;
+    private boolean _dirty = false;
+
+    private FreeTextIndex(final AccountBook book)
+    {
+        _book = book;
+    }
+
+    /**
+     * Start listening to the book and load the index in the background. Must be called on the
+     * event dispatch thread since it takes a snapshot of the transaction list.
+     *
+     * @param book The data to index.
+     * @return The index, which will not return candidates until loading is complete.
+     */
+    static FreeTextIndex load(final AccountBook book)
+    {
+        final FreeTextIndex index = new FreeTextIndex(book);
+        book.getTransactionSet().addTransactionListener(index);
+        final List<AbstractTxn> txns = new ArrayList<AbstractTxn>();
+        for (AbstractTxn txn : book.getTransactionSet().iterableTxns())
+        {
+            txns.add(txn);
+        }
+        runInBackground(new Runnable()
+        {
+            public void run()
+            {
+                index.build(txns);
+            }
+        });
+        return index;
+    }
+
+    AccountBook getBook()
+    {
+        return _book;
+    }
+
+    /**
+     * Stop listening to the book and save any changes made since the index was loaded. The save
+     * runs on a background thread so closing the book does not wait for it. If Moneydance quits
+     * before it finishes, the next session cannot read the file and rebuilds the index.
+     */
+    void close()
+    {
+        _book.getTransactionSet().removeTransactionListener(this);
+        synchronized (this)
+        {
+            _closed = true;
+            if (!_ready || !_dirty)
+            {
+                return;
+            }
+        }
+        runInBackground(new Runnable()
+        {
+            public void run()
+            {
+                synchronized (FreeTextIndex.this)
+                {
+                    save();
+                }
+            }
+        });
+    }
+
+    /**
+     * Narrow down a list of transactions to those that might contain the given plain text in
+     * their own description, memo or check number, or in those of their parent transaction.
+     *
+     * @param txns The transactions to search, in the order they should be returned.
+     * @param text The literal text to find, case insensitive.
+     * @return The candidate transactions in the same order as <code>txns</code>, or
+     * <code>null</code> if the index can't be used for this text or is not loaded yet.
+     */
+    synchronized List<AbstractTxn> getCandidates(final List<AbstractTxn> txns, final String text)
+    {
+        if (!_ready || (text == null) || (text.length() < GRAM_LENGTH))
+        {
+            return null;
+        }
+        for (int index = 0; index < text.length(); index++)
+        {
+            if (Character.isSurrogate(text.charAt(index)))
+            {
+                // case folding of supplementary characters is done by code point, not char
+                return null;
+            }
+        }
+
+        final long[] grams = getGrams(text);
+        final PostingList[] lists = new PostingList[grams.length];
+        for (int index = 0; index < grams.length; index++)
+        {
+            lists[index] = _postings.get(Long.valueOf(grams[index]));
+            if (lists[index] == null)
+            {
+                // some trigram is in no field at all
+                return new ArrayList<AbstractTxn>();
+            }
+        }
+        Arrays.sort(lists);
+        int[] slots = lists[0].toArray();
+        for (int index = 1; (index < lists.length) && (slots.length > 0); index++)
+        {
+            slots = lists[index].intersect(slots);
+        }
+        final BitSet hits = new BitSet();
+        for (final int slot : slots)
+        {
+            hits.set(slot);
+        }
+        hits.and(_liveSlots);
+
+        final List<AbstractTxn> result = new ArrayList<AbstractTxn>();
+        for (final AbstractTxn txn : txns)
+        {
+            // splits get their memo and check number from the parent
+            if (isHit(hits, txn) || ((txn instanceof SplitTxn) && isHit(hits, txn.getParentTxn())))
+            {
+                result.add(txn);
+            }
+        }
+        return result;
+    }
+
+    //////////////////////////////////////////////////////////////////////////////////////////////
+    //  TransactionListener
+    //////////////////////////////////////////////////////////////////////////////////////////////
+
+    public synchronized void transactionAdded(final AbstractTxn txn)
+    {
+        updateTxn(txn.getUUID(), txn);
+    }
+
+    public synchronized void transactionModified(final AbstractTxn txn)
+    {
+        updateTxn(txn.getUUID(), txn);
+    }
+
+    public synchronized void transactionRemoved(final AbstractTxn txn)
+    {
+        updateTxn(txn.getUUID(), null);
+    }
+
+    //////////////////////////////////////////////////////////////////////////////////////////////
+    //  Private Methods
+    //////////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Load the saved index and bring it up to date with the transactions in the book. Only the
+     * loader thread touches the index data until <code>_ready</code> is set.
+     * @param txns Snapshot of all transactions in the book.
+     */
+    private void build(final List<AbstractTxn> txns)
+    {
+        try
+        {
+            read();
+        }
+        catch (FileNotFoundException notSaved)
+        {
+            // first time, build from scratch
+            clear();
+        }
+        catch (Exception error)
+        {
+            // start over with an empty index
+            Logger.logError("Unable to load the text index, rebuilding", error);
+            clear();
+        }
+
+        final BitSet seen = new BitSet();
+        for (final AbstractTxn txn : txns)
+        {
+            final String id = txn.getUUID();
+            final Integer slot = _slotByID.get(id);
+            if ((slot != null) && (_fingerprints[slot.intValue()] == getFingerprint(txn)))
+            {
+                seen.set(slot.intValue());
+                continue;
+            }
+            removeSlot(id);
+            seen.set(addSlot(txn));
+            _dirty = true;
+        }
+        // anything left over was deleted since the index was saved
+        for (int slot = _liveSlots.nextSetBit(0); slot >= 0; slot = _liveSlots.nextSetBit(slot + 1))
+        {
+            if (!seen.get(slot))
+            {
+                removeSlot(_idBySlot.get(slot));
+                _dirty = true;
+            }
+        }
+
+        synchronized (this)
+        {
+            for (final Map.Entry<String, AbstractTxn> entry : _pendingChanges.entrySet())
+            {
+                removeSlot(entry.getKey());
+                if (entry.getValue() != null)
+                {
+                    addSlot(entry.getValue());
+                }
+                _dirty = true;
+            }
+            _pendingChanges.clear();
+            _ready = true;
+            if (!_closed && _dirty)
+            {
+                save();
+            }
+        }
+    }
+
+    private void updateTxn(final String id, final AbstractTxn txn)
+    {
+        if (!_ready)
+        {
+            // the loader applies these when it is done
+            _pendingChanges.remove(id);
+            _pendingChanges.put(id, txn);
+            return;
+        }
+        removeSlot(id);
+        if (txn != null)
+        {
+            addSlot(txn);
+        }
+        _dirty = true;
+        if (_retiredCount > Math.max(MIN_RETIRED, _slotByID.size() / RETIRED_DIVISOR))
+        {
+            compact();
+        }
+    }
+
+    private boolean isHit(final BitSet hits, final AbstractTxn txn)
+    {
+        if (txn == null)
+        {
+            return false;
+        }
+        final Integer slot = _slotByID.get(txn.getUUID());
+        return (slot != null) && hits.get(slot.intValue());
+    }
+
+    /**
+     * Index a transaction in a new slot. Slots are only ever appended, which keeps every
+     * posting list sorted.
+     * @param txn The transaction to index.
+     * @return The new slot number.
+     */
+    private int addSlot(final AbstractTxn txn)
+    {
+        final int slot = _idBySlot.size();
+        final String id = txn.getUUID();
+        _idBySlot.add(id);
+        _slotByID.put(id, Integer.valueOf(slot));
+        _liveSlots.set(slot);
+        if (slot >= _fingerprints.length)
+        {
+            _fingerprints = Arrays.copyOf(_fingerprints, _fingerprints.length * 2);
+        }
+        _fingerprints[slot] = getFingerprint(txn);
+
+        addGrams(slot, txn.getDescription());
+        if (txn instanceof ParentTxn)
+        {
+            // splits show the parent's memo and check number, so only index them once
+            addGrams(slot, ((ParentTxn) txn).getMemo());
+            addGrams(slot, txn.getCheckNumber());
+        }
+        return slot;
+    }
+
+    /**
+     * Retire the slot for a transaction. The posting entries are left in place and masked out
+     * with the live slots, and dropped the next time the index is compacted.
+     * @param id The transaction ID.
+     */
+    private void removeSlot(final String id)
+    {
+        final Integer slot = _slotByID.remove(id);
+        if (slot != null)
+        {
+            _liveSlots.clear(slot.intValue());
+            _idBySlot.set(slot.intValue(), null);
+            ++_retiredCount;
+        }
+    }
+
+    /**
+     * Drop the retired slots and renumber the live ones in order, so every posting list stays
+     * sorted and only holds live slots.
+     */
+    private void compact()
+    {
+        final int[] newSlots = new int[_idBySlot.size()];
+        int liveCount = 0;
+        for (int slot = 0; slot < newSlots.length; slot++)
+        {
+            if (!_liveSlots.get(slot))
+            {
+                newSlots[slot] = -1;
+                continue;
+            }
+            // slots only move down, so this can be done in place
+            final String id = _idBySlot.get(slot);
+            newSlots[slot] = liveCount;
+            _idBySlot.set(liveCount, id);
+            _slotByID.put(id, Integer.valueOf(liveCount));
+            _fingerprints[liveCount] = _fingerprints[slot];
+            ++liveCount;
+        }
+        _idBySlot.subList(liveCount, newSlots.length).clear();
+        _liveSlots.clear();
+        _liveSlots.set(0, liveCount);
+        for (final Iterator<PostingList> lists = _postings.values().iterator(); lists.hasNext(); )
+        {
+            if (!lists.next().renumber(newSlots))
+            {
+                lists.remove();
+            }
+        }
+        _retiredCount = 0;
+    }
+
+    private void addGrams(final int slot, final String text)
+    {
+        if ((text == null) || (text.length() < GRAM_LENGTH))
+        {
+            return;
+        }
+        for (final long gram : getGrams(text))
+        {
+            final Long key = Long.valueOf(gram);
+            PostingList list = _postings.get(key);
+            if (list == null)
+            {
+                list = new PostingList();
+                _postings.put(key, list);
+            }
+            list.add(slot);
+        }
+    }
+
+    private void clear()
+    {
+        _slotByID.clear();
+        _idBySlot.clear();
+        _liveSlots.clear();
+        _postings.clear();
+        _retiredCount = 0;
+    }
+
+    /**
+     * The distinct trigrams of a string, case folded the same way a <code>(?ui)</code> pattern
+     * compares characters, each packed into a long.
+     */
+    private static long[] getGrams(final String text)
+    {
+        final int count = text.length() - GRAM_LENGTH + 1;
+        final long[] grams = new long[count];
+        long gram = 0;
+        for (int index = 0; index < text.length(); index++)
+        {
+            final char folded = Character.toLowerCase(Character.toUpperCase(text.charAt(index)));
+            gram = ((gram << 16) | folded) & 0xFFFFFFFFFFFFL;
+            if (index >= GRAM_LENGTH - 1)
+            {
+                grams[index - GRAM_LENGTH + 1] = gram;
+            }
+        }
+        Arrays.sort(grams);
+        int distinct = 0;
+        for (int index = 0; index < count; index++)
+        {
+            if ((index == 0) || (grams[index] != grams[distinct - 1]))
+            {
+                grams[distinct++] = grams[index];
+            }
+        }
+        return Arrays.copyOf(grams, distinct);
+    }
+
+    private static int getFingerprint(final AbstractTxn txn)
+    {
+        int hash = hashOf(txn.getDescription());
+        if (txn instanceof ParentTxn)
+        {
+            hash = 31 * hash + hashOf(((ParentTxn) txn).getMemo());
+            hash = 31 * hash + hashOf(txn.getCheckNumber());
+        }
+        return hash;
+    }
+
+    private static int hashOf(final String text)
+    {
+        return (text == null) ? 0 : text.hashCode();
+    }
+
+    private static void runInBackground(final Runnable task)
+    {
+        final Thread thread = new Thread(task, "findandreplace-textindex");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    private void read() throws IOException
+    {
+        final InputStream stream = _book.getLocalStorage().openFileForReading(
+                N12EFindAndReplace.TEXT_INDEX_FILE);
+        if (stream == null)
+        {
+            return;
+        }
+        final DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new GZIPInputStream(stream)));
+        try
+        {
+            if (in.readInt() != FILE_VERSION)
+            {
+                return;
+            }
+            final int slotCount = in.readInt();
+            _fingerprints = new int[Math.max(slotCount, 1024)];
+            for (int slot = 0; slot < slotCount; slot++)
+            {
+                final String id = in.readUTF();
+                _idBySlot.add(id);
+                _slotByID.put(id, Integer.valueOf(slot));
+                _fingerprints[slot] = in.readInt();
+            }
+            _liveSlots.set(0, slotCount);
+            final int gramCount = in.readInt();
+            for (int index = 0; index < gramCount; index++)
+            {
+                final long gram = in.readLong();
+                _postings.put(Long.valueOf(gram), PostingList.read(in));
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    /**
+     * Compact the index and write it to local storage.
+     */
+    private void save()
+    {
+        compact();
+        final int liveCount = _idBySlot.size();
+        try
+        {
+            final OutputStream stream = _book.getLocalStorage().openFileForWriting(
+                    N12EFindAndReplace.TEXT_INDEX_FILE);
+            final DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new GZIPOutputStream(stream)));
+            try
+            {
+                out.writeInt(FILE_VERSION);
+                out.writeInt(liveCount);
+                for (int slot = 0; slot < liveCount; slot++)
+                {
+                    out.writeUTF(_idBySlot.get(slot));
+                    out.writeInt(_fingerprints[slot]);
+                }
+                out.writeInt(_postings.size());
+                for (final Map.Entry<Long, PostingList> entry : _postings.entrySet())
+                {
+                    out.writeLong(entry.getKey().longValue());
+                    entry.getValue().write(out);
+                }
+            }
+            finally
+            {
+                out.close();
+            }
+            _dirty = false;
+        }
+        catch (IOException error)
+        {
+            Logger.logError("Unable to save the text index", error);
+        }
+    }
+
+    /**
+     * Growable, sorted array of slot numbers. Compared by size so the shortest list can be
+     * intersected first.
+     */
+    private static class PostingList implements Comparable<PostingList>
+    {
+        private int[] _slots = new int[4];
+        private int _size = 0;
+
+        void add(final int slot)
+        {
+            if ((_size > 0) && (_slots[_size - 1] == slot))
+            {
+                return;
+            }
+            if (_size == _slots.length)
+            {
+                _slots = Arrays.copyOf(_slots, _size * 2);
+            }
+            _slots[_size++] = slot;
+        }
+
+        int[] toArray()
+        {
+            return Arrays.copyOf(_slots, _size);
+        }
+
+        /**
+         * @param sorted Sorted slot numbers.
+         * @return The slot numbers that are in both this list and <code>sorted</code>.
+         */
+        int[] intersect(final int[] sorted)
+        {
+            final int[] result = new int[Math.min(sorted.length, _size)];
+            int count = 0;
+            int mine = 0;
+            int theirs = 0;
+            while ((mine < _size) && (theirs < sorted.length))
+            {
+                if (_slots[mine] < sorted[theirs])
+                {
+                    ++mine;
+                }
+                else if (_slots[mine] > sorted[theirs])
+                {
+                    ++theirs;
+                }
+                else
+                {
+                    result[count++] = sorted[theirs];
+                    ++mine;
+                    ++theirs;
+                }
+            }
+            return Arrays.copyOf(result, count);
+        }
+
+        /**
+         * Renumber the slots in place, dropping the retired ones and giving back the space.
+         * @param newSlots The new number of each slot, -1 if it is retired. Must keep the order.
+         * @return False if no slots are left.
+         */
+        boolean renumber(final int[] newSlots)
+        {
+            int count = 0;
+            for (int index = 0; index < _size; index++)
+            {
+                final int slot = newSlots[_slots[index]];
+                if (slot >= 0)
+                {
+                    _slots[count++] = slot;
+                }
+            }
+            _size = count;
+            if (_slots.length > Math.max(4, _size * 2))
+            {
+                _slots = Arrays.copyOf(_slots, Math.max(4, _size));
+            }
+            return (_size > 0);
+        }
+
+        void write(final DataOutputStream out) throws IOException
+        {
+            out.writeInt(_size);
+            for (int index = 0; index < _size; index++)
+            {
+                out.writeInt(_slots[index]);
+            }
+        }
+
+        static PostingList read(final DataInputStream in) throws IOException
+        {
+            final PostingList list = new PostingList();
+            list._size = in.readInt();
+            list._slots = new int[Math.max(list._size, 4)];
+            for (int index = 0; index < list._size; index++)
+            {
+                list._slots[index] = in.readInt();
+            }
+            return list;
+        }
+
+        public int compareTo(final PostingList other)
+        {
+            return (_size < other._size) ? -1 : ((_size == other._size) ? 0 : 1);
+        }
+    }
+}
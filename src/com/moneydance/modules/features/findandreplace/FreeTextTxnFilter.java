@@ -12,8 +12,6 @@ import com.infinitekind.moneydance.model.AbstractTxn;
 import com.infinitekind.moneydance.model.SplitTxn;
 import com.infinitekind.moneydance.model.ParentTxn;
 
-import java.util.regex.Pattern;
-
 /**
  * <p>Filter to find text in the description, memo or check # fields.</p>
  *
@@ -27,7 +25,10 @@ class FreeTextTxnFilter extends TransactionFilterBase implements ITransactionFil
     private final boolean _searchMemo;
     private final boolean _searchCheck;
     private final boolean _includeSplits;
-    private final Pattern _pattern;
+    /** Finds the text, or <code>null</code> to find blank fields. */
+    private final TextMatcher _matcher;
+    /** The literal text to find, or <code>null</code> for a regular expression or blank search. */
+    private final String _plainText;
 
     FreeTextTxnFilter(final String textMatch, final boolean searchDescription,
                       final boolean searchMemo,  final boolean searchCheck,
@@ -40,7 +41,19 @@ class FreeTextTxnFilter extends TransactionFilterBase implements ITransactionFil
         _searchCheck = searchCheck;
         _includeSplits = includeSplits;
         boolean isBlank = "=".equals(textMatch) || FarUtil.isBlank(textMatch);
-        _pattern = isBlank ? null : FarUtil.buildFindPattern(textMatch);
+        _matcher = isBlank ? null : new TextMatcher(textMatch);
+        _plainText = (isBlank || FarUtil.hasRegularExpression(textMatch)
+                      || textMatch.contains(N12EFindAndReplace.REGEX_SUFFIX)) ? null : textMatch;
+    }
+
+    /**
+     * @return The literal text this filter looks for, which can be resolved through a
+     * {@link FreeTextIndex}, or <code>null</code> if this filter uses a regular expression or
+     * looks for blank fields.
+     */
+    String getPlainText()
+    {
+        return _plainText;
     }
 
     /**
@@ -56,37 +69,27 @@ class FreeTextTxnFilter extends TransactionFilterBase implements ITransactionFil
         // text filtering is simply a pattern match on a string.
         if (txn != null)
         {
-            result = searchTransaction(txn);
-            if (!result && _includeSplits && (txn instanceof SplitTxn))
+            // memo and check number are only in parent transactions, so for a split they are
+            // read from the parent. Only the description differs between a split and its parent
+            final ParentTxn parent = (txn instanceof SplitTxn) ? txn.getParentTxn() : null;
+            if (_searchDescription)
+            {
+                result = FarUtil.isStringMatch(_matcher, txn.getDescription());
+                if (!result && _includeSplits && (parent != null))
+                {
+                    result = FarUtil.isStringMatch(_matcher, parent.getDescription());
+                }
+            }
+            if (!result && _searchMemo)
+            {
+                result = FarUtil.isStringMatch(_matcher, FarUtil.getTransactionMemo(txn));
+            }
+            if (!result && _searchCheck)
             {
-                final ParentTxn parent = txn.getParentTxn();
-                result = searchTransaction(parent);
+                result = FarUtil.isStringMatch(_matcher, FarUtil.getTransactionCheckNo(txn));
             }
         } // if txn
 
         return result;
     }
-
-    private boolean searchTransaction(AbstractTxn txn)
-    {
-        boolean result = false;
-        if (_searchDescription)
-        {
-            final String description = txn.getDescription();
-            result = FarUtil.isStringMatch(_pattern, description);
-        }
-        if (!result && _searchMemo)
-        {
-            // memo text is only in parent transactions, splits only have descriptions not memos
-            final String memo = FarUtil.getTransactionMemo(txn);
-            result = FarUtil.isStringMatch(_pattern, memo);
-        }
-        if (!result && _searchCheck)
-        {
-            final String checkNumber = FarUtil.getTransactionCheckNo(txn);
-            result = FarUtil.isStringMatch(_pattern, checkNumber);
-        }
-
-        return result;
-    }
-}
\ No newline at end of file
+}
\ No newline at end of file
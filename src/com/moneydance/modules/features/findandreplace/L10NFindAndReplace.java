@@ -92,6 +92,8 @@ class L10NFindAndReplace
     public static final String REPLACE_CHECK_LABEL = "txn_checknum"; //  = Check#:
     public static final String REPLACE_CHECK_MNC = "replaceCheckLabel.mnemonic"; //  = K
     public static final String REPLACING_PROGRESS = "replaceProgress.text"; // Replacing ...
+    public static final String FINDING_PROGRESS_FMT = "findProgress.format"; // Finding ... {0}%
+    public static final String COMMIT_PROGRESS_FMT = "commitProgress.format"; // Saving {0} of {1} ...
     public static final String REPLACE_FOUND_TEXT_ONLY = "replaceOnlyFound"; // Found text only
     public static final String CONSOLIDATE_SPLITS = "showParents.text"; // Consolidate splits
     public static final String CONSOLIDATE_SPLITS_TIP = "showParents.toolTip";
@@ -160,6 +162,8 @@ class L10NFindAndReplace
     /** 0 = internal error message text. */
     public static final String ERROR_LOAD_FMT = "error.load";
     public static final String ERROR_NO_DATA = "error.nodata";
+    /** 0 = number of transactions that were not undone. */
+    public static final String ERROR_UNDO_SKIPPED_FMT = "error.undoSkipped";
 
 
     // Stuff copied from the Moneydance resources
@@ -170,6 +174,7 @@ class L10NFindAndReplace
     public static final String SPLIT_1 = "split_label1"; // -
     public static final String SPLIT_2 = "split_label2"; // splits -
     public static final String RECORD_BUTTON_TEXT = "record_txn";
+    public static final String UNDO_COMMIT_BUTTON_TEXT = "undoCommitBtn.text"; // = Undo Record
     public static final String FIND_BOOL_AND = "srch_op_intersect"; // = And (Intersection)
     public static final String FIND_BOOL_OR = "srch_op_union"; // = Or (Union)
     public static final String FIND_BETWEEN = "srch_range0"; // = Between
@@ -19,6 +19,10 @@ import java.util.*;
 /**
  * <p>Data model for loading and saving find and replace parameters.</p>
  *
+ * <p>Loading a search only sets the find criteria. Running it again is cheap: the results of
+ * recent searches are kept by {@link SearchCache}, keyed by those criteria, and only the
+ * transactions changed since the last run are filtered again.</p>
+ *
  * @author Kevin Menningen
  * @version Build 94
  * @since Build 83
@@ -34,6 +34,9 @@ public class Main extends FeatureModule
     private final List<IFindAndReplaceController> _controllerList = new ArrayList<IFindAndReplaceController>();
     private final Object _listSync = new Object();
     private FarHomeView _homePageView = null;
+    private FreeTextIndex _textIndex = null;
+    private DateIndex _dateIndex = null;
+    private SearchCache _searchCache = null;
     private ResourceBundle _resources;
 
     private boolean _testMode;
@@ -76,9 +79,34 @@ public class Main extends FeatureModule
     public void cleanup()
     {
         cleanupFarComponent(null);
+        closeTextIndex();
+        closeDateIndex();
+        closeSearchCache();
         removePreferencesListener();
     }
 
+    @Override
+    public void handleEvent(final String appEvent)
+    {
+        super.handleEvent(appEvent);
+        if (N12EFindAndReplace.MD_OPEN_EVENT_ID.equals(appEvent))
+        {
+            // start loading the index now so it is likely ready by the first search
+            final FeatureModuleContext context = getUnprotectedContext();
+            if ((context != null) && (context.getCurrentAccountBook() != null))
+            {
+                getTextIndex(context.getCurrentAccountBook());
+            }
+        }
+        else if (N12EFindAndReplace.MD_CLOSING_EVENT_ID.equals(appEvent) ||
+                 N12EFindAndReplace.MD_EXITING_EVENT_ID.equals(appEvent))
+        {
+            closeTextIndex();
+            closeDateIndex();
+            closeSearchCache();
+        }
+    }
+
     void setTestMode(final boolean testing)
     {
         _testMode = testing;
@@ -185,6 +213,42 @@ public class Main extends FeatureModule
     ///////////////////////////////////////////////////////////////////////////////////////////////
     // Private Methods
     ///////////////////////////////////////////////////////////////////////////////////////////////
+    private void closeTextIndex()
+    {
+        synchronized (_listSync)
+        {
+            if (_textIndex != null)
+            {
+                _textIndex.close();
+                _textIndex = null;
+            }
+        }
+    }
+
+    private void closeDateIndex()
+    {
+        synchronized (_listSync)
+        {
+            if (_dateIndex != null)
+            {
+                _dateIndex.close();
+                _dateIndex = null;
+            }
+        }
+    }
+
+    private void closeSearchCache()
+    {
+        synchronized (_listSync)
+        {
+            if (_searchCache != null)
+            {
+                _searchCache.close();
+                _searchCache = null;
+            }
+        }
+    }
+
     private void addPreferencesListener()
     {
         if (getContext() != null)
@@ -245,6 +309,67 @@ public class Main extends FeatureModule
     }
 
 
+    /**
+     * Obtain the free text index for a book, loading it if needed. Only one book is indexed at a
+     * time. Must be called on the event dispatch thread.
+     * @param book The data to index.
+     * @return The index, or <code>null</code> if the index has been turned off in preferences.
+     */
+    FreeTextIndex getTextIndex(final AccountBook book)
+    {
+        final FeatureModuleContext context = getUnprotectedContext();
+        if ((context == null) || !((com.moneydance.apps.md.controller.Main) context).getPreferences()
+                .getBoolSetting(N12EFindAndReplace.SETTINGS_TEXT_INDEX_SETTING, true))
+        {
+            return null;
+        }
+        synchronized (_listSync)
+        {
+            if ((_textIndex == null) || (_textIndex.getBook() != book))
+            {
+                closeTextIndex();
+                _textIndex = FreeTextIndex.load(book);
+            }
+            return _textIndex;
+        }
+    }
+
+    /**
+     * Obtain the date index for a book. The index is sorted the first time a search uses it.
+     * @param book The data to index.
+     * @return The date index for the book.
+     */
+    DateIndex getDateIndex(final AccountBook book)
+    {
+        synchronized (_listSync)
+        {
+            if ((_dateIndex == null) || (_dateIndex.getBook() != book))
+            {
+                closeDateIndex();
+                _dateIndex = new DateIndex(book);
+            }
+            return _dateIndex;
+        }
+    }
+
+    /**
+     * Obtain the cache of recent search results for a book, kept while the book is open.
+     * @param book The data searched.
+     * @return The search cache for the book.
+     */
+    SearchCache getSearchCache(final AccountBook book)
+    {
+        synchronized (_listSync)
+        {
+            if ((_searchCache == null) || (_searchCache.getBook() != book))
+            {
+                closeSearchCache();
+                _searchCache = new SearchCache(book);
+            }
+            return _searchCache;
+        }
+    }
+
     void handleException(Exception error)
     {
         Logger.logError(N12EFindAndReplace.ERROR_LOADING, error);
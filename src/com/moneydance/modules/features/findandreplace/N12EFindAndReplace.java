@@ -51,6 +51,10 @@ public class N12EFindAndReplace
     public static final String SETTINGS_DLG_LOCATION_SETTING = "gui.findandreplace_location";
     /** Settings key in the Moneydance config.dict file for the last dialog size. */
     public static final String SETTINGS_DLG_SIZE_SETTING = "gui.findandreplace_size";
+    /** Settings key in the Moneydance config.dict file to turn the free text index on or off. */
+    public static final String SETTINGS_TEXT_INDEX_SETTING = "gui.findandreplace_textindex";
+    /** Name of the free text index file in the data file's local storage. */
+    public static final String TEXT_INDEX_FILE = "findandreplace.idx";
 
     /**
      * Regular expression prefix to find free text entered by the user. (?ui) switches to case
@@ -77,6 +81,10 @@ public class N12EFindAndReplace
      * Event fired when a new file is opened.
      */
     public static final String MD_OPEN_EVENT_ID = "md:file:opened";
+    /** Event fired when the current file is about to be closed. */
+    public static final String MD_CLOSING_EVENT_ID = "md:file:closing";
+    /** Event fired when the application is about to exit. */
+    public static final String MD_EXITING_EVENT_ID = "md:app:exiting";
 
     //////////////////////////////////////////////////////////////////////////////////////////////
     //  Properties for Property Change Notifications
@@ -101,6 +109,8 @@ public class N12EFindAndReplace
     public static final String TAGS_USE = "tagsUse";
     public static final String TAGS_LOGIC = "tagsRequired";
     public static final String FIND_RESULTS_UPDATE = "findResultsUpdated";
+    /** Bound property fired by the background find task (the SwingWorker progress property). */
+    public static final String FIND_PROGRESS = "progress";
 
     public static final String CLEARED_USE = "clearedUse";
     public static final String CLEARED_CLEARED = "allowCleared";
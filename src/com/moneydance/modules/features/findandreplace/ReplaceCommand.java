@@ -42,6 +42,8 @@ public class ReplaceCommand implements IFarCommand
 
     // the transaction changes as the command is applied to all selected transactions in the list
     private FindResultsTableEntry _transaction;
+    // before-images of changed fields are recorded here while committing, may be null
+    private ReplaceJournal _journal;
 
     ReplaceCommand(final Account category, final Long amount, final CurrencyType amountCurrency,
                    final boolean parentsOnly,
@@ -228,6 +230,7 @@ public class ReplaceCommand implements IFarCommand
             {
                 changed = true;
                 previousCategory = _transaction.getSplitTxn().getAccount();
+                if (_journal != null) _journal.recordAccount(_transaction.getSplitTxn());
                 _transaction.getSplitTxn().setAccount(_replaceCategory);
             }
         }
@@ -251,6 +254,7 @@ public class ReplaceCommand implements IFarCommand
             // convert the replacement amount into the category's currency
             long splitAmount = Math.abs(CurrencyUtil.convertValue(value, _replaceCurrency, targetCurr, split.getDateInt()));
             long parentAmount = Math.abs(CurrencyUtil.convertValue(value, _replaceCurrency, parentCurr, split.getDateInt()));
+            if (_journal != null) _journal.recordAmount(split);
             split.setAmount(-splitAmount, -parentAmount);
         }
         else if (newCategory)
@@ -264,6 +268,7 @@ public class ReplaceCommand implements IFarCommand
                 CurrencyType parentCurr = _transaction.getParentTxn().getAccount().getCurrencyType();
                 long parentAmount = -split.getParentAmount();
                 long newSplitAmount = CurrencyUtil.convertValue(parentAmount, parentCurr, targetCurr, _transaction.getParentTxn().getDateInt());
+                if (_journal != null) _journal.recordAmount(split);
                 split.setAmount(newSplitAmount, parentAmount);
             }
         }
@@ -281,6 +286,7 @@ public class ReplaceCommand implements IFarCommand
                     if (!splitDescription.equals(newDescription))
                     {
                         changed = true;
+                        if (_journal != null) _journal.recordDescription(_transaction.getSplitTxn());
                         _transaction.getSplitTxn().setDescription(newDescription);
                     }
                 }
@@ -288,6 +294,7 @@ public class ReplaceCommand implements IFarCommand
                 {
                     // blow in the new description since it is blank
                     changed = true;
+                    if (_journal != null) _journal.recordDescription(_transaction.getSplitTxn());
                     _transaction.getSplitTxn().setDescription(_replaceDescription);
                 }
             }
@@ -305,6 +312,7 @@ public class ReplaceCommand implements IFarCommand
                     if (!parentDescription.equals(newDescription))
                     {
                         changed = true;
+                        if (_journal != null) _journal.recordDescription(parent);
                         _transaction.getParentTxn().setDescription(newDescription);
                     }
                 }
@@ -312,6 +320,7 @@ public class ReplaceCommand implements IFarCommand
                 {
                     // blow in the new description since it is blank
                     changed = true;
+                    if (_journal != null) _journal.recordDescription(parent);
                     _transaction.getParentTxn().setDescription(_replaceDescription);
                 }
             }
@@ -333,6 +342,7 @@ public class ReplaceCommand implements IFarCommand
                 {
                     changed = true;
                 }
+                if (_journal != null) _journal.recordMemo(parent);
                 parent.setMemo(replacementText);
             }
         }
@@ -354,6 +364,7 @@ public class ReplaceCommand implements IFarCommand
                 {
                     changed = true;
                 }
+                if (_journal != null) _journal.recordCheckNumber(parent);
                 parent.setCheckNumber(replacementText);
             }
         }
@@ -372,6 +383,7 @@ public class ReplaceCommand implements IFarCommand
                 {
                     changed = true;
                 }
+                if (_journal != null) _journal.recordTags(split);
                 split.setKeywords(newTags);
             }
         }
@@ -384,6 +396,15 @@ public class ReplaceCommand implements IFarCommand
     // Package Private Methods
     ///////////////////////////////////////////////////////////////////////////////////////////////
 
+    /**
+     * While a journal is set, {@link #execute()} records the old value of every field it writes.
+     * @param journal The journal to record into, or <code>null</code> to stop recording.
+     */
+    void setJournal(final ReplaceJournal journal)
+    {
+        _journal = journal;
+    }
+
     AbstractTxn getParentTransaction() {
         return _transaction.getParentTxn();
     }
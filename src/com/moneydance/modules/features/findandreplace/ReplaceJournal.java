@@ -0,0 +1,327 @@
+/*************************************************************************\
+* Copyright (C) 2009-2015 Mennē Software Solutions, LLC
+*
+* This code is released as open source under the Apache 2.0 License:<br/>
+* <a href="http://www.apache.org/licenses/LICENSE-2.0">
+* http://www.apache.org/licenses/LICENSE-2.0</a><br />
+\*************************************************************************/
+
+package com.moneydance.modules.features.findandreplace;
+
+import com.infinitekind.moneydance.model.AbstractTxn;
+import com.infinitekind.moneydance.model.Account;
+import com.infinitekind.moneydance.model.ParentTxn;
+import com.infinitekind.moneydance.model.SplitTxn;
+import com.infinitekind.moneydance.model.TransactionSet;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * <p>Before-images of the fields a commit changed, so the commit can be undone. Only the fields
+ * a replace command actually touches are recorded, one entry per field written.</p>
+ *
+ * <p>Entries are packed into an <code>int[]</code> of (field, transaction, value) triples.
+ * Amounts go into a <code>long[]</code> of (split value, parent amount) pairs, and the text,
+ * account and tag values are pooled in one list. Undo replays the entries newest first, so a
+ * field written twice in the same commit ends up with its oldest value.</p>
+ *
+ * <p>Once the commit is done, {@link #recordAfterValues()} keeps the value each field was left
+ * with. A transaction that was deleted since, or has any recorded field that no longer holds
+ * that value, was edited after the commit and is left alone by the undo.</p>
+ *
+ * @author Kevin Menningen
+ * @version Build 94
+ * @since 1.0
+ */
+class ReplaceJournal
+{
+    private static final int FIELD_ACCOUNT = 0;
+    private static final int FIELD_AMOUNT = 1;
+    private static final int FIELD_DESCRIPTION = 2;
+    private static final int FIELD_MEMO = 3;
+    private static final int FIELD_CHECK_NUMBER = 4;
+    private static final int FIELD_TAGS = 5;
+
+    /** Number of ints per entry: field, transaction index, value index. */
+    private static final int ENTRY_SIZE = 3;
+
+    private int[] _entries = new int[ENTRY_SIZE * 64];
+    private int _entryCount = 0;
+    private long[] _amounts = new long[32];
+    private int _amountCount = 0;
+    /** Old text, account and tag values, referenced by index from the entries. */
+    private final List<Object> _values = new ArrayList<Object>();
+    /** Transactions that were changed, referenced by index from the entries. */
+    private final List<AbstractTxn> _txns = new ArrayList<AbstractTxn>();
+    private final IdentityHashMap<AbstractTxn, Integer> _txnIndexes =
+            new IdentityHashMap<AbstractTxn, Integer>();
+    /** Parent transactions of the changed transactions. */
+    private final Set<AbstractTxn> _parents =
+            Collections.newSetFromMap(new IdentityHashMap<AbstractTxn, Boolean>());
+    /** Values of each entry's field after the commit, null until they are recorded. */
+    private Object[] _afterValues = null;
+    private long[] _afterAmounts = null;
+    private int _skippedCount = 0;
+
+    void recordAccount(final SplitTxn split)
+    {
+        add(FIELD_ACCOUNT, split, addValue(split.getAccount()));
+    }
+
+    /**
+     * Record the amount of a split. It is restored with the same convention
+     * {@link ReplaceCommand} uses when it keeps the parent amount of a split: both arguments
+     * to <code>setAmount()</code> are the negated values read from the split.
+     * @param split The split whose amount is about to change.
+     */
+    void recordAmount(final SplitTxn split)
+    {
+        if (_amountCount + 2 > _amounts.length)
+        {
+            _amounts = Arrays.copyOf(_amounts, _amounts.length * 2);
+        }
+        _amounts[_amountCount++] = split.getValue();
+        _amounts[_amountCount++] = split.getParentAmount();
+        add(FIELD_AMOUNT, split, _amountCount - 2);
+    }
+
+    void recordDescription(final AbstractTxn txn)
+    {
+        add(FIELD_DESCRIPTION, txn, addValue(txn.getDescription()));
+    }
+
+    void recordMemo(final ParentTxn parent)
+    {
+        add(FIELD_MEMO, parent, addValue(parent.getMemo()));
+    }
+
+    void recordCheckNumber(final ParentTxn parent)
+    {
+        add(FIELD_CHECK_NUMBER, parent, addValue(parent.getCheckNumber()));
+    }
+
+    void recordTags(final SplitTxn split)
+    {
+        final List<String> tags = split.getKeywords();
+        add(FIELD_TAGS, split, addValue((tags == null) ? null : new ArrayList<String>(tags)));
+    }
+
+    boolean isEmpty()
+    {
+        return _entryCount == 0;
+    }
+
+    /**
+     * Record the value every journaled field holds now that the commit is done, so that
+     * {@link #undo(TransactionSet)} can tell which transactions were edited afterwards.
+     */
+    void recordAfterValues()
+    {
+        _afterValues = new Object[_entryCount];
+        _afterAmounts = new long[_entryCount * 2];
+        for (int entry = 0; entry < _entryCount; entry++)
+        {
+            final int offset = entry * ENTRY_SIZE;
+            final AbstractTxn txn = _txns.get(_entries[offset + 1]);
+            if (_entries[offset] == FIELD_AMOUNT)
+            {
+                _afterAmounts[entry * 2] = txn.getValue();
+                _afterAmounts[entry * 2 + 1] = ((SplitTxn) txn).getParentAmount();
+            }
+            else
+            {
+                _afterValues[entry] = getValue(_entries[offset], txn);
+            }
+        }
+    }
+
+    /**
+     * @return The number of parent transactions the last {@link #undo(TransactionSet)} left
+     * alone because they were changed or deleted after the commit.
+     */
+    int getSkippedCount()
+    {
+        return _skippedCount;
+    }
+
+    /**
+     * Put every recorded field back the way it was, newest change first. Moneydance is not
+     * notified, the caller does that once per returned parent. A parent transaction that is no
+     * longer in the transaction set, or has a split or field that changed since the commit, is
+     * skipped as a whole.
+     * @param txnSet The transactions of the book the commit was made to.
+     * @return The parent transactions that were changed, once each.
+     */
+    @SuppressWarnings("unchecked")
+    List<AbstractTxn> undo(final TransactionSet txnSet)
+    {
+        final Set<AbstractTxn> skipped = findChangedParents(txnSet);
+        _skippedCount = skipped.size();
+        final List<AbstractTxn> parents = new ArrayList<AbstractTxn>();
+        final Set<AbstractTxn> parentSet =
+                Collections.newSetFromMap(new IdentityHashMap<AbstractTxn, Boolean>());
+        for (int entry = _entryCount - 1; entry >= 0; entry--)
+        {
+            final int offset = entry * ENTRY_SIZE;
+            final AbstractTxn txn = _txns.get(_entries[offset + 1]);
+            final AbstractTxn parent = getParent(txn);
+            if (skipped.contains(parent))
+            {
+                continue;
+            }
+            final int valueIndex = _entries[offset + 2];
+            switch (_entries[offset])
+            {
+                case FIELD_ACCOUNT:
+                    ((SplitTxn) txn).setAccount((Account) _values.get(valueIndex));
+                    break;
+                case FIELD_AMOUNT:
+                    ((SplitTxn) txn).setAmount(-_amounts[valueIndex], -_amounts[valueIndex + 1]);
+                    break;
+                case FIELD_DESCRIPTION:
+                    txn.setDescription((String) _values.get(valueIndex));
+                    break;
+                case FIELD_MEMO:
+                    ((ParentTxn) txn).setMemo((String) _values.get(valueIndex));
+                    break;
+                case FIELD_CHECK_NUMBER:
+                    ((ParentTxn) txn).setCheckNumber((String) _values.get(valueIndex));
+                    break;
+                case FIELD_TAGS:
+                    txn.setKeywords((List<String>) _values.get(valueIndex));
+                    break;
+                default:
+                    break;
+            }
+
+            if (parentSet.add(parent))
+            {
+                parents.add(parent);
+            }
+        }
+        return parents;
+    }
+
+    //////////////////////////////////////////////////////////////////////////////////////////////
+    //  Private Methods
+    //////////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Find the parent transactions that were deleted, lost a journaled split, or had a journaled
+     * field change since {@link #recordAfterValues()}.
+     */
+    private Set<AbstractTxn> findChangedParents(final TransactionSet txnSet)
+    {
+        final Set<AbstractTxn> changed =
+                Collections.newSetFromMap(new IdentityHashMap<AbstractTxn, Boolean>());
+        for (final AbstractTxn parent : _parents)
+        {
+            if ((_afterValues == null) || (txnSet.getTxnByID(parent.getUUID()) == null))
+            {
+                changed.add(parent);
+            }
+        }
+        for (int entry = 0; entry < _entryCount; entry++)
+        {
+            final int offset = entry * ENTRY_SIZE;
+            final AbstractTxn txn = _txns.get(_entries[offset + 1]);
+            final AbstractTxn parent = getParent(txn);
+            if (changed.contains(parent))
+            {
+                continue;
+            }
+            if ((txn != parent) && !hasSplit(parent, txn))
+            {
+                changed.add(parent);
+            }
+            else if (_entries[offset] == FIELD_AMOUNT)
+            {
+                if ((txn.getValue() != _afterAmounts[entry * 2])
+                    || (((SplitTxn) txn).getParentAmount() != _afterAmounts[entry * 2 + 1]))
+                {
+                    changed.add(parent);
+                }
+            }
+            else if (!isSame(getValue(_entries[offset], txn), _afterValues[entry]))
+            {
+                changed.add(parent);
+            }
+        }
+        return changed;
+    }
+
+    /** @return The current value of a text, account or tags field. */
+    private static Object getValue(final int field, final AbstractTxn txn)
+    {
+        switch (field)
+        {
+            case FIELD_ACCOUNT:
+                return txn.getAccount();
+            case FIELD_DESCRIPTION:
+                return txn.getDescription();
+            case FIELD_MEMO:
+                return ((ParentTxn) txn).getMemo();
+            case FIELD_CHECK_NUMBER:
+                return txn.getCheckNumber();
+            case FIELD_TAGS:
+                final List<String> tags = txn.getKeywords();
+                return ((tags == null) || tags.isEmpty()) ? null : new ArrayList<String>(tags);
+            default:
+                return null;
+        }
+    }
+
+    private static boolean isSame(final Object value1, final Object value2)
+    {
+        return (value1 == null) ? (value2 == null) : value1.equals(value2);
+    }
+
+    private static boolean hasSplit(final AbstractTxn parent, final AbstractTxn split)
+    {
+        for (int index = parent.getOtherTxnCount() - 1; index >= 0; index--)
+        {
+            if (parent.getOtherTxn(index) == split)
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static AbstractTxn getParent(final AbstractTxn txn)
+    {
+        return (txn instanceof SplitTxn) ? ((SplitTxn) txn).getParentTxn() : txn;
+    }
+
+    private int addValue(final Object value)
+    {
+        _values.add(value);
+        return _values.size() - 1;
+    }
+
+    private void add(final int field, final AbstractTxn txn, final int valueIndex)
+    {
+        Integer txnIndex = _txnIndexes.get(txn);
+        if (txnIndex == null)
+        {
+            txnIndex = Integer.valueOf(_txns.size());
+            _txns.add(txn);
+            _txnIndexes.put(txn, txnIndex);
+            _parents.add(getParent(txn));
+        }
+        if (_entryCount * ENTRY_SIZE == _entries.length)
+        {
+            _entries = Arrays.copyOf(_entries, _entries.length * 2);
+        }
+        final int offset = _entryCount * ENTRY_SIZE;
+        _entries[offset] = field;
+        _entries[offset + 1] = txnIndex.intValue();
+        _entries[offset + 2] = valueIndex;
+        ++_entryCount;
+    }
+}
@@ -0,0 +1,272 @@
+/*************************************************************************\
+* Copyright (C) 2009-2015 Mennē Software Solutions, LLC
+*
+* This code is released as open source under the Apache 2.0 License:<br/>
+* <a href="http://www.apache.org/licenses/LICENSE-2.0">
+* http://www.apache.org/licenses/LICENSE-2.0</a><br />
+\*************************************************************************/
+
+package com.moneydance.modules.features.findandreplace;
+
+import com.infinitekind.moneydance.model.AbstractTxn;
+import com.infinitekind.moneydance.model.AccountBook;
+import com.infinitekind.moneydance.model.ParentTxn;
+import com.infinitekind.moneydance.model.SplitTxn;
+import com.infinitekind.moneydance.model.TransactionListener;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>Results of recent searches on an account book, kept so that running the same search again
+ * (typically a saved search) only has to check the transactions changed since the last run.</p>
+ *
+ * <p>Searches are identified by their find criteria (see {@link FarModel#getFindCriteriaKey()})
+ * and keep the compiled {@link FilterGroup}, with its plan, and the splits found. Every change
+ * reported by the transaction listener is appended to a change log, and the position in the log
+ * is the change counter. A cached search remembers the counter at the time it ran, so the
+ * changes made since then are the end of the log. The log is bounded: a search older than the
+ * oldest change still in the log runs again from scratch.</p>
+ *
+ * @author Kevin Menningen
+ * @version Build 94
+ * @since 1.0
+ */
+class SearchCache implements TransactionListener
+{
+    /** Number of searches kept, least recently used first out. */
+    private static final int MAX_SEARCHES = 16;
+    /** Number of changes kept in the log, the older half is dropped when it is full. */
+    private static final int MAX_CHANGES = 20000;
+
+    private final AccountBook _book;
+    private final Map<String, CachedSearch> _searches =
+            new LinkedHashMap<String, CachedSearch>(MAX_SEARCHES, 0.75f, true)
+    {
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<String, CachedSearch> eldest)
+        {
+            return size() > MAX_SEARCHES;
+        }
+    };
+    /** Changed transactions, oldest first. */
+    private AbstractTxn[] _changedTxns = new AbstractTxn[256];
+    /** Whether each change in the log was a removal. */
+    private boolean[] _removed = new boolean[256];
+    private int _changeCount = 0;
+    /** Number of changes dropped from the front of the log. */
+    private long _droppedCount = 0;
+
+    SearchCache(final AccountBook book)
+    {
+        _book = book;
+        _book.getTransactionSet().addTransactionListener(this);
+    }
+
+    AccountBook getBook()
+    {
+        return _book;
+    }
+
+    void close()
+    {
+        _book.getTransactionSet().removeTransactionListener(this);
+        synchronized (this)
+        {
+            _searches.clear();
+        }
+    }
+
+    /**
+     * @return The number of transaction changes seen so far. Take it before the transactions are
+     * read for a search, and pass it to {@link #store} when the search is done.
+     */
+    synchronized long getChangeCount()
+    {
+        return _droppedCount + _changeCount;
+    }
+
+    /**
+     * Remember the results of a completed search.
+     *
+     * @param key         The find criteria of the search.
+     * @param filter      The filter the search ran with.
+     * @param found       Every split the search found.
+     * @param changeCount The change counter from before the search read the transactions.
+     */
+    synchronized void store(final String key, final FilterGroup filter, final List<SplitTxn> found,
+                            final long changeCount)
+    {
+        _searches.put(key, new CachedSearch(filter, new ArrayList<SplitTxn>(found), changeCount));
+    }
+
+    /**
+     * Find what it takes to bring a cached search up to date.
+     *
+     * @param key The find criteria of the search.
+     * @return The cached filter, the found splits that are not affected by later changes and the
+     * transactions that need to be checked again, or <code>null</code> if the search has to run
+     * from scratch.
+     */
+    synchronized Update getUpdate(final String key)
+    {
+        final CachedSearch cached = _searches.get(key);
+        if (cached == null)
+        {
+            return null;
+        }
+        if (cached._changeCount < _droppedCount)
+        {
+            // the changes since this search ran are no longer all in the log
+            _searches.remove(key);
+            return null;
+        }
+
+        // a change to a split or its parent can change whether any split of the parent is
+        // reported, so whole parent transactions are checked again. The value is whether the
+        // parent still exists, from the last change reported for it
+        final Map<AbstractTxn, Boolean> parents = new IdentityHashMap<AbstractTxn, Boolean>();
+        for (int index = (int) (cached._changeCount - _droppedCount); index < _changeCount; index++)
+        {
+            final AbstractTxn txn = _changedTxns[index];
+            if (txn instanceof SplitTxn)
+            {
+                final ParentTxn parent = txn.getParentTxn();
+                if ((parent != null) && !parents.containsKey(parent))
+                {
+                    parents.put(parent, Boolean.TRUE);
+                }
+            }
+            else
+            {
+                parents.put(txn, Boolean.valueOf(!_removed[index]));
+            }
+        }
+
+        final List<SplitTxn> unchanged = new ArrayList<SplitTxn>(cached._found.size());
+        for (final SplitTxn split : cached._found)
+        {
+            if (!parents.containsKey(split.getParentTxn()))
+            {
+                unchanged.add(split);
+            }
+        }
+        final List<AbstractTxn> changed = new ArrayList<AbstractTxn>();
+        for (final Map.Entry<AbstractTxn, Boolean> entry : parents.entrySet())
+        {
+            if (entry.getValue().booleanValue())
+            {
+                final AbstractTxn parent = entry.getKey();
+                changed.add(parent);
+                for (int ii = 0; ii < parent.getOtherTxnCount(); ii++)
+                {
+                    changed.add(parent.getOtherTxn(ii));
+                }
+            }
+        }
+        return new Update(cached._filter, unchanged, changed);
+    }
+
+    //////////////////////////////////////////////////////////////////////////////////////////////
+    //  TransactionListener
+    //////////////////////////////////////////////////////////////////////////////////////////////
+
+    public synchronized void transactionAdded(final AbstractTxn txn)
+    {
+        addChange(txn, false);
+    }
+
+    public synchronized void transactionModified(final AbstractTxn txn)
+    {
+        addChange(txn, false);
+    }
+
+    public synchronized void transactionRemoved(final AbstractTxn txn)
+    {
+        addChange(txn, true);
+    }
+
+    //////////////////////////////////////////////////////////////////////////////////////////////
+    //  Private Methods
+    //////////////////////////////////////////////////////////////////////////////////////////////
+
+    private void addChange(final AbstractTxn txn, final boolean removed)
+    {
+        if (_searches.isEmpty())
+        {
+            // nobody needs the changes made before the next search
+            _droppedCount += _changeCount;
+            Arrays.fill(_changedTxns, 0, _changeCount, null);
+            _changeCount = 0;
+        }
+        if (_changeCount == MAX_CHANGES)
+        {
+            final int keep = MAX_CHANGES / 2;
+            System.arraycopy(_changedTxns, _changeCount - keep, _changedTxns, 0, keep);
+            System.arraycopy(_removed, _changeCount - keep, _removed, 0, keep);
+            Arrays.fill(_changedTxns, keep, _changeCount, null);
+            _droppedCount += _changeCount - keep;
+            _changeCount = keep;
+        }
+        else if (_changeCount == _changedTxns.length)
+        {
+            final int length = Math.min(MAX_CHANGES, _changedTxns.length * 2);
+            _changedTxns = Arrays.copyOf(_changedTxns, length);
+            _removed = Arrays.copyOf(_removed, length);
+        }
+        _changedTxns[_changeCount] = txn;
+        _removed[_changeCount] = removed;
+        ++_changeCount;
+    }
+
+    /** What a cached search needs to be brought up to date. */
+    static class Update
+    {
+        private final FilterGroup _filter;
+        private final List<SplitTxn> _unchanged;
+        private final List<AbstractTxn> _changed;
+
+        Update(final FilterGroup filter, final List<SplitTxn> unchanged,
+               final List<AbstractTxn> changed)
+        {
+            _filter = filter;
+            _unchanged = unchanged;
+            _changed = changed;
+        }
+
+        FilterGroup getFilter()
+        {
+            return _filter;
+        }
+
+        /** @return Splits found last time whose parent has not changed since. */
+        List<SplitTxn> getUnchangedResults()
+        {
+            return _unchanged;
+        }
+
+        /** @return The changed parent transactions that still exist, each followed by its splits. */
+        List<AbstractTxn> getChangedTransactions()
+        {
+            return _changed;
+        }
+    }
+
+    private static class CachedSearch
+    {
+        private final FilterGroup _filter;
+        private final List<SplitTxn> _found;
+        private final long _changeCount;
+
+        CachedSearch(final FilterGroup filter, final List<SplitTxn> found, final long changeCount)
+        {
+            _filter = filter;
+            _found = found;
+            _changeCount = changeCount;
+        }
+    }
+}
@@ -0,0 +1,147 @@
+/*************************************************************************\
+* Copyright (C) 2009-2015 Mennē Software Solutions, LLC
+*
+* This code is released as open source under the Apache 2.0 License:<br/>
+* <a href="http://www.apache.org/licenses/LICENSE-2.0">
+* http://www.apache.org/licenses/LICENSE-2.0</a><br />
+\*************************************************************************/
+
+package com.moneydance.modules.features.findandreplace;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * <p>Finds the free text entered by the user in a string without allocating anything per call.</p>
+ *
+ * <p>Plain text is found with a case-folded Boyer-Moore-Horspool search. Characters are folded
+ * the same way as the <code>(?ui)</code> flags of {@link N12EFindAndReplace#REGEX_PREFIX}, so the
+ * result is the same as the quoted regular expression. Regular expressions, and plain text with
+ * surrogate pairs or the end quote <code>\E</code>, use a matcher per thread that is reset for
+ * each string, since a search can run on several threads at once.</p>
+ *
+ * @author Kevin Menningen
+ * @version Build 94
+ * @since 1.0
+ */
+class TextMatcher
+{
+    /** Size of the bad character shift table, characters are hashed by their low bits. */
+    private static final int SHIFT_TABLE_SIZE = 256;
+
+    /** The pattern for regular expressions, null for plain text. */
+    private final Pattern _pattern;
+    private final ThreadLocal<Matcher> _matchers;
+    /** The folded plain text, null for regular expressions. */
+    private final char[] _folded;
+    /** How far the search window moves for the last character under it. */
+    private final int[] _shifts;
+
+    /**
+     * @param textMatch The text entered by the user, plain text or '=' followed by a regular
+     *                  expression. Must not be blank.
+     */
+    TextMatcher(final String textMatch)
+    {
+        if (FarUtil.hasRegularExpression(textMatch) || hasSurrogate(textMatch)
+            || textMatch.contains(N12EFindAndReplace.REGEX_SUFFIX))
+        {
+            _pattern = FarUtil.buildFindPattern(textMatch);
+            _matchers = new ThreadLocal<Matcher>()
+            {
+                @Override
+                protected Matcher initialValue()
+                {
+                    return _pattern.matcher(N12EFindAndReplace.EMPTY);
+                }
+            };
+            _folded = null;
+            _shifts = null;
+            return;
+        }
+
+        _pattern = null;
+        _matchers = null;
+        final int length = textMatch.length();
+        _folded = new char[length];
+        for (int index = 0; index < length; index++)
+        {
+            _folded[index] = fold(textMatch.charAt(index));
+        }
+        _shifts = new int[SHIFT_TABLE_SIZE];
+        for (int index = 0; index < SHIFT_TABLE_SIZE; index++)
+        {
+            _shifts[index] = length;
+        }
+        // characters sharing a slot keep the smallest shift, which is always safe
+        for (int index = 0; index < length - 1; index++)
+        {
+            _shifts[_folded[index] & (SHIFT_TABLE_SIZE - 1)] = length - 1 - index;
+        }
+    }
+
+    boolean isPlainText()
+    {
+        return (_folded != null);
+    }
+
+    /**
+     * @param text The text to search, not null.
+     * @return True if the text contains the plain text or a match of the regular expression.
+     */
+    boolean find(final String text)
+    {
+        if (_folded == null)
+        {
+            return _matchers.get().reset(text).find();
+        }
+
+        final int patternLength = _folded.length;
+        final int last = patternLength - 1;
+        final int end = text.length() - patternLength;
+        int start = 0;
+        while (start <= end)
+        {
+            int index = last;
+            char folded = fold(text.charAt(start + index));
+            final char lastFolded = folded;
+            while (folded == _folded[index])
+            {
+                if (index == 0)
+                {
+                    return true;
+                }
+                --index;
+                folded = fold(text.charAt(start + index));
+            }
+            start += _shifts[lastFolded & (SHIFT_TABLE_SIZE - 1)];
+        }
+        return false;
+    }
+
+    //////////////////////////////////////////////////////////////////////////////////////////////
+    //  Private Methods
+    //////////////////////////////////////////////////////////////////////////////////////////////
+
+    private static char fold(final char value)
+    {
+        if (value < 128)
+        {
+            // ASCII fast path, same result as the Unicode folding below
+            return ((value >= 'A') && (value <= 'Z')) ? (char) (value + ('a' - 'A')) : value;
+        }
+        return Character.toLowerCase(Character.toUpperCase(value));
+    }
+
+    private static boolean hasSurrogate(final String text)
+    {
+        for (int index = text.length() - 1; index >= 0; index--)
+        {
+            if (Character.isSurrogate(text.charAt(index)))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+}
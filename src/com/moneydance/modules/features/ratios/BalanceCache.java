@@ -0,0 +1,140 @@
+/*
+ * ************************************************************************
+ * Copyright (C) 2012-2015 Mennē Software Solutions, LLC
+ *
+ * This code is released as open source under the Apache 2.0 License:<br/>
+ * <a href="http://www.apache.org/licenses/LICENSE-2.0">
+ * http://www.apache.org/licenses/LICENSE-2.0</a><br />
+ * ************************************************************************
+ */
+
+package com.moneydance.modules.features.ratios;
+
+import com.infinitekind.moneydance.model.Account;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Account balances shared by all ratios and kept from one computation to the next. Each entry is keyed by the
+ * account, the dates the balances are as of and the kind of balance (start and end balance, or daily average),
+ * so ratios that use the same account in different ways do not see each other's results.
+ * <p>
+ * Entries stay valid until the balance of their account changes. A balance change of an account also drops the
+ * entries of its parent accounts, since an investment account balance includes its securities, and a change in
+ * the currency table drops the investment account entries, whose security balances were converted at the
+ * prices of the time. A balance computed while its account changed is not stored.
+ *
+ * @author Kevin Menningen
+ */
+class BalanceCache {
+  /** The kinds of balance kept for an account. */
+  enum Kind {
+    /** The balance as of the day before the start date and as of the end date. */
+    START_END,
+    /** The balance as of the start and end date, and the average of every day between. */
+    DAILY_AVERAGE
+  }
+
+  /** Number of entries kept, least recently used first out. */
+  private static final int MAX_ENTRIES = 4096;
+
+  private final Map<Key, BalanceHolder> _balances = new LinkedHashMap<Key, BalanceHolder>(256, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(final Map.Entry<Key, BalanceHolder> eldest) {
+      return size() > MAX_ENTRIES;
+    }
+  };
+  /** Counts the invalidations, so a balance computed during one is not stored. */
+  private long _generation = 0;
+
+  synchronized BalanceHolder get(final Account account, final int startDate, final int endDate, final Kind kind) {
+    return _balances.get(new Key(account, startDate, endDate, kind));
+  }
+
+  /**
+   * @return The invalidation count, take it before computing a balance and pass it to {@link #put}.
+   */
+  synchronized long getGeneration() {
+    return _generation;
+  }
+
+  /**
+   * Store a computed balance, unless a balance changed while it was computed.
+   * @param balance    The balance, which holds the account and dates.
+   * @param kind       The kind of balance.
+   * @param generation The result of {@link #getGeneration()} from before the balance was computed.
+   */
+  synchronized void put(final BalanceHolder balance, final Kind kind, final long generation) {
+    if (generation != _generation) return;
+    _balances.put(new Key(balance.getAccount(), balance.getStartDate(), balance.getEndDate(), kind), balance);
+  }
+
+  /**
+   * Drop the balances of an account and of the accounts above it.
+   * @param account The account whose balance changed.
+   */
+  synchronized void invalidate(final Account account) {
+    ++_generation;
+    if (_balances.isEmpty()) return;
+    final Iterator<Key> iterator = _balances.keySet().iterator();
+    while (iterator.hasNext()) {
+      if (isSameOrParent(iterator.next()._account, account)) iterator.remove();
+    }
+  }
+
+  /**
+   * Drop the balances that include converted security balances.
+   */
+  synchronized void invalidateConverted() {
+    ++_generation;
+    final Iterator<Key> iterator = _balances.keySet().iterator();
+    while (iterator.hasNext()) {
+      if (iterator.next()._account.getAccountType() == Account.AccountType.INVESTMENT) iterator.remove();
+    }
+  }
+
+  synchronized void clear() {
+    ++_generation;
+    _balances.clear();
+  }
+
+  private static boolean isSameOrParent(final Account cached, final Account changed) {
+    for (Account account = changed; account != null; account = account.getParentAccount()) {
+      if (account.equals(cached)) return true;
+    }
+    return false;
+  }
+
+  private static class Key {
+    private final Account _account;
+    private final int _startDate;
+    private final int _endDate;
+    private final Kind _kind;
+
+    Key(final Account account, final int startDate, final int endDate, final Kind kind) {
+      _account = account;
+      _startDate = startDate;
+      _endDate = endDate;
+      _kind = kind;
+    }
+
+    @Override
+    public boolean equals(final Object other) {
+      if (this == other) return true;
+      if (!(other instanceof Key)) return false;
+      final Key key = (Key) other;
+      return (_startDate == key._startDate) && (_endDate == key._endDate) && (_kind == key._kind)
+             && _account.equals(key._account);
+    }
+
+    @Override
+    public int hashCode() {
+      int result = _account.hashCode();
+      result = 31 * result + _startDate;
+      result = 31 * result + _endDate;
+      return 31 * result + _kind.hashCode();
+    }
+  }
+}
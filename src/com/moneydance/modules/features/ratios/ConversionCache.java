@@ -0,0 +1,224 @@
+/*
+ * ************************************************************************
+ * Copyright (C) 2012-2015 Mennē Software Solutions, LLC
+ *
+ * This code is released as open source under the Apache 2.0 License:<br/>
+ * <a href="http://www.apache.org/licenses/LICENSE-2.0">
+ * http://www.apache.org/licenses/LICENSE-2.0</a><br />
+ * ************************************************************************
+ */
+
+package com.moneydance.modules.features.ratios;
+
+import com.infinitekind.moneydance.model.CurrencyType;
+import com.infinitekind.moneydance.model.CurrencyUtil;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Currency conversions for one computation run. <code>CurrencyUtil.convertValue()</code> looks through the price
+ * history of both currencies on every call, which adds up when it is called for every transaction and every day.
+ * This cache keeps one conversion factor per currency pair and date, in a primitive table per pair that is
+ * filled in as dates are asked for. A factor is built from the rates Moneydance takes from the snapshots of the
+ * two currencies on that date, scaled for their decimal places, so each pair and date walks the snapshots once.
+ * Dates where either rate is missing or zero are left to Moneydance. Split adjustments are only looked up for
+ * currencies that have splits.
+ * <p>
+ * Setting the system property <code>ratios.verifyConversions</code> to <code>true</code> turns on a test mode
+ * that also converts every value without the cache and logs each result that differs. The pair and date of a
+ * difference are left to Moneydance from then on, and the number of differences is logged after each run, so a
+ * run with no differences shows the factors give exactly what Moneydance gives.
+ * <p>
+ * All methods may be called from several threads at once. Looking up a factor takes no lock.
+ *
+ * @author Kevin Menningen
+ */
+class ConversionCache {
+  static final boolean VERIFY = Boolean.getBoolean("ratios.verifyConversions");
+  /** A factor that is left to Moneydance. */
+  private static final long NO_FACTOR = Double.doubleToRawLongBits(Double.NaN);
+
+  private final ConcurrentHashMap<Pair, RateTable> _tables = new ConcurrentHashMap<Pair, RateTable>();
+  private final Map<CurrencyType, Boolean> _hasSplits = new ConcurrentHashMap<CurrencyType, Boolean>();
+  private final AtomicLong _verified = new AtomicLong();
+  private final AtomicLong _mismatches = new AtomicLong();
+
+  /**
+   * Convert a value from one currency to another, the same as <code>CurrencyUtil.convertValue()</code>.
+   * @param value The value in the source currency.
+   * @param from  The source currency.
+   * @param to    The target currency.
+   * @param date  The date of the exchange rate.
+   * @return The value in the target currency.
+   */
+  long convertValue(final long value, final CurrencyType from, final CurrencyType to, final int date) {
+    if ((from == to) || (value == 0) || (date == RateTable.NO_DATE)) {
+      return CurrencyUtil.convertValue(value, from, to, date);
+    }
+    final RateTable table = getTable(from, to);
+    long bits = table.get(date);
+    if (bits == RateTable.UNKNOWN) {
+      bits = computeFactor(from, to, date);
+      table.put(date, bits);
+    }
+    if (bits == NO_FACTOR) return CurrencyUtil.convertValue(value, from, to, date);
+    final long result = Math.round(value * Double.longBitsToDouble(bits));
+    if (!VERIFY) return result;
+    _verified.incrementAndGet();
+    final long expected = CurrencyUtil.convertValue(value, from, to, date);
+    if (result != expected) {
+      _mismatches.incrementAndGet();
+      Logger.log("Currency conversion mismatch converting " + value + " " + from.getIDString() + " to "
+                 + to.getIDString() + " on " + date + ": cached " + result + ", Moneydance " + expected);
+      table.put(date, NO_FACTOR);
+    }
+    return expected;
+  }
+
+  /**
+   * Adjust a number of shares for the splits since a date, the same as <code>adjustValueForSplitsInt()</code>.
+   * @param currency The security.
+   * @param date     The date the shares were recorded.
+   * @param value    The number of shares.
+   * @return The number of shares after the splits.
+   */
+  long adjustValueForSplits(final CurrencyType currency, final int date, final long value) {
+    Boolean hasSplits = _hasSplits.get(currency);
+    if (hasSplits == null) {
+      hasSplits = Boolean.valueOf(!currency.getSplits().isEmpty());
+      _hasSplits.put(currency, hasSplits);
+    }
+    final long result = hasSplits.booleanValue() ? currency.adjustValueForSplitsInt(date, value) : value;
+    if (!VERIFY) return result;
+    _verified.incrementAndGet();
+    final long expected = currency.adjustValueForSplitsInt(date, value);
+    if (result != expected) {
+      _mismatches.incrementAndGet();
+      Logger.log("Split adjustment mismatch for " + value + " " + currency.getIDString() + " on " + date
+                 + ": cached " + result + ", Moneydance " + expected);
+    }
+    return expected;
+  }
+
+  /**
+   * Log how many cached results were checked and how many differed, in test mode only.
+   */
+  void logVerification() {
+    if (!VERIFY) return;
+    Logger.log("Currency conversion check: " + _mismatches.get() + " of " + _verified.get()
+               + " cached conversions differed");
+  }
+
+  private RateTable getTable(final CurrencyType from, final CurrencyType to) {
+    final Pair pair = new Pair(from, to);
+    RateTable table = _tables.get(pair);
+    if (table == null) {
+      table = new RateTable();
+      final RateTable existing = _tables.putIfAbsent(pair, table);
+      if (existing != null) table = existing;
+    }
+    return table;
+  }
+
+  /**
+   * The factor from one currency to another on a date: the value of one unit of <code>from</code> in units of
+   * <code>to</code>, from the rates of both relative to the base currency, and moved by the difference in decimal
+   * places since values are kept in the smallest unit.
+   * @return The bits of the factor, or {@link #NO_FACTOR} if a rate is missing.
+   */
+  private static long computeFactor(final CurrencyType from, final CurrencyType to, final int date) {
+    final double fromRate = from.getUserRateByDateInt(date);
+    final double toRate = to.getUserRateByDateInt(date);
+    final double factor = fromRate / toRate * Math.pow(10.0, to.getDecimalPlaces() - from.getDecimalPlaces());
+    if ((factor == 0.0) || Double.isNaN(factor) || Double.isInfinite(factor)) return NO_FACTOR;
+    return Double.doubleToRawLongBits(factor);
+  }
+
+  /** Currency pair, compared by identity since the currencies do not change during a run. */
+  private static class Pair {
+    private final CurrencyType _from;
+    private final CurrencyType _to;
+
+    Pair(final CurrencyType from, final CurrencyType to) {
+      _from = from;
+      _to = to;
+    }
+
+    @Override
+    public boolean equals(final Object other) {
+      if (!(other instanceof Pair)) return false;
+      final Pair pair = (Pair) other;
+      return (_from == pair._from) && (_to == pair._to);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * System.identityHashCode(_from) + System.identityHashCode(_to);
+    }
+  }
+
+  /**
+   * Open addressing table from a date to the bits of a conversion factor, where a missing date reads as
+   * {@link #UNKNOWN}. Writers take the lock; readers do not. A factor is stored before its date is published, and
+   * a grown table is only published once it is filled, so a reader that finds a date also sees its factor.
+   */
+  private static class RateTable {
+    static final int NO_DATE = 0;
+    static final long UNKNOWN = 0L;
+    private volatile Slots _slots = new Slots(64);
+    private int _size = 0;
+
+    long get(final int date) {
+      final Slots slots = _slots;
+      final int mask = slots._factors.length - 1;
+      for (int slot = hash(date) & mask; ; slot = (slot + 1) & mask) {
+        final int slotDate = slots._dates.get(slot);
+        if (slotDate == NO_DATE) return UNKNOWN;
+        if (slotDate == date) return slots._factors[slot];
+      }
+    }
+
+    synchronized void put(final int date, final long factor) {
+      Slots slots = _slots;
+      if ((_size + 1) * 2 > slots._factors.length) {
+        final Slots grown = new Slots(slots._factors.length * 2);
+        for (int slot = 0; slot < slots._factors.length; slot++) {
+          final int slotDate = slots._dates.get(slot);
+          if (slotDate != NO_DATE) grown.insert(slotDate, slots._factors[slot]);
+        }
+        _slots = grown;
+        slots = grown;
+      }
+      if (slots.insert(date, factor)) ++_size;
+    }
+
+    private static int hash(final int date) {
+      final int hash = date * 0x9E3779B9;
+      return hash ^ (hash >>> 16);
+    }
+
+    private static class Slots {
+      private final AtomicIntegerArray _dates;
+      private final long[] _factors;
+
+      Slots(final int length) {
+        _dates = new AtomicIntegerArray(length);
+        _factors = new long[length];
+      }
+
+      /** @return True if the date was not in the table yet. */
+      boolean insert(final int date, final long factor) {
+        final int mask = _factors.length - 1;
+        int slot = hash(date) & mask;
+        while ((_dates.get(slot) != NO_DATE) && (_dates.get(slot) != date)) slot = (slot + 1) & mask;
+        final boolean added = (_dates.get(slot) == NO_DATE);
+        _factors[slot] = factor;
+        _dates.set(slot, date);
+        return added;
+      }
+    }
+  }
+}
@@ -0,0 +1,147 @@
+/*
+ * ************************************************************************
+ * Copyright (C) 2012-2015 Mennē Software Solutions, LLC
+ *
+ * This code is released as open source under the Apache 2.0 License:<br/>
+ * <a href="http://www.apache.org/licenses/LICENSE-2.0">
+ * http://www.apache.org/licenses/LICENSE-2.0</a><br />
+ * ************************************************************************
+ */
+
+package com.moneydance.modules.features.ratios;
+
+import com.infinitekind.moneydance.model.AbstractTxn;
+import com.infinitekind.moneydance.model.Account;
+import com.infinitekind.moneydance.model.AccountBook;
+import com.infinitekind.moneydance.model.AccountUtil;
+import com.infinitekind.moneydance.model.CurrencySnapshot;
+import com.infinitekind.moneydance.model.CurrencySplit;
+import com.infinitekind.moneydance.model.CurrencyType;
+import com.moneydance.apps.md.controller.Util;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Computes the balance of an account on every day of a date range with one sweep through its transactions,
+ * instead of asking Moneydance for the balance as of each day.
+ * <p>
+ * The balance the day before the range and the balance on the last day come from Moneydance. The daily
+ * balances in between are the first one plus the running total of the transactions posted on each day. If the
+ * running total does not end on the balance Moneydance reports (for instance because the account has
+ * transactions this sweep does not see), the balances are asked for day by day like before. Accounts with
+ * sub-accounts are always asked for day by day, since their balance may include the sub-accounts.
+ * <p>
+ * Security balances converted to another currency only need a conversion where the balance or an exchange
+ * rate changes: on a day with a transaction, a price snapshot or a stock split of either currency or the
+ * currencies they are relative to. Each stretch of days between those points is converted on its first and last
+ * day, and only if the two differ is it converted day by day.
+ *
+ * @author Kevin Menningen
+ */
+class DailyBalanceSweep {
+  /** Limit on the chain of relative currencies followed when looking for rate changes. */
+  private static final int MAX_RELATIVE_DEPTH = 8;
+
+  private final AccountBook _root;
+  private final ConversionCache _conversions;
+
+  DailyBalanceSweep(final AccountBook root, final ConversionCache conversions) {
+    _root = root;
+    _conversions = conversions;
+  }
+
+  /**
+   * Get the balance of an account as of the end of each day of a range, in the account's currency. This gives
+   * the same result as <code>AccountUtil.getBalancesAsOfDates(root, account, dates, true)</code>.
+   * @param account The account.
+   * @param dates   Every day of the range, in order.
+   * @return The balance as of each date.
+   */
+  long[] getDailyBalances(final Account account, final int[] dates) {
+    if (account.getSubAccountCount() > 0) return AccountUtil.getBalancesAsOfDates(_root, account, dates, true);
+    final int numDays = dates.length;
+    final long[] bounds = AccountUtil.getBalancesAsOfDates(_root, account,
+                                                           new int[] {Util.incrementDate(dates[0], 0, 0, -1),
+                                                                      dates[numDays - 1]}, true);
+    final long[] balances = new long[numDays];
+    for (AbstractTxn txn : _root.getTransactionSet().getTransactionsForAccount(account)) {
+      final int dayIndex = Arrays.binarySearch(dates, txn.getDateInt());
+      if (dayIndex >= 0) balances[dayIndex] += txn.getValue();
+    }
+    long balance = bounds[0];
+    for (int index = 0; index < numDays; index++) {
+      balance += balances[index];
+      balances[index] = balance;
+    }
+    if (balance != bounds[1]) {
+      Logger.log("Daily balance sweep did not match for " + account.getAccountName() + ", computing each day");
+      return AccountUtil.getBalancesAsOfDates(_root, account, dates, true);
+    }
+    return balances;
+  }
+
+  /**
+   * Convert the daily balances of a security to another currency and add them to a total. This gives the same
+   * result as converting the balance of each day with <code>CurrencyUtil.convertValue()</code> as of that day.
+   * @param total        [in,out] The daily totals to add the converted balances to.
+   * @param balances     The daily balances of the security, in the security's currency.
+   * @param fromCurrency The currency of the security.
+   * @param toCurrency   The currency of the total.
+   * @param dates        Every day of the range, in order.
+   */
+  void addConvertedBalances(final long[] total, final long[] balances, final CurrencyType fromCurrency,
+                            final CurrencyType toCurrency, final int[] dates) {
+    final int numDays = dates.length;
+    // a new stretch starts on the first day, on rate changes and on balance changes
+    final BitSet changes = new BitSet(numDays);
+    changes.set(0);
+    addRateChanges(changes, fromCurrency, dates);
+    addRateChanges(changes, toCurrency, dates);
+    for (int index = 1; index < numDays; index++) {
+      if (balances[index] != balances[index - 1]) changes.set(index);
+    }
+    int start = 0;
+    while (start < numDays) {
+      int end = changes.nextSetBit(start + 1);
+      if (end < 0) end = numDays;
+      final long balance = balances[start];
+      final long first = _conversions.convertValue(balance, fromCurrency, toCurrency, dates[start]);
+      final long last = (end - 1 > start) ? _conversions.convertValue(balance, fromCurrency, toCurrency, dates[end - 1])
+                                          : first;
+      if (first == last) {
+        for (int index = start; index < end; index++) total[index] += first;
+      } else {
+        // the rate moves inside the stretch, convert each day
+        for (int index = start; index < end; index++) {
+          total[index] += _conversions.convertValue(balance, fromCurrency, toCurrency, dates[index]);
+        }
+      }
+      start = end;
+    }
+  }
+
+  /**
+   * Mark the days on which the rate of a currency, or of the currencies it is relative to, may change.
+   */
+  private void addRateChanges(final BitSet changes, final CurrencyType currency, final int[] dates) {
+    CurrencyType current = currency;
+    for (int depth = 0; (current != null) && (depth < MAX_RELATIVE_DEPTH); depth++) {
+      for (CurrencySnapshot snapshot : current.getSnapshots()) {
+        markDate(changes, snapshot.getDateInt(), dates);
+      }
+      for (CurrencySplit split : current.getSplits()) {
+        markDate(changes, split.getDateInt(), dates);
+      }
+      final String relativeID = current.getParameter(CurrencyType.TAG_RELATIVE_TO_CURR);
+      current = (relativeID == null) ? null : _root.getCurrencies().getCurrencyByIDString(relativeID);
+    }
+  }
+
+  private static void markDate(final BitSet changes, final int date, final int[] dates) {
+    final int dayIndex = Arrays.binarySearch(dates, date);
+    if (dayIndex >= 0) {
+      changes.set(dayIndex);
+    }
+  }
+}
@@ -30,6 +30,8 @@ public class L10NRatios
 
   static final String HOME_PAGE_LABEL = "homePageLabel";
   static final String REPORT_TITLE = "reportTitle";
+  static final String TREND_REPORT_TITLE = "trendReportTitle";
+  static final String TREND_LABEL = "trendLabel";
   static final String REPORT_LABEL = "ratio";  // bottom row of report
   static final String SHOW_PERCENT = "showPercent";
   static final String ALWAYS_POSITIVE = "alwaysPositive";
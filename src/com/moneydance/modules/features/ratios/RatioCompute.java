@@ -10,43 +10,203 @@
 
 package com.moneydance.modules.features.ratios;
 
+import com.infinitekind.moneydance.model.AbstractTxn;
 import com.infinitekind.moneydance.model.Account;
 import com.infinitekind.moneydance.model.AccountBook;
 import com.infinitekind.moneydance.model.AccountUtil;
 import com.infinitekind.moneydance.model.CurrencyType;
-import com.infinitekind.moneydance.model.CurrencyUtil;
 import com.infinitekind.moneydance.model.DateRange;
+import com.infinitekind.moneydance.model.ParentTxn;
 import com.infinitekind.moneydance.model.Txn;
 import com.infinitekind.moneydance.model.TxnIterator;
 import com.moneydance.apps.md.controller.Util;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Computes ratios efficiently using one pass through the data for each numerator or denominator.
+ * <p>
+ * After a full pass, transaction changes reported through {@link #transactionChanged(AbstractTxn, boolean)}
+ * are applied to the running totals of each ratio part: the old values of each changed parent transaction
+ * and its splits are backed out and the current ones are accumulated. The full pass is only repeated when
+ * the date range or the ratio definitions change, or when exchange rates change since the running totals
+ * were converted at the rates of the time. Reports must not compute on the ratio definitions whose
+ * running totals are kept, they compute on a {@link RatioEntry#createCopy copy}.
+ * <p>
+ * A full pass splits the transactions into chunks that are matched against the ratio parts in parallel on a
+ * fork-join pool. Matching only reads the parts, each chunk collects what it matched, and the chunks are added
+ * to the running totals in transaction order. So the totals, and the rows handed to {@link IRatioReporting},
+ * are the same as for a pass on one thread.
+ * <p>
+ * Account balances are kept in a {@link BalanceCache} from one computation to the next, and dropped when the
+ * extension model reports that the balance of their account changed. Currency conversions go through a
+ * {@link ConversionCache} that lasts for one computation.
+ * <p>
+ * {@link #computeRatioSeries(List, List)} computes the ratios for a series of periods with the same single pass,
+ * adding each matched transaction to the period it falls in.
  *
  * @author Kevin Menningen
  */
 class RatioCompute {
   private static final double MINIMUM_DENOMINATOR = 0.00001;
+  /** Number of transactions matched by one fork-join task. */
+  private static final int CHUNK_SIZE = 2000;
+  /** Number of transactions between checks for cancellation. */
+  private static final int CANCEL_CHECK_INTERVAL = 1024;
+  private static final AtomicBoolean NOT_CANCELLED = new AtomicBoolean(false);
   private final AccountBook _root;
   private final char _decimal;
-  private final Map<Account,BalanceHolder> _balanceCache;
+  private final BalanceCache _balanceCache;
+  /** Currency conversions of the current run, started over by each computation. */
+  private ConversionCache _conversions = new ConversionCache();
+
+  private final Object _changeSync = new Object();
+  /** Parent transactions changed since the last computation, and whether the parent was removed. */
+  private Map<ParentTxn, Boolean> _changedParents = new IdentityHashMap<ParentTxn, Boolean>();
+  /** Splits removed since the last computation, they may still be listed in their parent. */
+  private Set<AbstractTxn> _removedSplits = newIdentitySet();
+  /** The ratios, date range and pass counts the transaction totals were last computed for. */
+  private final List<RatioEntry> _computedRatios = new ArrayList<RatioEntry>();
+  private int[] _computedPassCounts = new int[0];
+  private int _computedStartDate = 0;
+  private int _computedEndDate = 0;
+  /** Set when the running totals can no longer be brought up to date from the transaction changes. */
+  private volatile boolean _fullPassNeeded = false;
+  /** Routes transactions to the ratio parts that use their accounts, built by each full pass. */
+  private RatioDispatchTable _dispatchTable = null;
+  /** Set when the computation in progress should stop. */
+  private AtomicBoolean _cancelled = NOT_CANCELLED;
 
   public RatioCompute(final AccountBook root, final char decimal) {
     _root = root;
     _decimal = decimal;
-    _balanceCache = new HashMap<Account, BalanceHolder>();
+    _balanceCache = new BalanceCache();
   }
 
   public void computeRatios(final List<RatioEntry> ratios, DateRange dateRange) {
+    computeRatios(ratios, dateRange, new AtomicBoolean(false));
+  }
+
+  /**
+   * Compute the ratios, stopping if asked to. The ratio values are only set at the end, so a stopped computation
+   * leaves them as they were, but it may have changed the numerator and denominator values of some ratios. If it
+   * stopped during the pass through the transactions, the next computation makes a full pass.
+   * @param ratios    The list of ratio definitions.
+   * @param dateRange The date range to compute the ratios for.
+   * @param cancelled Checked between steps and while going through the transactions.
+   * @throws CancellationException If the flag was set before the computation finished.
+   */
+  void computeRatios(final List<RatioEntry> ratios, DateRange dateRange, final AtomicBoolean cancelled) {
+    _cancelled = cancelled;
+    try {
+      _conversions = new ConversionCache();
+      for (RatioEntry ratio : ratios) ratio.setConversions(_conversions);
+      if (canApplyTxnChanges(ratios, dateRange)) {
+        // quick, and applies the changes it takes, so it is not interrupted
+        applyTxnChanges(ratios);
+      } else {
+        computeTxnBasedValues(ratios, dateRange);
+        rememberTxnPass(ratios, dateRange);
+      }
+      checkCancelled();
+      computeBalanceBasedValues(ratios, dateRange);
+      computeConstantValues(ratios, dateRange);
+      checkCancelled();
+      computeFinalRatios(ratios);
+      _conversions.logVerification();
+    } finally {
+      _cancelled = NOT_CANCELLED;
+    }
+  }
+
+  /**
+   * Compute every ratio for each of a series of periods, with one pass through the transactions for all
+   * periods. The values of the ratio definitions are not changed, but their transaction totals are started
+   * over, so callers pass {@link RatioEntry#createCopy copies}, never the definitions shown on the home page.
+   * @param ratios  The list of ratio definitions.
+   * @param periods The periods, in date order and not overlapping.
+   * @return The numerator, denominator and ratio values of each ratio in each period.
+   */
+  RatioSeries computeRatioSeries(final List<RatioEntry> ratios, final List<DateRange> periods) {
+    final RatioSeries series = new RatioSeries(periods, ratios.size());
+    if (_root == null) {
+      Logger.log("No data file defined for ratio series calculations");
+      return series;
+    }
+    if (periods.isEmpty()) return series;
+    _conversions = new ConversionCache();
+    for (RatioEntry ratio : ratios) ratio.setConversions(_conversions);
+    computeTxnBasedSeries(ratios, series);
+    computeBalanceBasedSeries(ratios, series);
+    computeConstantSeries(ratios, series);
+    for (int ratioIndex = 0; ratioIndex < ratios.size(); ratioIndex++) {
+      final boolean alwaysPositive = ratios.get(ratioIndex).getAlwaysPositive();
+      for (int period = 0; period < series.getPeriodCount(); period++) {
+        series.setValue(ratioIndex, period, computeFinalRatio(series.getNumeratorValue(ratioIndex, period),
+                                                              series.getDenominatorValue(ratioIndex, period),
+                                                              alwaysPositive));
+      }
+    }
+    _conversions.logVerification();
+    return series;
+  }
+
+  /**
+   * Record a transaction change, to be applied to the transaction totals on the next computation.
+   * This may be called on any thread.
+   * @param txn     The transaction that was added, modified or removed.
+   * @param removed True if the transaction was removed.
+   */
+  void transactionChanged(final AbstractTxn txn, final boolean removed) {
+    final ParentTxn parent = txn.getParentTxn();
+    if (parent == null) return;
+    synchronized (_changeSync) {
+      if (txn == parent) {
+        _changedParents.put(parent, Boolean.valueOf(removed));
+      } else {
+        if (removed) {
+          _removedSplits.add(txn);
+        } else {
+          _removedSplits.remove(txn);
+        }
+        if (!_changedParents.containsKey(parent)) _changedParents.put(parent, Boolean.FALSE);
+      }
+    }
+  }
+
+  /**
+   * Drop the cached balances of an account, and of the accounts that include it. This may be called on any thread.
+   * @param account The account whose balance changed.
+   */
+  void accountBalanceChanged(final Account account) {
+    _balanceCache.invalidate(account);
+  }
+
+  /**
+   * Drop the cached balances that depend on security prices, and make the next computation a full pass since
+   * the transaction totals were converted at the old rates. This may be called on any thread.
+   */
+  void currencyTableChanged() {
+    _balanceCache.invalidateConverted();
+    _fullPassNeeded = true;
+  }
+
+  /**
+   * Drop all cached balances, for instance when accounts were added or removed. This may be called on any thread.
+   */
+  void clearBalances() {
     _balanceCache.clear();
-    computeTxnBasedValues(ratios, dateRange);
-    computeBalanceBasedValues(ratios, dateRange);
-    computeConstantValues(ratios, dateRange);
-    computeFinalRatios(ratios);
   }
 
   static boolean shouldFlipTxn(final Account sourceAccount, final Account targetAccount,
@@ -70,6 +230,78 @@ class RatioCompute {
     return Util.calculateDaysBetween(dateRange.getStartDateInt(), dateRange.getEndDateInt()) + 1;
   }
 
+  private void computeTxnBasedSeries(final List<RatioEntry> ratios, final RatioSeries series) {
+    final int periodCount = series.getPeriodCount();
+    final int[] startDates = new int[periodCount];
+    final int[] endDates = new int[periodCount];
+    for (int period = 0; period < periodCount; period++) {
+      startDates[period] = series.getPeriod(period).getStartDateInt();
+      endDates[period] = series.getPeriod(period).getEndDateInt();
+    }
+    // match against the whole span, then sort the matches into periods
+    final DateRange span = new DateRange(startDates[0], endDates[periodCount - 1]);
+    for (RatioEntry ratio : ratios) ratio.prepareForTxnProcessing(_root, span, true, null);
+    final RatioDispatchTable table = new RatioDispatchTable(ratios);
+    final long[][] totals = new long[table.getPartCount()][periodCount];
+    if (!table.isEmpty()) matchTxns(table).addToPeriods(table, startDates, endDates, totals);
+
+    final Map<RatioPart, long[]> partTotals = new IdentityHashMap<RatioPart, long[]>();
+    for (int index = 0; index < table.getPartCount(); index++) partTotals.put(table.getPart(index), totals[index]);
+    final CurrencyType baseCurrency = _root.getCurrencies().getBaseType();
+    for (int ratioIndex = 0; ratioIndex < ratios.size(); ratioIndex++) {
+      final long[] numerator = partTotals.get(ratios.get(ratioIndex).getNumerator());
+      final long[] denominator = partTotals.get(ratios.get(ratioIndex).getDenominator());
+      for (int period = 0; period < periodCount; period++) {
+        if (numerator != null) series.setNumeratorValue(ratioIndex, period, baseCurrency.getDoubleValue(numerator[period]));
+        if (denominator != null) series.setDenominatorValue(ratioIndex, period, baseCurrency.getDoubleValue(denominator[period]));
+      }
+    }
+  }
+
+  private void computeBalanceBasedSeries(final List<RatioEntry> ratios, final RatioSeries series) {
+    final CurrencyType baseCurrency = _root.getCurrencies().getBaseType();
+    for (int ratioIndex = 0; ratioIndex < ratios.size(); ratioIndex++) {
+      final RatioEntry ratio = ratios.get(ratioIndex);
+      for (int period = 0; period < series.getPeriodCount(); period++) {
+        // balances shared between periods and ratios come from the balance cache
+        if (RatiosUtil.isAccountBalanceType(ratio.getNumeratorMatchingLogic())) {
+          long result = computeBalanceResult(series.getPeriod(period), baseCurrency,
+                                             ratio.getNumeratorRequiredAccountList(),
+                                             ratio.getNumeratorAverageBalance(),
+                                             ratio.getNumeratorBeginningBalance(),
+                                             null);
+          series.setNumeratorValue(ratioIndex, period, baseCurrency.getDoubleValue(result));
+        }
+        if (RatiosUtil.isAccountBalanceType(ratio.getDenominatorMatchingLogic())) {
+          long result = computeBalanceResult(series.getPeriod(period), baseCurrency,
+                                             ratio.getDenominatorRequiredAccountList(),
+                                             ratio.getDenominatorAverageBalance(),
+                                             ratio.getDenominatorBeginningBalance(),
+                                             null);
+          series.setDenominatorValue(ratioIndex, period, baseCurrency.getDoubleValue(result));
+        }
+      }
+    }
+  }
+
+  private void computeConstantSeries(final List<RatioEntry> ratios, final RatioSeries series) {
+    for (int ratioIndex = 0; ratioIndex < ratios.size(); ratioIndex++) {
+      final RatioEntry ratio = ratios.get(ratioIndex);
+      for (int period = 0; period < series.getPeriodCount(); period++) {
+        if (TxnMatchLogic.CONSTANT.equals(ratio.getNumeratorMatchingLogic())) {
+          series.setNumeratorValue(ratioIndex, period, RatiosUtil.getConstantValue(ratio.getNumeratorLabel(), _decimal, true, 0.0));
+        } else if (TxnMatchLogic.DAYS_IN_PERIOD.equals(ratio.getNumeratorMatchingLogic())) {
+          series.setNumeratorValue(ratioIndex, period, getDaysInPeriod(series.getPeriod(period)));
+        }
+        if (TxnMatchLogic.CONSTANT.equals(ratio.getDenominatorMatchingLogic())) {
+          series.setDenominatorValue(ratioIndex, period, RatiosUtil.getConstantValue(ratio.getDenominatorLabel(), _decimal, false, 1.0));
+        } else if (TxnMatchLogic.DAYS_IN_PERIOD.equals(ratio.getDenominatorMatchingLogic())) {
+          series.setDenominatorValue(ratioIndex, period, getDaysInPeriod(series.getPeriod(period)));
+        }
+      }
+    }
+  }
+
   private void computeBalanceBasedValues(List<RatioEntry> ratios, DateRange dateRange) {
     if (_root == null) {
       Logger.log("No data file defined for balance calculations");
@@ -175,23 +407,24 @@ class RatioCompute {
       dailyDates = null;
     }
     for (Account account : accountList) {
+      checkCancelled();
       // skip any account that is not active - they are hidden by default
       if (account.getAccountOrParentIsInactive()) continue;
       final BalanceHolder balance = useDailyAverage ?
                                     calculateBalancesWithDailyAverage(account, _balanceCache, asOfDates, dailyDates) :
                                     calculateBalances(account, _balanceCache, asOfDates, useStartBalance);
       // convert to the base currency
-      final long accountStartBalance = CurrencyUtil.convertValue(balance.getStartBalance(),
+      final long accountStartBalance = _conversions.convertValue(balance.getStartBalance(),
                                                                  account.getCurrencyType(),
                                                                  baseCurrency,
                                                                  asOfDates[0]);
       startBalance += accountStartBalance;
-      final long accountEndBalance = CurrencyUtil.convertValue(balance.getEndBalance(),
+      final long accountEndBalance = _conversions.convertValue(balance.getEndBalance(),
                                                account.getCurrencyType(),
                                                baseCurrency,
                                                asOfDates[1]);
       endBalance += accountEndBalance;
-      final long accountAvgBalance = CurrencyUtil.convertValue(balance.getAverageBalance(),
+      final long accountAvgBalance = _conversions.convertValue(balance.getAverageBalance(),
                                                                account.getCurrencyType(),
                                                                baseCurrency,
                                                                asOfDates[1]);
@@ -204,9 +437,10 @@ class RatioCompute {
     return useDailyAverage ? averageDailyBalance : (useStartBalance ? startBalance : endBalance);
   }
 
-  private BalanceHolder calculateBalances(Account account, Map<Account, BalanceHolder> cache, int[] asOfDates, boolean useStartBalance) {
-    BalanceHolder result = (cache == null) ? null : cache.get(account);
+  private BalanceHolder calculateBalances(Account account, BalanceCache cache, int[] asOfDates, boolean useStartBalance) {
+    BalanceHolder result = (cache == null) ? null : cache.get(account, asOfDates[0], asOfDates[1], BalanceCache.Kind.START_END);
     if (result == null) {
+      final long generation = (cache == null) ? 0 : cache.getGeneration();
       // this will get balances in the account's currency type
       long[] balances = AccountUtil.getBalancesAsOfDates(_root, account, asOfDates, true);
       // For investment accounts only, we must include the child accounts, the securities, since security accounts
@@ -217,11 +451,11 @@ class RatioCompute {
           Account security = account.getSubAccount(index);
           long[] securityBalances = AccountUtil.getBalancesAsOfDates(_root, security, asOfDates, true);
           // convert to the account's currency type, later that will be converted to base currency
-          balances[0] += CurrencyUtil.convertValue(securityBalances[0],
+          balances[0] += _conversions.convertValue(securityBalances[0],
                                                    security.getCurrencyType(),
                                                    account.getCurrencyType(),
                                                    asOfDates[0]);
-          balances[1] += CurrencyUtil.convertValue(securityBalances[1],
+          balances[1] += _conversions.convertValue(securityBalances[1],
                                                    security.getCurrencyType(),
                                                    account.getCurrencyType(),
                                                    asOfDates[1]);
@@ -232,32 +466,31 @@ class RatioCompute {
       } else {
         result = new BalanceHolder(account, balances[0], balances[1], 0, asOfDates[0], asOfDates[1], false, useStartBalance);
       }
-      if (cache != null) cache.put(account, result);
+      if (cache != null) cache.put(result, BalanceCache.Kind.START_END, generation);
     }
     return result;
   }
   
-  private BalanceHolder calculateBalancesWithDailyAverage(Account account, Map<Account, BalanceHolder> cache, int[] asOfDates,
+  private BalanceHolder calculateBalancesWithDailyAverage(Account account, BalanceCache cache, int[] asOfDates,
                                                           int[] datesToCompute) {
-    BalanceHolder result = (cache == null) ? null : cache.get(account);
-    if ((result == null) || !result.isAverageBalanceComputed()) {
+    BalanceHolder result = (cache == null) ? null : cache.get(account, asOfDates[0], asOfDates[1], BalanceCache.Kind.DAILY_AVERAGE);
+    if (result == null) {
+      final long generation = (cache == null) ? 0 : cache.getGeneration();
       final int numDays = datesToCompute.length;
-      // this will get balances in the account's currency type
-      long[] balances = AccountUtil.getBalancesAsOfDates(_root, account, datesToCompute, true);
+      // this will get balances in the account's currency type, in one sweep through the transactions
+      final DailyBalanceSweep sweep = new DailyBalanceSweep(_root, _conversions);
+      long[] balances = sweep.getDailyBalances(account, datesToCompute);
       // For investment accounts only, we must include the child accounts, the securities, since security accounts
       // are not included in the filter criteria. Users assume the security accounts are part of the investment
       // account balance. If we don't do this, all we get is the cash balance of the investment account.
       if (account.getAccountType() == Account.AccountType.INVESTMENT) {
         for (int index = 0; index < account.getSubAccountCount(); index++) {
           Account security = account.getSubAccount(index);
-          long[] securityBalances = AccountUtil.getBalancesAsOfDates(_root, security, datesToCompute, true);
-          // convert to the account's currency type, later that will be converted to base currency
-          for (int dateIndex = 0; dateIndex < numDays; dateIndex++) {
-            balances[dateIndex] += CurrencyUtil.convertValue(securityBalances[dateIndex],
-                                                     security.getCurrencyType(),
-                                                     account.getCurrencyType(),
-                                                     datesToCompute[dateIndex]);
-          }
+          long[] securityBalances = sweep.getDailyBalances(security, datesToCompute);
+          // convert to the account's currency type only where the balance or a rate changes, later that will be
+          // converted to base currency
+          sweep.addConvertedBalances(balances, securityBalances, security.getCurrencyType(),
+                                     account.getCurrencyType(), datesToCompute);
         }
       }
       double average = 0;
@@ -268,19 +501,17 @@ class RatioCompute {
       } else {
         result = new BalanceHolder(account, balances[0], balances[numDays-1], averageDailyBalance, asOfDates[0], asOfDates[1], true, false);
       }
-      if (cache != null) cache.put(account, result);
+      if (cache != null) cache.put(result, BalanceCache.Kind.DAILY_AVERAGE, generation);
     }
     return result;
   }
 
   void computeTransactionResult(final RatioEntry ratio, final DateRange dateRange, boolean isNumerator, final IRatioReporting reporting) {
+    ratio.setConversions(_conversions);
     ratio.prepareForTxnProcessing(_root, dateRange, isNumerator, reporting);
-    // calculate for each ratio on each matching transaction
-    TxnIterator txnIterator = new TxnIterator(_root.getTransactionSet());
-    while (txnIterator.hasNext()) {
-      Txn txn = txnIterator.next();
-      ratio.accumulateTxn(txn, isNumerator, reporting);
-    }
+    // calculate for each matching transaction
+    final RatioDispatchTable table = new RatioDispatchTable(isNumerator ? ratio.getNumerator() : ratio.getDenominator());
+    if (!table.isEmpty()) accumulateTxns(table, reporting);
     // final computation
     ratio.endTxnProcessing(isNumerator, reporting);
   }
@@ -290,22 +521,131 @@ class RatioCompute {
       Logger.log("No data file defined for transaction calculations");
       return;
     }
+    // the full pass includes every change made so far, and is not reused if it does not finish
+    _computedRatios.clear();
+    _fullPassNeeded = false;
+    takeTxnChanges();
     if (noTransactionPartsExist(ratios)) return;
     // setup
     for (RatioEntry ratio : ratios) ratio.prepareForTxnProcessing(_root, dateRange, true, null);
-    // calculate for each ratio on each matching transaction
-    TxnIterator txnIterator = new TxnIterator(_root.getTransactionSet());
-    while(txnIterator.hasNext()) {
-      Txn txn = txnIterator.next();
-      for (RatioEntry ratio : ratios) {
-        // with a null reporting callback, it doesn't matter whether we specify numerator or denominator, both will compute
-        ratio.accumulateTxn(txn, true, null);
+    _dispatchTable = new RatioDispatchTable(ratios);
+    // calculate for each ratio part on each transaction with an account the part uses
+    if (!_dispatchTable.isEmpty()) accumulateTxns(_dispatchTable, null);
+    // final computation
+    for (RatioEntry ratio : ratios) ratio.endTxnProcessing(true, null);
+  }
+
+  /**
+   * Determine if the transaction totals of the ratios can be brought up to date from the changes recorded
+   * since they were computed, rather than by a full pass through the transactions.
+   * @param ratios    The list of ratio definitions.
+   * @param dateRange The date range to compute the ratios for.
+   * @return True if the same ratios were last computed for the same date range, nothing else has computed
+   * transaction totals on them since, and the exchange rates have not changed.
+   */
+  private boolean canApplyTxnChanges(final List<RatioEntry> ratios, final DateRange dateRange) {
+    if ((_root == null) || _fullPassNeeded || (ratios.size() != _computedRatios.size())) return false;
+    if ((dateRange.getStartDateInt() != _computedStartDate) || (dateRange.getEndDateInt() != _computedEndDate)) {
+      return false;
+    }
+    for (int index = 0; index < ratios.size(); index++) {
+      final RatioEntry ratio = ratios.get(index);
+      if ((ratio != _computedRatios.get(index)) || (ratio.getTxnPassCount() != _computedPassCounts[index])) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private void rememberTxnPass(final List<RatioEntry> ratios, final DateRange dateRange) {
+    _computedRatios.clear();
+    _computedRatios.addAll(ratios);
+    _computedPassCounts = new int[ratios.size()];
+    for (int index = 0; index < ratios.size(); index++) {
+      _computedPassCounts[index] = ratios.get(index).getTxnPassCount();
+    }
+    _computedStartDate = dateRange.getStartDateInt();
+    _computedEndDate = dateRange.getEndDateInt();
+  }
+
+  /**
+   * Apply the recorded transaction changes to the running totals. Each changed parent transaction is
+   * backed out with whatever it and its splits added last time, then the parent and its current splits
+   * are accumulated again unless they were removed.
+   * @param ratios The list of ratio definitions, the same ones the totals were computed for.
+   */
+  private void applyTxnChanges(final List<RatioEntry> ratios) {
+    final Map<ParentTxn, Boolean> changedParents;
+    final Set<AbstractTxn> removedSplits;
+    synchronized (_changeSync) {
+      changedParents = _changedParents;
+      removedSplits = _removedSplits;
+      takeTxnChanges();
+    }
+    if (changedParents.isEmpty() || noTransactionPartsExist(ratios) || (_dispatchTable == null)) return;
+    for (Map.Entry<ParentTxn, Boolean> entry : changedParents.entrySet()) {
+      final ParentTxn parent = entry.getKey();
+      for (RatioEntry ratio : ratios) ratio.removeTxnFamily(parent);
+      if (entry.getValue().booleanValue()) continue; // the parent was removed
+      _dispatchTable.accumulateTxn(parent);
+      for (int index = 0; index < parent.getSplitCount(); index++) {
+        final AbstractTxn split = parent.getSplit(index);
+        if (!removedSplits.contains(split)) _dispatchTable.accumulateTxn(split);
       }
     }
-    // final computation
     for (RatioEntry ratio : ratios) ratio.endTxnProcessing(true, null);
   }
 
+  /**
+   * Run every transaction through the ratio parts of a dispatch table, in parallel chunks if there are enough
+   * transactions and more than one processor.
+   * @param table     The ratio parts to accumulate.
+   * @param reporting If non-null, receives every matching transaction, in transaction order.
+   */
+  private void accumulateTxns(final RatioDispatchTable table, final IRatioReporting reporting) {
+    matchTxns(table).addTo(table, reporting);
+  }
+
+  /**
+   * Match every transaction against the ratio parts of a dispatch table, in parallel chunks if there are enough
+   * transactions and more than one processor.
+   * @param table The ratio parts to match.
+   * @return Every match, in transaction order.
+   */
+  private ChunkResult matchTxns(final RatioDispatchTable table) {
+    final List<Txn> txns = new ArrayList<Txn>();
+    TxnIterator txnIterator = new TxnIterator(_root.getTransactionSet());
+    while (txnIterator.hasNext()) {
+      if ((txns.size() % CANCEL_CHECK_INTERVAL) == 0) checkCancelled();
+      txns.add(txnIterator.next());
+    }
+    final TxnChunk allTxns = new TxnChunk(table, txns, 0, txns.size(), _cancelled);
+    final int processors = Runtime.getRuntime().availableProcessors();
+    final ChunkResult result;
+    if ((processors > 1) && (txns.size() > CHUNK_SIZE)) {
+      // the common pool's workers outlive the pass, so there are no threads to start on every recalculation
+      result = ForkJoinPool.commonPool().invoke(allTxns);
+    } else {
+      result = allTxns.compute();
+    }
+    return result;
+  }
+
+  private void checkCancelled() {
+    if (_cancelled.get()) throw new CancellationException();
+  }
+
+  private void takeTxnChanges() {
+    synchronized (_changeSync) {
+      _changedParents = new IdentityHashMap<ParentTxn, Boolean>();
+      _removedSplits = newIdentitySet();
+    }
+  }
+
+  private static Set<AbstractTxn> newIdentitySet() {
+    return Collections.newSetFromMap(new IdentityHashMap<AbstractTxn, Boolean>());
+  }
+
   /**
    * Determine if all of the ratios use account balances or constant values, which means it's pointless to run
    * through all the transactions.
@@ -338,19 +678,126 @@ class RatioCompute {
   }
 
   static void computeFinalRatio(RatioEntry ratio) {
-    final double numerator = ratio.getNumeratorValue();
-    final double denominator = ratio.getDenominatorValue();
+    ratio.setValue(computeFinalRatio(ratio.getNumeratorValue(), ratio.getDenominatorValue(), ratio.getAlwaysPositive()));
+  }
+
+  private static double computeFinalRatio(final double numerator, final double denominator, final boolean alwaysPositive) {
     if (Math.abs(denominator) < MINIMUM_DENOMINATOR) {
       // divide by zero
-      ratio.setValue(Double.NaN);
+      return Double.NaN;
     } else if (Double.isNaN(numerator) || Double.isNaN(denominator)) {
       // not defined
-      ratio.setValue(Double.NaN);
-    } else if (ratio.getAlwaysPositive()) {
-      ratio.setValue(Math.abs(numerator / denominator));
-    } else {
-      ratio.setValue(numerator / denominator);
+      return Double.NaN;
+    } else if (alwaysPositive) {
+      return Math.abs(numerator / denominator);
     }
+    return numerator / denominator;
   }
 
+  /**
+   * Matches a range of transactions against the parts of a dispatch table, splitting itself in two until the
+   * range is small enough.
+   */
+  private static class TxnChunk
+      extends RecursiveTask<ChunkResult> {
+    private final RatioDispatchTable _table;
+    private final List<Txn> _txns;
+    private final int _start;
+    private final int _end;
+    private final AtomicBoolean _cancelled;
+
+    TxnChunk(final RatioDispatchTable table, final List<Txn> txns, final int start, final int end,
+             final AtomicBoolean cancelled) {
+      _table = table;
+      _txns = txns;
+      _start = start;
+      _end = end;
+      _cancelled = cancelled;
+    }
+
+    @Override
+    protected ChunkResult compute() {
+      if (_end - _start > CHUNK_SIZE) {
+        final int middle = (_start + _end) >>> 1;
+        final TxnChunk first = new TxnChunk(_table, _txns, _start, middle, _cancelled);
+        first.fork();
+        final ChunkResult second = new TxnChunk(_table, _txns, middle, _end, _cancelled).compute();
+        final ChunkResult result = first.join();
+        result.append(second);
+        return result;
+      }
+      final ChunkResult result = new ChunkResult();
+      final BitSet routed = new BitSet();
+      for (int index = _start; index < _end; index++) {
+        if (((index - _start) % CANCEL_CHECK_INTERVAL == 0) && _cancelled.get()) throw new CancellationException();
+        final Txn txn = _txns.get(index);
+        if (!_table.route(txn, routed)) continue;
+        for (int part = routed.nextSetBit(0); part >= 0; part = routed.nextSetBit(part + 1)) {
+          final TxnReportInfo info = _table.getPart(part).matchTxn(txn);
+          if (info != null) result.add(part, txn, info);
+        }
+      }
+      return result;
+    }
+  }
+
+  /**
+   * The matches found in a chunk of transactions, in the order they were found: the index of the ratio part
+   * in the dispatch table, the transaction and its value.
+   */
+  private static class ChunkResult {
+    private int[] _parts = new int[16];
+    private Txn[] _txns = new Txn[16];
+    private TxnReportInfo[] _infos = new TxnReportInfo[16];
+    private int _count = 0;
+
+    void add(final int part, final Txn txn, final TxnReportInfo info) {
+      if (_count == _parts.length) grow(_count * 2);
+      _parts[_count] = part;
+      _txns[_count] = txn;
+      _infos[_count] = info;
+      ++_count;
+    }
+
+    /**
+     * Add the matches of the chunk that follows this one.
+     * @param next The result of the next chunk.
+     */
+    void append(final ChunkResult next) {
+      if (_count + next._count > _parts.length) grow(_count + next._count);
+      System.arraycopy(next._parts, 0, _parts, _count, next._count);
+      System.arraycopy(next._txns, 0, _txns, _count, next._count);
+      System.arraycopy(next._infos, 0, _infos, _count, next._count);
+      _count += next._count;
+    }
+
+    void addTo(final RatioDispatchTable table, final IRatioReporting reporting) {
+      for (int index = 0; index < _count; index++) {
+        table.getPart(_parts[index]).addTxnValue(_txns[index], _infos[index], reporting);
+      }
+    }
+
+    /**
+     * Add the value of each match to the period its date falls in.
+     * @param table      The ratio parts that were matched.
+     * @param startDates The first day of each period, in order.
+     * @param endDates   The last day of each period.
+     * @param totals     [in,out] The totals of each part, by part index and period.
+     */
+    void addToPeriods(final RatioDispatchTable table, final int[] startDates, final int[] endDates,
+                      final long[][] totals) {
+      for (int index = 0; index < _count; index++) {
+        final int date = table.getPart(_parts[index]).getMatchDate(_txns[index]);
+        int period = Arrays.binarySearch(startDates, date);
+        if (period < 0) period = -period - 2;
+        if ((period >= 0) && (date <= endDates[period])) totals[_parts[index]][period] += _infos[index].convertedValue;
+      }
+    }
+
+    private void grow(final int capacity) {
+      _parts = Arrays.copyOf(_parts, capacity);
+      _txns = Arrays.copyOf(_txns, capacity);
+      _infos = Arrays.copyOf(_infos, capacity);
+    }
+  }
 }
@@ -0,0 +1,121 @@
+/*
+ * ************************************************************************
+ * Copyright (C) 2012-2015 Mennē Software Solutions, LLC
+ *
+ * This code is released as open source under the Apache 2.0 License:<br/>
+ * <a href="http://www.apache.org/licenses/LICENSE-2.0">
+ * http://www.apache.org/licenses/LICENSE-2.0</a><br />
+ * ************************************************************************
+ */
+
+package com.moneydance.modules.features.ratios;
+
+import com.infinitekind.moneydance.model.Account;
+import com.infinitekind.moneydance.model.Txn;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Routes each transaction to the transaction-based ratio parts that care about it. Every part
+ * gets an index, and each account in a required or disallowed list maps to the bit sets of the
+ * parts that require or disallow it.
+ * <p>
+ * A part only counts a transaction when exactly one of its two accounts is required and neither
+ * is disallowed, so the parts to visit are the required bits of the source account XOR those of
+ * the target account, less the disallowed bits of both. Everything else about the transaction
+ * (date, direction, tags) is still checked by {@link RatioPart#accumulateTxn(Txn, IRatioReporting)}.
+ *
+ * @author Kevin Menningen
+ */
+class RatioDispatchTable {
+  private final List<RatioPart> _parts = new ArrayList<RatioPart>();
+  private final Map<Account, BitSet> _required = new IdentityHashMap<Account, BitSet>();
+  private final Map<Account, BitSet> _disallowed = new IdentityHashMap<Account, BitSet>();
+  /** Working set of part indexes for one transaction, only used on the computing thread. */
+  private final BitSet _routed = new BitSet();
+
+  RatioDispatchTable(final List<RatioEntry> ratios) {
+    for (RatioEntry ratio : ratios) {
+      addPart(ratio.getNumerator());
+      addPart(ratio.getDenominator());
+    }
+  }
+
+  /**
+   * @param part The only ratio part to route transactions to.
+   */
+  RatioDispatchTable(final RatioPart part) {
+    addPart(part);
+  }
+
+  boolean isEmpty() {
+    return _parts.isEmpty();
+  }
+
+  int getPartCount() {
+    return _parts.size();
+  }
+
+  RatioPart getPart(final int index) {
+    return _parts.get(index);
+  }
+
+  /**
+   * Hand a transaction to each part that may count it.
+   * @param txn The transaction, a parent or a split.
+   */
+  void accumulateTxn(final Txn txn) {
+    if (!route(txn, _routed)) return;
+    for (int index = _routed.nextSetBit(0); index >= 0; index = _routed.nextSetBit(index + 1)) {
+      _parts.get(index).accumulateTxn(txn, null);
+    }
+  }
+
+  /**
+   * Find the parts that may count a transaction. This does not change the table, so several threads
+   * may route transactions at once, each with its own bit set.
+   * @param txn    The transaction, a parent or a split.
+   * @param routed Receives the indexes of the parts, see {@link #getPart(int)}.
+   * @return False if no part cares about the transaction, the bit set may not have been cleared.
+   */
+  boolean route(final Txn txn, final BitSet routed) {
+    if (txn.getOtherTxnCount() == 0) return false;
+    final Account sourceAccount = txn.getAccount();
+    final Account targetAccount = txn.getOtherTxn(0).getAccount();
+    final BitSet sourceRequired = _required.get(sourceAccount);
+    final BitSet targetRequired = _required.get(targetAccount);
+    if ((sourceRequired == null) && (targetRequired == null)) return false;
+
+    routed.clear();
+    if (sourceRequired != null) routed.or(sourceRequired);
+    if (targetRequired != null) routed.xor(targetRequired);
+    final BitSet sourceDisallowed = _disallowed.get(sourceAccount);
+    if (sourceDisallowed != null) routed.andNot(sourceDisallowed);
+    final BitSet targetDisallowed = _disallowed.get(targetAccount);
+    if (targetDisallowed != null) routed.andNot(targetDisallowed);
+    return !routed.isEmpty();
+  }
+
+  private void addPart(final RatioPart part) {
+    if (part.isAccountBalanceType()) return;
+    final int index = _parts.size();
+    _parts.add(part);
+    addAccounts(_required, part.getRequiredAccountList(), index);
+    addAccounts(_disallowed, part.getDisallowedAccountList(), index);
+  }
+
+  private static void addAccounts(final Map<Account, BitSet> table, final List<Account> accounts, final int index) {
+    for (Account account : accounts) {
+      BitSet parts = table.get(account);
+      if (parts == null) {
+        parts = new BitSet();
+        table.put(account, parts);
+      }
+      parts.set(index);
+    }
+  }
+}
@@ -13,8 +13,10 @@ package com.moneydance.modules.features.ratios;
 import com.infinitekind.moneydance.model.Account;
 import com.infinitekind.moneydance.model.AccountBook;
 import com.infinitekind.moneydance.model.DateRange;
+import com.infinitekind.moneydance.model.ParentTxn;
 import com.infinitekind.moneydance.model.Txn;
 import com.infinitekind.util.StreamTable;
+import com.infinitekind.util.StringEncodingException;
 import com.moneydance.apps.md.controller.AccountFilter;
 import com.moneydance.apps.md.view.gui.MoneydanceGUI;
 import com.moneydance.apps.md.view.gui.TagLogic;
@@ -88,6 +90,23 @@ public class RatioEntry {
     return settings.writeToString();
   }
 
+  /**
+   * Create a separate copy of this definition, with its own values and transaction totals. Reports compute on a
+   * copy so they never disturb the totals the home page is kept up to date with.
+   * @param mdGui The main user interface object.
+   * @return A new ratio entry with the same settings.
+   */
+  RatioEntry createCopy(final MoneydanceGUI mdGui) {
+    try {
+      final StreamTable settingTable = new StreamTable();
+      settingTable.readFrom(getSettingsString());
+      return new RatioEntry(settingTable, mdGui, null);
+    } catch (StringEncodingException e) {
+      Logger.log("Error copying ratio entry settings: " + e.getMessage());
+    }
+    return new RatioEntry();
+  }
+
   public String toString() {
     return (_name == null) ? N12ERatios.NOT_SPECIFIED : _name;
   }
@@ -220,6 +239,11 @@ public class RatioEntry {
     if ((reporting == null) || !isNumerator) _denominator.prepareForTxnProcessing(root, dateRange, _useTaxDate);
   }
 
+  void setConversions(final ConversionCache conversions) {
+    _numerator.setConversions(conversions);
+    _denominator.setConversions(conversions);
+  }
+
   void accumulateTxn(final Txn txn, final boolean isNumerator, final IRatioReporting reporting) {
     if ((reporting == null) || isNumerator) _numerator.accumulateTxn(txn, reporting);
     if ((reporting == null) || !isNumerator) _denominator.accumulateTxn(txn, reporting);
@@ -230,6 +254,21 @@ public class RatioEntry {
     if ((reporting == null) || !isNumerator) _denominator.endTxnProcessing();
   }
 
+  RatioPart getNumerator() { return _numerator; }
+  RatioPart getDenominator() { return _denominator; }
+
+  void removeTxnFamily(final ParentTxn parent) {
+    _numerator.removeTxnFamily(parent);
+    _denominator.removeTxnFamily(parent);
+  }
+
+  /**
+   * @return A number that changes every time the transaction totals of either part are started over.
+   */
+  int getTxnPassCount() {
+    return _numerator.getTxnPassCount() + _denominator.getTxnPassCount();
+  }
+
   public void setNumeratorMatchingLogic(TxnMatchLogic logic) {
     _numerator.setMatchingLogic(logic);
   }
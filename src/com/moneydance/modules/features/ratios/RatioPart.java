@@ -10,12 +10,12 @@
 
 package com.moneydance.modules.features.ratios;
 
+import com.infinitekind.moneydance.model.AbstractTxn;
 import com.infinitekind.moneydance.model.Account;
 import com.infinitekind.moneydance.model.AccountBook;
-import com.infinitekind.moneydance.model.AcctFilter;
 import com.infinitekind.moneydance.model.CurrencyType;
-import com.infinitekind.moneydance.model.CurrencyUtil;
 import com.infinitekind.moneydance.model.DateRange;
+import com.infinitekind.moneydance.model.ParentTxn;
 import com.infinitekind.moneydance.model.Txn;
 import com.infinitekind.util.StreamTable;
 import com.infinitekind.util.StringUtils;
@@ -28,8 +28,11 @@ import com.moneydance.apps.md.view.gui.reporttool.GraphReportUtil;
 import com.moneydance.modules.features.ratios.selector.RatioAccountSelector;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * One part of a ratio, either the numerator or the denominator.
@@ -45,13 +48,21 @@ class RatioPart {
   private TagLogic _tagLogic;
   private String _label;
   private long _txnValue;
+  /** What each parent transaction and its splits added to _txnValue, so a change can be backed out. */
+  private final Map<ParentTxn, Long> _familyValues = new IdentityHashMap<ParentTxn, Long>();
+  /** Number of times the transaction totals have been started over. */
+  private int _txnPassCount = 0;
   private TxnDateSearch _dateFilter;
-  private AcctFilter _requiredFilter;
-  private AcctFilter _disallowedFilter;
+  private boolean _useTaxDate;
+  /** Identity sets of the required and disallowed accounts, built for each computation. */
+  private final Set<Account> _requiredSet = Collections.newSetFromMap(new IdentityHashMap<Account, Boolean>());
+  private final Set<Account> _disallowedSet = Collections.newSetFromMap(new IdentityHashMap<Account, Boolean>());
   private TxnTagsFilter _tagFilter;
   private double _value;
   private TxnMatchLogic _txnMatchLogic = TxnMatchLogic.DEFAULT;
   private CurrencyType _baseCurrency;
+  /** The currency conversions of the computation run, set by {@link #setConversions(ConversionCache)}. */
+  private ConversionCache _conversions;
 
   RatioPart() {
     _label = N12ERatios.EMPTY;
@@ -199,28 +210,17 @@ class RatioPart {
   }
 
   void prepareForTxnProcessing(final AccountBook root, final DateRange dateRange, final boolean useTaxDate) {
+    ++_txnPassCount;
     if (isAccountBalanceType()) return; // nothing to do
     _baseCurrency = root.getCurrencies().getBaseType();
     _txnValue = 0;
+    _familyValues.clear();
     _dateFilter = new TxnDateSearch(dateRange.getStartDateInt(), dateRange.getEndDateInt(), useTaxDate);
-    _requiredFilter = new AcctFilter() {
-      public boolean matches(Account account) {
-        return _requiredAccounts.contains(account);
-      }
-
-      public String format(Account account) {
-        return account.getFullAccountName();
-      }
-    };
-    _disallowedFilter = new AcctFilter() {
-      public boolean matches(Account account) {
-        return _disallowedAccounts.contains(account);
-      }
-
-      public String format(Account account) {
-        return account.getFullAccountName();
-      }
-    };
+    _useTaxDate = useTaxDate;
+    _requiredSet.clear();
+    _requiredSet.addAll(_requiredAccounts);
+    _disallowedSet.clear();
+    _disallowedSet.addAll(_disallowedAccounts);
     if (!_tags.isEmpty()) {
       _tagFilter = new TxnTagsFilter(_tags, _tagLogic);
     } else {
@@ -229,64 +229,127 @@ class RatioPart {
   }
 
   /**
-   * The key algorithm for transaction-based computations. This method selects which transactions are
-   * included or not, and the sign of the value.
-   * 
+   * @param conversions The currency conversions of the current computation run.
+   */
+  void setConversions(final ConversionCache conversions) {
+    _conversions = conversions;
+  }
+
+  /**
+   * Add a transaction to the numerator or denominator if it is included.
+   *
    * @param txn The transaction to test for inclusion in the numerator or denominator.
    * @param reporting The reporting callback interface to add the transaction to.
    */
   void accumulateTxn(final Txn txn, final IRatioReporting reporting) {
-    if (isAccountBalanceType()) return; // nothing to do
-    if (!_dateFilter.matches(txn)) return; // does not match the date range
+    final TxnReportInfo info = matchTxn(txn);
+    if (info != null) addTxnValue(txn, info, reporting);
+  }
+
+  /**
+   * The key algorithm for transaction-based computations. This method selects which transactions are
+   * included or not, and the sign of the value. It only reads settings fixed by
+   * {@link #prepareForTxnProcessing(AccountBook, DateRange, boolean)}, so several threads may call it at once.
+   *
+   * @param txn The transaction to test for inclusion in the numerator or denominator.
+   * @return The converted value and matching sides of the transaction, or null if it is not included.
+   */
+  TxnReportInfo matchTxn(final Txn txn) {
+    if (isAccountBalanceType()) return null; // nothing to do
+    if (!_dateFilter.matches(txn)) return null; // does not match the date range
     // There is an assumption here that an account can't be simultaneously required and disallowed.
     final Account sourceAccount = txn.getAccount();
     final Account targetAccount = txn.getOtherTxn(0).getAccount();
     // If a disallowed account is on either side, then the txn is disqualified.
-    if (_disallowedFilter.matches(sourceAccount) || _disallowedFilter.matches(targetAccount)) {
+    if (_disallowedSet.contains(sourceAccount) || _disallowedSet.contains(targetAccount)) {
       // do nothing, can't use this transaction
-      return;
+      return null;
     }
     // we do not allow security accounts either
     if ((sourceAccount.getAccountType() == Account.AccountType.SECURITY)
         || (targetAccount.getAccountType() == Account.AccountType.SECURITY)) {
       // do nothing, can't use this transaction
-      return;
+      return null;
     }
-    final boolean sourceRequired = _requiredFilter.matches(sourceAccount);
-    final boolean targetRequired = _requiredFilter.matches(targetAccount);
+    final boolean sourceRequired = _requiredSet.contains(sourceAccount);
+    final boolean targetRequired = _requiredSet.contains(targetAccount);
     // if neither match, both accounts are Allowed and we ignore the transaction
     // if both match, both accounts are Required and it's an 'internal' transfer, skip
-    if (!(sourceRequired ^ targetRequired)) return;
+    if (!(sourceRequired ^ targetRequired)) return null;
     // At this point one account is Required, the other is Allowed
     // Both sides will be visited by the enumeration, we just so happen to pick the target account
     // to get the sign right.
     if (targetRequired && txnDirectionMatches(txn, targetAccount.balanceIsNegated())) {
       // we have a candidate transaction, now check both sides for a tag match if applicable
-      if ((_tagFilter != null) && !_tagFilter.matches(txn)) return;
+      if ((_tagFilter != null) && !_tagFilter.matches(txn)) return null;
       // we have a matching transaction
       final int txnDate = txn.getDateInt();
       final long rawValue = txn.getValue();
       // transactions are specified in the currency of the source account, not the target account
-      final long txnValue = sourceAccount.getCurrencyType().adjustValueForSplitsInt(txnDate, rawValue);
+      final long txnValue = _conversions.adjustValueForSplits(sourceAccount.getCurrencyType(), txnDate, rawValue);
       // convert to the base currency for all calculations
       final long convertedValue;
       // we will flip the transaction if the category is the source and the non-category is the
       // destination
       if (RatioCompute.shouldFlipTxn(sourceAccount, targetAccount, sourceRequired, targetRequired)) {
-        convertedValue = -CurrencyUtil.convertValue(txnValue, sourceAccount.getCurrencyType(),
+        convertedValue = -_conversions.convertValue(txnValue, sourceAccount.getCurrencyType(),
                                                     _baseCurrency, txnDate);
       } else {
-        convertedValue = CurrencyUtil.convertValue(txnValue, sourceAccount.getCurrencyType(),
-                                                    _baseCurrency, txnDate);
-      }
-      _txnValue += convertedValue;
-      if (reporting != null) {
-        reporting.addTxn(txn, new TxnReportInfo(convertedValue, sourceRequired, targetRequired));
+        convertedValue = _conversions.convertValue(txnValue, sourceAccount.getCurrencyType(),
+                                                   _baseCurrency, txnDate);
       }
+      return new TxnReportInfo(convertedValue, sourceRequired, targetRequired);
+    }
+    return null;
+  }
+
+  /**
+   * @param txn A transaction included by {@link #matchTxn(Txn)}.
+   * @return The date the date range was matched on, the tax date if the ratio uses tax dates.
+   */
+  int getMatchDate(final Txn txn) {
+    return _useTaxDate ? txn.getTaxDateInt() : txn.getDateInt();
+  }
+
+  /**
+   * Add the value of an included transaction to the running total.
+   *
+   * @param txn The transaction.
+   * @param info The result of {@link #matchTxn(Txn)} for the transaction.
+   * @param reporting The reporting callback interface to add the transaction to.
+   */
+  void addTxnValue(final Txn txn, final TxnReportInfo info, final IRatioReporting reporting) {
+    final long convertedValue = info.convertedValue;
+    _txnValue += convertedValue;
+    if (reporting != null) {
+      reporting.addTxn(txn, info);
+    } else if (txn instanceof AbstractTxn) {
+      // remember the value by parent, since a change to any split can change the whole family
+      final ParentTxn parent = ((AbstractTxn) txn).getParentTxn();
+      final Long familyValue = _familyValues.get(parent);
+      _familyValues.put(parent, Long.valueOf((familyValue == null) ? convertedValue
+                                                                    : familyValue.longValue() + convertedValue));
     }
   }
 
-  private boolean isAccountBalanceType() {
+  /**
+   * Back out of the running total whatever a parent transaction and its splits added to it, the
+   * reverse of {@link #accumulateTxn(Txn, IRatioReporting)}. The transactions may have been changed
+   * or removed since, so the values recorded when they were accumulated are used.
+   *
+   * @param parent The parent transaction of the family to remove.
+   */
+  void removeTxnFamily(final ParentTxn parent) {
+    if (isAccountBalanceType()) return; // nothing to do
+    final Long familyValue = _familyValues.remove(parent);
+    if (familyValue != null) _txnValue -= familyValue.longValue();
+  }
+
+  int getTxnPassCount() {
+    return _txnPassCount;
+  }
+
+  boolean isAccountBalanceType() {
     return RatiosUtil.isAccountBalanceType(_txnMatchLogic);
   }
 
@@ -21,6 +21,7 @@ import com.infinitekind.moneydance.model.Txn;
 import com.infinitekind.tiksync.SyncRecord;
 import com.infinitekind.util.StringUtils;
 import com.moneydance.apps.md.controller.UserPreferences;
+import com.moneydance.apps.md.controller.Util;
 import com.moneydance.apps.md.view.gui.reporttool.RecordRow;
 import com.moneydance.apps.md.view.gui.reporttool.Report;
 import com.moneydance.apps.md.view.gui.reporttool.ReportGenerator;
@@ -28,24 +29,38 @@ import com.moneydance.apps.md.view.gui.reporttool.ReportGenerator;
 import javax.swing.JPanel;
 import java.awt.FontMetrics;
 import java.awt.Graphics2D;
+import java.util.Collections;
 import java.util.List;
 
 /**
- * Build a report showing exactly how the given percentage / ratio was arrived at.
+ * Build a report showing exactly how the given percentage / ratio was arrived at. The trend version of the
+ * report shows the numerator, denominator and ratio for each month instead, computed with
+ * {@link RatioCompute#computeRatioSeries(List, List)}.
  *
  * @author Kevin Menningen
  */
 class RatioReportGenerator extends ReportGenerator {
   private static final int NUM_COLUMNS = 5;
+  private static final int NUM_TREND_COLUMNS = 4;
+  /** A trend covers at least this many months, ending with the month the date range ends in. */
+  private static final int MIN_TREND_MONTHS = 12;
   private final RatiosExtensionModel _mainModel;
   private final RatioEntry _ratio;
   private final Graphics2D _graphics;
   private final RatioCompute _computer;
+  private volatile boolean _isTrend;
   private IRatioReporting _reporting;
 
   public RatioReportGenerator(final RatiosExtensionModel mainModel, final RatioEntry ratio, final Graphics2D graphics) {
+    this(mainModel, ratio, graphics, false);
+  }
+
+  public RatioReportGenerator(final RatiosExtensionModel mainModel, final RatioEntry ratio, final Graphics2D graphics,
+                              final boolean isTrend) {
+    _isTrend = isTrend;
     _mainModel = mainModel;
-    _ratio = ratio;
+    // the report computes on its own copy, the home page keeps running totals on the original
+    _ratio = ratio.createCopy(mainModel.getGUI());
     _graphics = graphics;
     setGUI(_mainModel.getGUI());
 
@@ -60,6 +75,22 @@ class RatioReportGenerator extends ReportGenerator {
     return getReportName();
   }
 
+  boolean isTrend() {
+    return _isTrend;
+  }
+
+  /**
+   * @param isTrend True to show the ratio for each month on the next {@link #generate()}, false to show how
+   *                the ratio for the date range was arrived at.
+   */
+  void setTrend(final boolean isTrend) {
+    _isTrend = isTrend;
+  }
+
+  String getTrendLabel() {
+    return _mainModel.getResources().getString(L10NRatios.TREND_LABEL);
+  }
+
   protected JPanel getConfigPanel(final boolean reset) {
     // do nothing - no configuration is available for this report
     return null;
@@ -71,6 +102,7 @@ class RatioReportGenerator extends ReportGenerator {
 
   public Object generate() {
     loadSettingsFromPreferences();
+    if (_isTrend) return generateTrend();
     boolean fullName = mdGUI.getPreferences().getBoolSetting(UserPreferences.SHOW_FULL_ACCT_PATH, true);
     Report report = new Report(new String[] { 
         mdGUI.getStr("table_column_account"),
@@ -101,7 +133,8 @@ class RatioReportGenerator extends ReportGenerator {
       boolean useStartBalance = _ratio.getNumeratorBeginningBalance();
       addBalanceRows(baseCurrency, _ratio.getNumeratorRequiredAccountList(), dateRange, useDailyAverage, useStartBalance, true);
     } else if (_ratio.isNumeratorConstant()) {
-      addConstantRow(report, _ratio.getNumeratorConstant(), _ratio.getNumeratorLabel(), 0.0, _ratio.getNumeratorDaysInPeriod(), dateRange, widths);
+      _ratio.setNumeratorValue(addConstantRow(report, _ratio.getNumeratorConstant(), _ratio.getNumeratorLabel(), 0.0,
+                                              _ratio.getNumeratorDaysInPeriod(), dateRange, widths));
     } else {
       addSubtitleRow(report, mdGUI.getStr("report_transactions"));
       addTransactionRows(dateRange, true);
@@ -118,7 +151,8 @@ class RatioReportGenerator extends ReportGenerator {
       boolean useStartBalance = _ratio.getDenominatorBeginningBalance();
       addBalanceRows(baseCurrency, _ratio.getDenominatorRequiredAccountList(), dateRange, useDailyAverage, useStartBalance, false);
     } else if (_ratio.isDenominatorConstant()) {
-      addConstantRow(report,_ratio.getDenominatorConstant(), _ratio.getDenominatorLabel(), 1.0, _ratio.getDenominatorDaysInPeriod(), dateRange, widths);
+      _ratio.setDenominatorValue(addConstantRow(report, _ratio.getDenominatorConstant(), _ratio.getDenominatorLabel(), 1.0,
+                                                _ratio.getDenominatorDaysInPeriod(), dateRange, widths));
     } else {
       addSubtitleRow(report, mdGUI.getStr("report_transactions"));
       addTransactionRows(dateRange, false);
@@ -142,7 +176,88 @@ class RatioReportGenerator extends ReportGenerator {
     return report;
   }
 
-  private void addConstantRow(Report report, boolean isConstant, String constant, double defaultConstant, boolean isDaysInPeriod, DateRange dateRange, int[] widths) {
+  private Object generateTrend() {
+    Report report = new Report(new String[] {
+        mdGUI.getStr("table_column_date"),
+        _mainModel.getResources().getString(L10NRatios.NUMERATOR),
+        _mainModel.getResources().getString(L10NRatios.DENOMINATOR),
+        _mainModel.getResources().getString(L10NRatios.REPORT_LABEL),
+    } );
+    report.setTitle(getReportName());
+    final DateRange dateRange = _mainModel.getSettings().getDateRange();
+    final List<DateRange> periods = getTrendPeriods(dateRange);
+    report.setSubTitle(new DateRange(periods.get(0).getStartDateInt(), dateRange.getEndDateInt()).format(_dateFormat));
+
+    final FontMetrics fm = _graphics.getFontMetrics();
+    int widths[] = new int[NUM_TREND_COLUMNS];
+    for (int column = 0; column < NUM_TREND_COLUMNS; column++) {
+      widths[column] = measureStringWidth(report.getColumnName(column), _graphics, fm);
+    }
+    final CurrencyType baseCurrency = book.getCurrencies().getBaseType();
+    final String nanString = _mainModel.getResources().getString(L10NRatios.NAN);
+    // one pass through the transactions for all of the months
+    final RatioSeries series = _computer.computeRatioSeries(Collections.singletonList(_ratio), periods);
+
+    report.addRow(RecordRow.BLANK_ROW);
+    for (int period = 0; period < series.getPeriodCount(); period++) {
+      final String[] labels = new String[NUM_TREND_COLUMNS];
+      final byte[] align = new byte[NUM_TREND_COLUMNS];
+      final byte[] color = new byte[NUM_TREND_COLUMNS];
+      final byte[] style = new byte[NUM_TREND_COLUMNS];
+      final byte[] totals = new byte[NUM_TREND_COLUMNS];
+      RecordRow row = new RecordRow(labels, align, color, style, totals);
+
+      // Date
+      labels[0] = series.getPeriod(period).format(_dateFormat);
+      style[0] = RecordRow.STYLE_PLAIN;
+      align[0] = RecordRow.ALIGN_LEFT;
+
+      // Numerator
+      final double numerator = series.getNumeratorValue(0, period);
+      labels[1] = formatRatioPartValue(baseCurrency, numerator, dec, nanString, _ratio.isNumeratorConstant());
+      color[1] = (numerator < 0) ? RecordRow.COLOR_RED : RecordRow.COLOR_BLACK;
+
+      // Denominator
+      final double denominator = series.getDenominatorValue(0, period);
+      labels[2] = formatRatioPartValue(baseCurrency, denominator, dec, nanString, _ratio.isDenominatorConstant());
+      color[2] = (denominator < 0) ? RecordRow.COLOR_RED : RecordRow.COLOR_BLACK;
+
+      // Ratio
+      final double value = series.getValue(0, period);
+      labels[3] = RatiosUtil.formatRatioValue(value, dec, _mainModel.getDecimalPlaces(), nanString, _ratio.getShowPercent());
+      style[3] = RecordRow.STYLE_BOLD;
+      color[3] = (!Double.isNaN(value) && !Double.isInfinite(value) && (value < 0)) ? RecordRow.COLOR_RED : RecordRow.COLOR_BLACK;
+
+      for (int column = 0; column < NUM_TREND_COLUMNS; column++) {
+        if (column > 0) align[column] = RecordRow.ALIGN_RIGHT;
+        if (column < 3) style[column] = RecordRow.STYLE_PLAIN;
+        widths[column] = Math.max(widths[column], measureStringWidth(labels[column], _graphics, fm));
+      }
+      report.addRow(row);
+    }
+
+    final String notes = _ratio.getNotes();
+    if (!StringUtils.isBlank(notes)) {
+      report.addRow(RecordRow.BLANK_ROW);
+      report.addRow(RecordRow.BLANK_ROW);
+      addNotes(report, notes, widths);
+    }
+    adjustColumnWeights(widths); // give the widest column extra space
+    for (int column = 0; column < NUM_TREND_COLUMNS; column++) report.setColumnWeight(column, widths[column]);
+    return report;
+  }
+
+  /**
+   * The months of the date range, or if it is shorter, the months up to and including the one the date range
+   * ends in.
+   */
+  private static List<DateRange> getTrendPeriods(final DateRange dateRange) {
+    final int endDate = dateRange.getEndDateInt();
+    final int earliestStart = Util.incrementDate(RatioSeries.getMonthStart(endDate), 0, 1 - MIN_TREND_MONTHS, 0);
+    return RatioSeries.getMonthlyPeriods(Math.min(dateRange.getStartDateInt(), earliestStart), endDate);
+  }
+
+  private double addConstantRow(Report report, boolean isConstant, String constant, double defaultConstant, boolean isDaysInPeriod, DateRange dateRange, int[] widths) {
     final String[] labels = new String[NUM_COLUMNS];
     final byte[] align = new byte[NUM_COLUMNS];
     final byte[] color = new byte[NUM_COLUMNS];
@@ -196,6 +311,7 @@ class RatioReportGenerator extends ReportGenerator {
     color[4] = (value < 0.0) ? RecordRow.COLOR_RED : RecordRow.COLOR_BLACK;
 
     report.addRow(row);
+    return value;
   }
 
   private void addSubtotalRow(Report report, String typeKey, String userLabel, CurrencyType baseCurrency, double value, boolean isConstant,
@@ -245,9 +361,10 @@ class RatioReportGenerator extends ReportGenerator {
 
   private void addNotes(Report report, String notes, int[] widths) {
     // find the widest column and use that one
+    final int numColumns = widths.length;
     int columnIndex = -1;
     int maxWidth = -1;
-    for (int index = 0; index < NUM_COLUMNS; index++) {
+    for (int index = 0; index < numColumns; index++) {
       if (widths[index] > maxWidth) {
         maxWidth = widths[index];
         columnIndex = index;
@@ -256,11 +373,11 @@ class RatioReportGenerator extends ReportGenerator {
 
     String[] noteLines = notes.split(N12ERatios.LINEEND_REGEX);
     for (String noteLine : noteLines) {
-      final String[] labels = new String[NUM_COLUMNS];
-      final byte[] align = new byte[NUM_COLUMNS];
-      final byte[] color = new byte[NUM_COLUMNS];
-      final byte[] style = new byte[NUM_COLUMNS];
-      final byte[] totals = new byte[NUM_COLUMNS];
+      final String[] labels = new String[numColumns];
+      final byte[] align = new byte[numColumns];
+      final byte[] color = new byte[numColumns];
+      final byte[] style = new byte[numColumns];
+      final byte[] totals = new byte[numColumns];
       labels[columnIndex] = noteLine;
       style[columnIndex] = RecordRow.STYLE_PLAIN;
       align[columnIndex] = RecordRow.ALIGN_LEFT;
@@ -589,10 +706,11 @@ class RatioReportGenerator extends ReportGenerator {
 
   private String getReportName() {
     final String itemName = _ratio.getName();
+    final String titleKey = _isTrend ? L10NRatios.TREND_REPORT_TITLE : L10NRatios.REPORT_TITLE;
     if (StringUtils.isBlank(itemName)) {
-      return _mainModel.getResources().getString(L10NRatios.REPORT_TITLE);
+      return _mainModel.getResources().getString(titleKey);
     }
-    return RatiosUtil.getLabelText(_mainModel.getResources(), L10NRatios.REPORT_TITLE) + itemName;
+    return RatiosUtil.getLabelText(_mainModel.getResources(), titleKey) + itemName;
   }
 
   /**
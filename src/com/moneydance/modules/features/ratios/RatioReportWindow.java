@@ -50,10 +50,13 @@ public class RatioReportWindow
   private JButton saveButton;
   private JButton copyButton;
   private JCheckBox _orientationBox;
+  /** Switches between the details and the monthly trend, only shown for a ratio report. */
+  private JCheckBox _trendBox;
   private ReportViewer _reportViewer;
   private JPanel _mainDetailView;
 
   // runs tasks on a separate thread
+  private final ExecutorService _executor = Executors.newFixedThreadPool(1);
   private FutureTask _currentTask;
 
   public RatioReportWindow(MoneydanceGUI mdGUI, Frame parent, ReportGenerator generator) {
@@ -77,11 +80,14 @@ public class RatioReportWindow
 
     // transfer the initial setting to the viewer too to keep _layoutButton in sync
     _reportViewer.setLandscape(generator.isLandscape());
-    setCalculationError(mdGUI.getStr("generating"));
+    generateReport();
+  }
 
-    setCurrentTask(new GenerateReportTask(generator));
-    ExecutorService executor = Executors.newFixedThreadPool(1);
-    executor.execute(_currentTask);
+  private void generateReport() {
+    setCalculationError(mdGUI.getStr("generating"));
+    final FutureTask task = new GenerateReportTask(_generator);
+    setCurrentTask(task);
+    _executor.execute(task);
   }
 
   private void addListeners() {
@@ -97,6 +103,14 @@ public class RatioReportWindow
         _generator.setLandscape(isLandscape);
       }
     });
+    if (_trendBox != null) {
+      _trendBox.addItemListener(new ItemListener() {
+        public void itemStateChanged(ItemEvent event) {
+          ((RatioReportGenerator) _generator).setTrend(event.getStateChange() == ItemEvent.SELECTED);
+          generateReport();
+        }
+      });
+    }
   }
 
   private void cleanUpTask() {
@@ -113,6 +127,11 @@ public class RatioReportWindow
     _reportViewer = new ReportViewer(mdGUI);
     _orientationBox = new JCheckBox(mdGUI.getStr("report_landscape"), isLandscape);
     _orientationBox.setOpaque(false);
+    if (_generator instanceof RatioReportGenerator) {
+      final RatioReportGenerator ratioGenerator = (RatioReportGenerator) _generator;
+      _trendBox = new JCheckBox(ratioGenerator.getTrendLabel(), ratioGenerator.isTrend());
+      _trendBox.setOpaque(false);
+    }
     _nothingLabel = new JLabel(mdGUI.getStr("generating"));
     _nothingLabel.setHorizontalAlignment(JLabel.CENTER);
     _nothingLabel.setVerticalAlignment(JLabel.CENTER);
@@ -127,6 +146,7 @@ public class RatioReportWindow
     bp.add(Box.createHorizontalStrut(UiUtil.DLG_HGAP), GridC.getc(x++,0)); // memorize button
     bp.add(copyButton, GridC.getc(x++,0));
     bp.add(_orientationBox, GridC.getc(x++,0));
+    if (_trendBox != null) bp.add(_trendBox, GridC.getc(x++,0));
     bp.add(Box.createHorizontalStrut(UiUtil.DLG_HGAP), GridC.getc(x++,0).wx(1).fillx());
     bp.add(doneButton, GridC.getc(x,0));
     bp.setBorder(new EmptyBorder(UiUtil.DLG_VGAP,UiUtil.DLG_HGAP,UiUtil.DLG_VGAP,UiUtil.DLG_HGAP));
@@ -147,6 +167,8 @@ public class RatioReportWindow
   public void goneAway()
   {
     super.goneAway();
+    setCurrentTask(null);
+    _executor.shutdown();
     if (_generator != null) {
       _generator.goneAway();
     }
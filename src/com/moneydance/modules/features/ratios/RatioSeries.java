@@ -0,0 +1,75 @@
+/*
+ * ************************************************************************
+ * Copyright (C) 2012-2015 Mennē Software Solutions, LLC
+ *
+ * This code is released as open source under the Apache 2.0 License:<br/>
+ * <a href="http://www.apache.org/licenses/LICENSE-2.0">
+ * http://www.apache.org/licenses/LICENSE-2.0</a><br />
+ * ************************************************************************
+ */
+
+package com.moneydance.modules.features.ratios;
+
+import com.infinitekind.moneydance.model.DateRange;
+import com.moneydance.apps.md.controller.Util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The values of a list of ratios over a series of periods, computed by
+ * {@link RatioCompute#computeRatioSeries(List, List)}. Values are indexed by the position of the ratio in the
+ * list and the position of the period.
+ *
+ * @author Kevin Menningen
+ */
+class RatioSeries {
+  private final List<DateRange> _periods;
+  private final double[][] _numerators;
+  private final double[][] _denominators;
+  private final double[][] _values;
+
+  RatioSeries(final List<DateRange> periods, final int ratioCount) {
+    _periods = Collections.unmodifiableList(new ArrayList<DateRange>(periods));
+    _numerators = new double[ratioCount][periods.size()];
+    _denominators = new double[ratioCount][periods.size()];
+    _values = new double[ratioCount][periods.size()];
+  }
+
+  /**
+   * Split a date range into calendar months. The first and last periods are partial months if the date
+   * range does not start at the beginning or end at the end of a month.
+   * @param startDate The first day of the first period.
+   * @param endDate   The last day of the last period.
+   * @return The periods, in order.
+   */
+  static List<DateRange> getMonthlyPeriods(final int startDate, final int endDate) {
+    final List<DateRange> periods = new ArrayList<DateRange>();
+    int periodStart = startDate;
+    while (periodStart <= endDate) {
+      final int nextMonth = Util.incrementDate(getMonthStart(periodStart), 0, 1, 0);
+      final int periodEnd = Math.min(endDate, Util.incrementDate(nextMonth, 0, 0, -1));
+      periods.add(new DateRange(periodStart, periodEnd));
+      periodStart = nextMonth;
+    }
+    return periods;
+  }
+
+  static int getMonthStart(final int date) {
+    return (date / 100) * 100 + 1;
+  }
+
+  int getRatioCount() { return _values.length; }
+  int getPeriodCount() { return _periods.size(); }
+  DateRange getPeriod(final int period) { return _periods.get(period); }
+  List<DateRange> getPeriods() { return _periods; }
+
+  double getNumeratorValue(final int ratio, final int period) { return _numerators[ratio][period]; }
+  double getDenominatorValue(final int ratio, final int period) { return _denominators[ratio][period]; }
+  double getValue(final int ratio, final int period) { return _values[ratio][period]; }
+
+  void setNumeratorValue(final int ratio, final int period, final double value) { _numerators[ratio][period] = value; }
+  void setDenominatorValue(final int ratio, final int period, final double value) { _denominators[ratio][period] = value; }
+  void setValue(final int ratio, final int period, final double value) { _values[ratio][period] = value; }
+}
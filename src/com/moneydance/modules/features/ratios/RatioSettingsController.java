@@ -11,8 +11,6 @@
 package com.moneydance.modules.features.ratios;
 
 import com.infinitekind.moneydance.model.AccountBook;
-import com.infinitekind.util.StreamTable;
-import com.infinitekind.util.StringEncodingException;
 
 import javax.swing.table.TableModel;
 
@@ -89,15 +87,7 @@ public class RatioSettingsController
 
   public int copyItem(int rowIndex) {
     final RatioEntry source = _settingsModel.getTableModel().getRatioEntry(rowIndex);
-    StreamTable settingTable = new StreamTable();
-    RatioEntry target = null;
-    try {
-      settingTable.readFrom(source.getSettingsString());
-      target = new RatioEntry(settingTable, _extensionModel.getGUI(), null);
-    } catch (StringEncodingException e) {
-      Logger.log("Error copying ratio entry settings: " + e.getMessage());
-      target = new RatioEntry();
-    }
+    final RatioEntry target = source.createCopy(_extensionModel.getGUI());
     target.setName(getCopyName(source.getName()));
     int newIndex = rowIndex + 1;
     _settingsModel.getTableModel().add(newIndex, target, true);
@@ -79,8 +79,10 @@ class RatioView extends JPanel {
         setCursor(Cursor.getDefaultCursor());
       }
       public void mouseClicked(MouseEvent event) {
-        // it doesn't matter if it's the right or left button, or if double clicked
-        RatioReportGenerator generator = new RatioReportGenerator(_mainModel, _ratio, (Graphics2D)getGraphics());
+        // it doesn't matter if it's the right or left button, or if double clicked. Shift starts with the
+        // monthly trend, which the report window can also switch to.
+        RatioReportGenerator generator = new RatioReportGenerator(_mainModel, _ratio, (Graphics2D)getGraphics(),
+                                                                  event.isShiftDown());
         RatioReportWindow reportWindow = new RatioReportWindow(_mainModel.getGUI(), AwtUtil.getFrame(RatioView.this),
                                                                generator);
         reportWindow.setVisible(true);
@@ -10,10 +10,14 @@
 
 package com.moneydance.modules.features.ratios;
 
+import com.infinitekind.moneydance.model.AbstractTxn;
 import com.infinitekind.moneydance.model.Account;
 import com.infinitekind.moneydance.model.AccountBook;
 import com.infinitekind.moneydance.model.AccountListener;
+import com.infinitekind.moneydance.model.CurrencyListener;
+import com.infinitekind.moneydance.model.CurrencyTable;
 import com.infinitekind.moneydance.model.DateRange;
+import com.infinitekind.moneydance.model.TransactionListener;
 import com.moneydance.apps.md.controller.UserPreferences;
 import com.moneydance.apps.md.view.gui.MoneydanceGUI;
 import com.moneydance.util.BasePropertyChangeReporter;
@@ -26,8 +30,6 @@ import java.beans.PropertyChangeSupport;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
@@ -42,18 +44,18 @@ class RatiosExtensionModel
   private AccountBook _rootAccount = null;
   private UserPreferences _preferences = null;
   private final AccountListener _accountListener = new RatiosAccountListener();
+  private final TransactionListener _txnListener = new RatiosTransactionListener();
+  private final CurrencyListener _currencyListener = new RatiosCurrencyListener();
 
   private final List<RatioEntry> _ratios = new ArrayList<RatioEntry>();
   private final Object _ratioSync = new Object();
   private RatioSettings _settings = null;
 
-  private RatioCompute _ratioCompute = null;
+  private volatile RatioCompute _ratioCompute = null;
 
-  // runs tasks on a separate thread
-  private final Object _taskSync = new Object();
-  private final ExecutorService _executor = Executors.newFixedThreadPool(1);
-  private final AtomicBoolean _cancelTasks = new AtomicBoolean(false);
-  private Runnable _currentTask = null;
+  // runs recalculations on a separate thread
+  private final RecalculateScheduler _scheduler =
+    new RecalculateScheduler(new RecalculateComputation(), N12ERatios.RATIO_THREAD_NAME);
 
   void setResources(final ResourceProvider resources) {
     _resources = resources;
@@ -75,11 +77,7 @@ class RatiosExtensionModel
   }
 
   void cleanUp() {
-    try {
-      _executor.shutdownNow();
-    } catch (SecurityException ignore) {
-      // do nothing
-    }
+    _scheduler.shutdown();
   }
 
   /**
@@ -94,14 +92,14 @@ class RatiosExtensionModel
     addAccountListener();
     if ((rootAccount != null) && !RatiosUtil.areEqual(oldRoot, rootAccount)) {
       // setup for a new file - stop any current update
-      cancelCurrentTask();
+      _scheduler.cancel();
       createSettings();
       loadRatioList();
       _ratioCompute = new RatioCompute(rootAccount, getGUI().getPreferences().getDecimalChar());
       recalculate();
     } else if (rootAccount == null) {
       // clear out the data
-      setCurrentTask(null, true);
+      _scheduler.cancel();
       _settings = null;
       _rootAccount = null;
     }
@@ -132,12 +130,16 @@ class RatiosExtensionModel
   private void addAccountListener() {
     if (_rootAccount != null) {
       _rootAccount.addAccountListener(_accountListener);
+      _rootAccount.getTransactionSet().addTransactionListener(_txnListener);
+      _rootAccount.getCurrencies().addCurrencyListener(_currencyListener);
     }
   }
 
   private void removeAccountListener() {
     if (_rootAccount != null) {
       _rootAccount.removeAccountListener(_accountListener);
+      _rootAccount.getTransactionSet().removeTransactionListener(_txnListener);
+      _rootAccount.getCurrencies().removeCurrencyListener(_currencyListener);
     }
   }
 
@@ -243,12 +245,18 @@ class RatiosExtensionModel
     _eventNotify.firePropertyChange(N12ERatios.DATE_RANGE_OPTION, oldOption, N12ERatios.CUSTOM_DATE_KEY);
   }
 
+  /**
+   * Recalculate as soon as possible, for a change the user made. A computation in progress is canceled.
+   */
   void recalculate() {
-    if (_ratioCompute != null) {
-      setCurrentTask(new BackgroundRecalculateTask(), true);
-      final Runnable computeTask = getCurrentTask();
-      if (computeTask != null) _executor.submit(computeTask);
-    }
+    if (_ratioCompute != null) _scheduler.request(true);
+  }
+
+  /**
+   * Recalculate after data changes, collected with other changes that come in shortly after.
+   */
+  private void recalculateLater() {
+    if (_ratioCompute != null) _scheduler.request(false);
   }
 
   int getRatioCount() {
@@ -274,45 +282,6 @@ class RatiosExtensionModel
     return _settings.getDecimalPlaces();
   }
 
-  void cancelCurrentTask() {
-    _cancelTasks.set(true);
-  }
-
-  private void waitForCurrentTaskToFinish() {
-    try {
-      while (getCurrentTask() != null) {
-        _taskSync.wait(250L);
-      }
-    } catch (InterruptedException ignore) {
-      // do nothing
-    }
-  }
-
-  private Runnable getCurrentTask() {
-    synchronized (_taskSync) {
-      return _currentTask;
-    }
-  }
-
-  private void currentTaskDone() {
-    synchronized (_taskSync) {
-      _taskSync.notifyAll();
-      _currentTask = null;
-    }
-  }
-
-  private void setCurrentTask(final Runnable task, final boolean cancelCurrentTask) {
-    if (cancelCurrentTask) {
-      cancelCurrentTask();
-    } else {
-      waitForCurrentTaskToFinish();
-    }
-    synchronized (_taskSync) {
-      _currentTask = task;
-      _cancelTasks.set(false);
-    }
-  }
-
   private static void firePropertyChange(final PropertyChangeSupport notifier, final String name,
                                          final Object oldValue, final Object newValue) {
     // notify on the event data thread (Swing thread)
@@ -330,62 +299,83 @@ class RatiosExtensionModel
     }
 
     public void accountBalanceChanged(Account account) {
-      // any change of any balance should be responded to
-      recalculate();
+      // any change of any balance should be responded to, only this account's cached balances are stale
+      final RatioCompute ratioCompute = _ratioCompute;
+      if (ratioCompute != null) ratioCompute.accountBalanceChanged(account);
+      recalculateLater();
     }
 
     public void accountDeleted(Account account, Account account1) {
       // we need to rebuild our map
+      clearBalances();
       loadRatioList();
-      recalculate();
+      recalculateLater();
     }
 
     public void accountAdded(Account account, Account account1) {
       // we need to rebuild our map - user may have included all of an account type that the new account belongs to
+      clearBalances();
       loadRatioList();
-      recalculate();
+      recalculateLater();
+    }
+
+    private void clearBalances() {
+      final RatioCompute ratioCompute = _ratioCompute;
+      if (ratioCompute != null) ratioCompute.clearBalances();
     }
   }
 
   /**
-   * Class to compute the ratios on a background thread, which does two things for us:
-   * 1) Prevents long-running tasks on the main UI thread
-   * 2) Collects a series of recalculate requests within 1 second into a single request, to
-   * prevent needless recalculation.
+   * Drops the cached investment account balances when prices change, since they include security balances
+   * converted at the prices of the time. This does not recalculate, like before the balances were cached.
    */
-  private class BackgroundRecalculateTask
-      implements Runnable {
-
-    public void run() {
-      // name this thread
-      Thread.currentThread().setName(N12ERatios.RATIO_THREAD_NAME);
-      // first wait 1/2 second to make sure we don't get an avalanche of recalculate commands
-      int count = 3;
-      while (!_cancelTasks.get() && count > 0) {
-        try {
-          Thread.sleep(200);
-          --count;
-        } catch (InterruptedException e) {
-          // definitely do not proceed
-          _cancelTasks.set(true);
-        }
-      }
-      if (!_cancelTasks.get()) {
-        // go ahead with the computation
-        try {
-          synchronized (_ratioSync) {
-            _ratioCompute.computeRatios(_ratios, _settings.getDateRange());
-          }
-          // notify the UI on the main thread
-          firePropertyChange(_eventNotify, N12ERatios.RECALCULATE, null, null);
-          currentTaskDone();
-        } catch (Throwable error) {
-          Logger.log("Error computing ratios: " + error.getMessage());
-          error.printStackTrace();
-        }
-      } else {
-        Logger.log("Background recalculate task was canceled.");
+  private class RatiosCurrencyListener
+      implements CurrencyListener {
+    public void currencyTableModified(CurrencyTable table) {
+      final RatioCompute ratioCompute = _ratioCompute;
+      if (ratioCompute != null) ratioCompute.currencyTableChanged();
+    }
+  }
+
+  /**
+   * Passes transaction changes on to the ratio computation, which applies them to its running totals on
+   * the next recalculate. The recalculate itself is still triggered by the balance change.
+   */
+  private class RatiosTransactionListener
+      implements TransactionListener {
+    public void transactionAdded(AbstractTxn txn) {
+      txnChanged(txn, false);
+    }
+
+    public void transactionModified(AbstractTxn txn) {
+      txnChanged(txn, false);
+    }
+
+    public void transactionRemoved(AbstractTxn txn) {
+      txnChanged(txn, true);
+    }
+
+    private void txnChanged(AbstractTxn txn, boolean removed) {
+      final RatioCompute ratioCompute = _ratioCompute;
+      if (ratioCompute != null) ratioCompute.transactionChanged(txn, removed);
+    }
+  }
+
+  /**
+   * Computes the ratios on the scheduler's background thread and notifies the UI when done. A canceled
+   * computation throws out of <code>computeRatios()</code> and does not notify.
+   */
+  private class RecalculateComputation
+      implements RecalculateScheduler.Computation {
+    public void compute(final AtomicBoolean cancelled) {
+      final RatioCompute ratioCompute = _ratioCompute;
+      final RatioSettings settings = _settings;
+      if ((ratioCompute == null) || (settings == null)) return;
+      synchronized (_ratioSync) {
+        ratioCompute.computeRatios(_ratios, settings.getDateRange(), cancelled);
       }
-    } // run()
+      // notify the UI on the main thread
+      firePropertyChange(_eventNotify, N12ERatios.RECALCULATE, null, null);
+    }
   }
 }
@@ -0,0 +1,193 @@
+/*
+ * ************************************************************************
+ * Copyright (C) 2012-2015 Mennē Software Solutions, LLC
+ *
+ * This code is released as open source under the Apache 2.0 License:<br/>
+ * <a href="http://www.apache.org/licenses/LICENSE-2.0">
+ * http://www.apache.org/licenses/LICENSE-2.0</a><br />
+ * ************************************************************************
+ */
+
+package com.moneydance.modules.features.ratios;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs recalculations on a background thread, collecting any number of requests into at most one queued run.
+ * <p>
+ * A background request, such as a balance change, waits until no other request has come in for a short quiet
+ * time, but never longer than a maximum delay from the first request it was collected with. So a stream of
+ * changes, like an import adding hundreds of transactions, still gets the home page updated regularly. An
+ * urgent request, such as the user picking another date range, runs right away and cancels a computation in
+ * progress, whose result would be out of date. Background requests never cancel a computation in progress, they
+ * queue one run after it.
+ * <p>
+ * The computation is handed a flag that is set when it should stop, and can throw a
+ * {@link CancellationException} when it sees it.
+ *
+ * @author Kevin Menningen
+ */
+class RecalculateScheduler {
+  /** Quiet time after the last background request before the run starts. */
+  private static final long QUIET_MILLIS = 250;
+  /** Longest a background request waits for its run to start, if no computation is in progress. */
+  private static final long MAX_DELAY_MILLIS = 1000;
+
+  /** The work to run. */
+  interface Computation {
+    /**
+     * @param cancelled Set when the computation should stop, it is never cleared.
+     */
+    void compute(AtomicBoolean cancelled);
+  }
+
+  private final Computation _computation;
+  private final ScheduledExecutorService _executor;
+  private final Runnable _runTask = new Runnable() {
+    public void run() {
+      runQueued();
+    }
+  };
+
+  private final Object _sync = new Object();
+  /** True if a run has been requested that has not started yet. */
+  private boolean _queued = false;
+  private boolean _urgent = false;
+  private long _firstRequestNanos = 0;
+  private long _lastRequestNanos = 0;
+  private ScheduledFuture<?> _queuedFuture = null;
+  /** The cancel flag of the computation in progress, null if there is none. */
+  private AtomicBoolean _running = null;
+  private boolean _shutdown = false;
+
+  // metrics
+  private long _requestCount = 0;
+  private long _runCount = 0;
+  private long _cancelCount = 0;
+
+  RecalculateScheduler(final Computation computation, final String threadName) {
+    _computation = computation;
+    _executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      public Thread newThread(final Runnable runnable) {
+        final Thread thread = new Thread(runnable, threadName);
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+
+  /**
+   * Ask for a recalculation.
+   * @param urgent True to run as soon as possible, cancelling a computation in progress. False to wait for
+   *               more requests to collect.
+   */
+  void request(final boolean urgent) {
+    synchronized (_sync) {
+      if (_shutdown) return;
+      ++_requestCount;
+      final long now = System.nanoTime();
+      if (!_queued) {
+        _queued = true;
+        _urgent = false;
+        _firstRequestNanos = now;
+      }
+      _lastRequestNanos = now;
+      _urgent |= urgent;
+      if (_running == null) {
+        scheduleQueued();
+      } else if (urgent) {
+        // the queued run starts when the computation in progress stops
+        _running.set(true);
+      }
+    }
+  }
+
+  /**
+   * Drop the queued run and stop the computation in progress, if any.
+   */
+  void cancel() {
+    synchronized (_sync) {
+      dropQueued();
+      if (_running != null) _running.set(true);
+    }
+  }
+
+  void shutdown() {
+    synchronized (_sync) {
+      _shutdown = true;
+      cancel();
+    }
+    try {
+      _executor.shutdownNow();
+    } catch (SecurityException ignore) {
+      // do nothing
+    }
+  }
+
+  long getRequestCount() {
+    synchronized (_sync) {
+      return _requestCount;
+    }
+  }
+
+  long getRunCount() {
+    synchronized (_sync) {
+      return _runCount;
+    }
+  }
+
+  long getCancelCount() {
+    synchronized (_sync) {
+      return _cancelCount;
+    }
+  }
+
+  private void scheduleQueued() {
+    if (_queuedFuture != null) _queuedFuture.cancel(false);
+    long delayNanos = 0;
+    if (!_urgent) {
+      final long startNanos = Math.min(_lastRequestNanos + TimeUnit.MILLISECONDS.toNanos(QUIET_MILLIS),
+                                       _firstRequestNanos + TimeUnit.MILLISECONDS.toNanos(MAX_DELAY_MILLIS));
+      delayNanos = Math.max(0, startNanos - System.nanoTime());
+    }
+    _queuedFuture = _executor.schedule(_runTask, delayNanos, TimeUnit.NANOSECONDS);
+  }
+
+  private void dropQueued() {
+    if (_queuedFuture != null) _queuedFuture.cancel(false);
+    _queuedFuture = null;
+    _queued = false;
+  }
+
+  private void runQueued() {
+    final AtomicBoolean cancelled;
+    synchronized (_sync) {
+      // a timer replaced by a later request may still fire
+      if (!_queued || (_running != null) || _shutdown) return;
+      _queued = false;
+      _queuedFuture = null;
+      cancelled = new AtomicBoolean(false);
+      _running = cancelled;
+      ++_runCount;
+    }
+    try {
+      _computation.compute(cancelled);
+    } catch (CancellationException ignore) {
+      // counted below
+    } catch (Throwable error) {
+      Logger.logError("Error computing ratios", error);
+    } finally {
+      synchronized (_sync) {
+        _running = null;
+        if (cancelled.get()) ++_cancelCount;
+        if (_queued && !_shutdown) scheduleQueued();
+      }
+    }
+  }
+}